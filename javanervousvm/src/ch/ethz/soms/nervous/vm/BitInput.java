@@ -0,0 +1,41 @@
+package ch.ethz.soms.nervous.vm;
+
+class BitInput {
+
+	// MSB first bit stream over a part of a byte array, counterpart of BitOutput
+
+	private final byte[] buffer;
+	private final int end;
+	private int bytePosition;
+	private int bitPosition;
+
+	public BitInput(byte[] buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.bytePosition = offset;
+		this.end = offset + length;
+	}
+
+	public boolean readBit() {
+		return readBits(1) != 0;
+	}
+
+	public long readBits(int bits) {
+		long value = 0;
+		while (bits > 0) {
+			if (bytePosition >= end) {
+				throw new IndexOutOfBoundsException("End of column");
+			}
+			int available = 8 - bitPosition;
+			int n = Math.min(available, bits);
+			int chunk = (buffer[bytePosition] >>> (available - n)) & ((1 << n) - 1);
+			value = (value << n) | chunk;
+			bitPosition += n;
+			bits -= n;
+			if (bitPosition == 8) {
+				bytePosition++;
+				bitPosition = 0;
+			}
+		}
+		return value;
+	}
+}
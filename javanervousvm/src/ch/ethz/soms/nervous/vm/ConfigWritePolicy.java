@@ -0,0 +1,47 @@
+package ch.ethz.soms.nervous.vm;
+
+public class ConfigWritePolicy {
+
+	// Decides when a changed SensorStoreConfig is written back to its <id>G file.
+	// A limit of 0 disables the corresponding trigger, dirty configs are always
+	// written on NervousVM.flush() and NervousVM.close(). The time limit is
+	// also checked by a background thread of the VM while configs are dirty,
+	// so a config is written at most about twice the limit after its last
+	// change even if it does not change again.
+
+	public final static ConfigWritePolicy WRITE_THROUGH = new ConfigWritePolicy(1, 0);
+	public final static ConfigWritePolicy ON_CLOSE = new ConfigWritePolicy(0, 0);
+	public final static ConfigWritePolicy DEFAULT = new ConfigWritePolicy(64, 10000);
+
+	private final int maxPendingWrites;
+	private final long maxPendingMillis;
+
+	/**
+	 * @param maxPendingWrites
+	 *            write back after this many changes, 0 to disable
+	 * @param maxPendingMillis
+	 *            write back when the last write is older than this, 0 to disable
+	 */
+	public ConfigWritePolicy(int maxPendingWrites, long maxPendingMillis) {
+		this.maxPendingWrites = maxPendingWrites;
+		this.maxPendingMillis = maxPendingMillis;
+	}
+
+	public int getMaxPendingWrites() {
+		return maxPendingWrites;
+	}
+
+	public long getMaxPendingMillis() {
+		return maxPendingMillis;
+	}
+
+	public boolean isDue(int pendingWrites, long millisSinceStore) {
+		if (pendingWrites == 0) {
+			return false;
+		}
+		if (maxPendingWrites > 0 && pendingWrites >= maxPendingWrites) {
+			return true;
+		}
+		return maxPendingMillis > 0 && millisSinceStore >= maxPendingMillis;
+	}
+}
@@ -0,0 +1,234 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class FileChannelCache {
+
+	// Bounded LRU of open page (P) and index (T) file handles, so that storing
+	// a sample does not need to open and close the files every time.
+	// Sensors are accessed concurrently, so an eviction may close a channel
+	// another thread is using. All I/O is positional and is therefore simply
+	// retried on a reopened channel.
+	// Sparse indexes (I) of full pages are read once and kept in a second LRU,
+	// they are dropped together with the channels of their page.
+
+	private final static int MAX_ATTEMPTS = 3;
+
+	public final static int DEFAULT_MAX_OPEN = 32;
+	public final static int DEFAULT_MAX_SPARSE = 256;
+
+	public final static char KIND_PAGE = 'P';
+	public final static char KIND_INDEX = 'T';
+	public final static char KIND_BLOCK = 'C';
+	public final static char KIND_SUMMARY = 'S';
+	public final static char KIND_ROLLUP = 'R';
+	public final static char KIND_SPARSE_INDEX = 'I';
+
+	private File dir;
+	private int maxOpen;
+	private LinkedHashMap<PageKey, FileChannel> channels;
+	private LinkedHashMap<PageKey, SensorStoreSparseIndex> sparseIndexes;
+
+	public FileChannelCache(File dir) {
+		this(dir, DEFAULT_MAX_OPEN);
+	}
+
+	public FileChannelCache(File dir, int maxOpen) {
+		this.dir = dir;
+		this.maxOpen = maxOpen;
+		this.channels = new LinkedHashMap<PageKey, FileChannel>(16, 0.75f, true) {
+			private static final long serialVersionUID = 4081502265962715313L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<PageKey, FileChannel> eldest) {
+				if (size() > FileChannelCache.this.maxOpen) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+		this.sparseIndexes = new LinkedHashMap<PageKey, SensorStoreSparseIndex>(16, 0.75f, true) {
+			private static final long serialVersionUID = -2204395725135867702L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<PageKey, SensorStoreSparseIndex> eldest) {
+				return size() > DEFAULT_MAX_SPARSE;
+			}
+		};
+	}
+
+	public static File getFile(File dir, long sensorID, long page, char kind) {
+		return new File(dir, "NervousVM/" + Long.toHexString(sensorID) + kind + Long.toHexString(page));
+	}
+
+	/**
+	 * Returns an open read/write channel for the file, creating the file if it does not exist yet.
+	 * The channel is owned by the cache and must not be closed by the caller.
+	 */
+	public synchronized FileChannel get(long sensorID, long page, char kind) throws IOException {
+		PageKey key = new PageKey(sensorID, page, kind);
+		FileChannel channel = channels.get(key);
+		if (channel == null || !channel.isOpen()) {
+			RandomAccessFile raf = new RandomAccessFile(getFile(dir, sensorID, page, kind), "rw");
+			channel = raf.getChannel();
+			channels.put(key, channel);
+		}
+		return channel;
+	}
+
+	/**
+	 * Same as get, but returns null instead of creating the file if it does not exist.
+	 */
+	public synchronized FileChannel getIfExists(long sensorID, long page, char kind) throws IOException {
+		PageKey key = new PageKey(sensorID, page, kind);
+		FileChannel channel = channels.get(key);
+		if (channel != null && channel.isOpen()) {
+			return channel;
+		}
+		if (!getFile(dir, sensorID, page, kind).exists()) {
+			return null;
+		}
+		return get(sensorID, page, kind);
+	}
+
+	/**
+	 * @return the sparse index of a page if it has been read already, null otherwise
+	 */
+	public synchronized SensorStoreSparseIndex getCachedSparseIndex(long sensorID, long page) {
+		return sparseIndexes.get(new PageKey(sensorID, page, KIND_SPARSE_INDEX));
+	}
+
+	/**
+	 * @return the sparse index of a page, read from its file if it is not cached, or null if the page has none
+	 */
+	public synchronized SensorStoreSparseIndex getSparseIndex(long sensorID, long page) {
+		PageKey key = new PageKey(sensorID, page, KIND_SPARSE_INDEX);
+		SensorStoreSparseIndex sparseIndex = sparseIndexes.get(key);
+		if (sparseIndex == null) {
+			sparseIndex = SensorStoreSparseIndex.load(dir, sensorID, page);
+			if (sparseIndex != null) {
+				sparseIndexes.put(key, sparseIndex);
+			}
+		}
+		return sparseIndex;
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer at the given file position, creating the file if needed
+	 */
+	public void writeFully(long sensorID, long page, char kind, ByteBuffer src, long position) throws IOException {
+		int start = src.position();
+		for (int attempt = 1;; attempt++) {
+			try {
+				FileChannel channel = get(sensorID, page, kind);
+				src.position(start);
+				while (src.hasRemaining()) {
+					channel.write(src, position + src.position() - start);
+				}
+				return;
+			} catch (ClosedChannelException ex) {
+				if (attempt >= MAX_ATTEMPTS) {
+					throw ex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fills the remaining bytes of the buffer from the given file position
+	 * 
+	 * @return false if the file does not exist or ends before the buffer is filled
+	 */
+	public boolean readFully(long sensorID, long page, char kind, ByteBuffer dst, long position) throws IOException {
+		int start = dst.position();
+		for (int attempt = 1;; attempt++) {
+			try {
+				FileChannel channel = getIfExists(sensorID, page, kind);
+				if (channel == null) {
+					return false;
+				}
+				dst.position(start);
+				while (dst.hasRemaining()) {
+					if (channel.read(dst, position + dst.position() - start) < 0) {
+						return false;
+					}
+				}
+				return true;
+			} catch (ClosedChannelException ex) {
+				if (attempt >= MAX_ATTEMPTS) {
+					throw ex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return size of the file or -1 if it does not exist
+	 */
+	public long size(long sensorID, long page, char kind) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				FileChannel channel = getIfExists(sensorID, page, kind);
+				return channel == null ? -1 : channel.size();
+			} catch (ClosedChannelException ex) {
+				if (attempt >= MAX_ATTEMPTS) {
+					throw ex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the page and index channels of a page and drops its sparse index, e.g. before its files get deleted.
+	 */
+	public synchronized void evict(long sensorID, long page) {
+		closeQuietly(channels.remove(new PageKey(sensorID, page, KIND_PAGE)));
+		closeQuietly(channels.remove(new PageKey(sensorID, page, KIND_INDEX)));
+		sparseIndexes.remove(new PageKey(sensorID, page, KIND_SPARSE_INDEX));
+	}
+
+	/**
+	 * Pushes all pending writes of the open channels to the storage device.
+	 */
+	public synchronized void flush() {
+		for (FileChannel channel : channels.values()) {
+			try {
+				if (channel.isOpen()) {
+					channel.force(false);
+				}
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	public synchronized void close() {
+		ArrayList<FileChannel> open = new ArrayList<FileChannel>(channels.values());
+		channels.clear();
+		sparseIndexes.clear();
+		for (FileChannel channel : open) {
+			closeQuietly(channel);
+		}
+	}
+
+	public synchronized int getOpenCount() {
+		return channels.size();
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+}
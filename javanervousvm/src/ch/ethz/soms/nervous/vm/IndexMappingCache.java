@@ -0,0 +1,80 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class IndexMappingCache {
+
+	// Bounded LRU of read-only memory mappings of index (T) files, viewed as
+	// (timestamp, offset) long pairs. Sealed pages keep their mapping, a mapping
+	// is replaced when its file has grown since it was mapped (open head page).
+
+	public final static int DEFAULT_MAX_MAPPED = 64;
+
+	private FileChannelCache channelCache;
+	private int maxMapped;
+	private LinkedHashMap<PageKey, LongBuffer> mappings;
+
+	public IndexMappingCache(FileChannelCache channelCache) {
+		this(channelCache, DEFAULT_MAX_MAPPED);
+	}
+
+	public IndexMappingCache(FileChannelCache channelCache, int maxMapped) {
+		this.channelCache = channelCache;
+		this.maxMapped = maxMapped;
+		this.mappings = new LinkedHashMap<PageKey, LongBuffer>(16, 0.75f, true) {
+			private static final long serialVersionUID = -6529418330761504287L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<PageKey, LongBuffer> eldest) {
+				return size() > IndexMappingCache.this.maxMapped;
+			}
+		};
+	}
+
+	/**
+	 * Returns a view on all complete entries of the index file: entry i has its timestamp at 2 * i and its page
+	 * offset at 2 * i + 1. Only absolute gets may be used on the returned buffer.
+	 * 
+	 * @return the mapping or null if the index file does not exist
+	 */
+	public synchronized LongBuffer get(long sensorID, long page) throws IOException {
+		try {
+			return map(sensorID, page);
+		} catch (ClosedChannelException ex) {
+			// Closed by an eviction of the channel cache, retry on a reopened channel
+			return map(sensorID, page);
+		}
+	}
+
+	private LongBuffer map(long sensorID, long page) throws IOException {
+		FileChannel channel = channelCache.getIfExists(sensorID, page, FileChannelCache.KIND_INDEX);
+		if (channel == null) {
+			return null;
+		}
+		long size = channel.size() / 16 * 16;
+		PageKey key = new PageKey(sensorID, page, FileChannelCache.KIND_INDEX);
+		LongBuffer mapping = mappings.get(key);
+		if (mapping == null || mapping.capacity() * 8L != size) {
+			mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).asLongBuffer();
+			mappings.put(key, mapping);
+		}
+		return mapping;
+	}
+
+	public synchronized void evict(long sensorID, long page) {
+		mappings.remove(new PageKey(sensorID, page, FileChannelCache.KIND_INDEX));
+	}
+
+	public synchronized void clear() {
+		mappings.clear();
+	}
+
+	public synchronized int getMappedCount() {
+		return mappings.size();
+	}
+}
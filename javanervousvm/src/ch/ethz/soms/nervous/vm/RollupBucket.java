@@ -0,0 +1,32 @@
+package ch.ethz.soms.nervous.vm;
+
+public class RollupBucket {
+
+	private final long start;
+	private final long millis;
+	private final SensorAggregate aggregate;
+
+	public RollupBucket(long start, long millis, SensorAggregate aggregate) {
+		this.start = start;
+		this.millis = millis;
+		this.aggregate = aggregate;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return length of the bucket
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	/**
+	 * @return count, sum, minimum and maximum of every value column of the samples in the bucket
+	 */
+	public SensorAggregate getAggregate() {
+		return aggregate;
+	}
+}
@@ -0,0 +1,385 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+
+public class SensorAggregate {
+
+	// Count, sum, sum of squares, minimum and maximum of every numeric value
+	// column, where column i of a type is value i of that type in SensorData.
+	// NervousVM keeps a running aggregate of the current page of a sensor and
+	// writes it to the page summary (<id>S<page>) when the page is full, so
+	// range statistics only decode the partially covered pages.
+
+	// The value types are numbered as in SensorColumns, the numeric ones are
+	// kept in slots in the order int32, int64, float, double, which is also
+	// their order in the summary and rollup encodings.
+
+	public final static int VALUE_INT32 = SensorColumns.VALUE_INT32;
+	public final static int VALUE_INT64 = SensorColumns.VALUE_INT64;
+	public final static int VALUE_FLOAT = SensorColumns.VALUE_FLOAT;
+	public final static int VALUE_DOUBLE = SensorColumns.VALUE_DOUBLE;
+
+	private final static int SLOT_INT32 = 0;
+	private final static int SLOT_INT64 = 1;
+	private final static int SLOT_FLOAT = 2;
+	private final static int SLOT_DOUBLE = 3;
+	private final static int SLOTS = 4;
+
+	public final static int MAGIC = 0x4E565341;
+	public final static int VERSION = 1;
+
+	private static class Column {
+		long count;
+		double sum;
+		double sumSquare;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+
+		void add(double value) {
+			count++;
+			sum += value;
+			sumSquare += value * value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		void merge(Column other) {
+			count += other.count;
+			sum += other.sum;
+			sumSquare += other.sumSquare;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+	}
+
+	private long count;
+	private long firstTimestamp = Long.MAX_VALUE;
+	private long lastTimestamp = Long.MIN_VALUE;
+	private List<List<Column>> columns;
+
+	public SensorAggregate() {
+		columns = new ArrayList<List<Column>>(SLOTS);
+		for (int slot = 0; slot < SLOTS; slot++) {
+			columns.add(new ArrayList<Column>());
+		}
+	}
+
+	public static SensorAggregate of(List<SensorData> sensorDataList) {
+		SensorAggregate aggregate = new SensorAggregate();
+		if (sensorDataList != null) {
+			aggregate.addAll(sensorDataList);
+		}
+		return aggregate;
+	}
+
+	/**
+	 * @return slot of one of the numeric VALUE types
+	 */
+	private static int slot(int type) {
+		if (type < VALUE_INT32 || type > VALUE_DOUBLE) {
+			throw new IllegalArgumentException("No numeric value type " + type);
+		}
+		return type - VALUE_INT32;
+	}
+
+	private Column getColumn(int slot, int index) {
+		List<Column> typeColumns = columns.get(slot);
+		while (typeColumns.size() <= index) {
+			typeColumns.add(new Column());
+		}
+		return typeColumns.get(index);
+	}
+
+	public void add(SensorData sensorData) {
+		count++;
+		firstTimestamp = Math.min(firstTimestamp, sensorData.getRecordTime());
+		lastTimestamp = Math.max(lastTimestamp, sensorData.getRecordTime());
+		for (int i = 0; i < sensorData.getValueInt32Count(); i++) {
+			getColumn(SLOT_INT32, i).add(sensorData.getValueInt32(i));
+		}
+		for (int i = 0; i < sensorData.getValueInt64Count(); i++) {
+			getColumn(SLOT_INT64, i).add(sensorData.getValueInt64(i));
+		}
+		for (int i = 0; i < sensorData.getValueFloatCount(); i++) {
+			getColumn(SLOT_FLOAT, i).add(sensorData.getValueFloat(i));
+		}
+		for (int i = 0; i < sensorData.getValueDoubleCount(); i++) {
+			getColumn(SLOT_DOUBLE, i).add(sensorData.getValueDouble(i));
+		}
+	}
+
+	public void addAll(List<SensorData> sensorDataList) {
+		for (SensorData sensorData : sensorDataList) {
+			add(sensorData);
+		}
+	}
+
+	public void merge(SensorAggregate other) {
+		count += other.count;
+		firstTimestamp = Math.min(firstTimestamp, other.firstTimestamp);
+		lastTimestamp = Math.max(lastTimestamp, other.lastTimestamp);
+		for (int slot = 0; slot < SLOTS; slot++) {
+			List<Column> otherColumns = other.columns.get(slot);
+			for (int i = 0; i < otherColumns.size(); i++) {
+				getColumn(slot, i).merge(otherColumns.get(i));
+			}
+		}
+	}
+
+	/**
+	 * @return number of samples
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return record time of the first sample, Long.MAX_VALUE if there are none
+	 */
+	public long getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	/**
+	 * @return record time of the last sample, Long.MIN_VALUE if there are none
+	 */
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	/**
+	 * @return number of columns of a value type, e.g. 3 floats for the accelerometer
+	 */
+	public int getColumnCount(int type) {
+		return columns.get(slot(type)).size();
+	}
+
+	private Column peekColumn(int slot, int index) {
+		List<Column> typeColumns = columns.get(slot);
+		return index < typeColumns.size() ? typeColumns.get(index) : new Column();
+	}
+
+	/**
+	 * @return number of samples that have a value in the column
+	 */
+	public long getCount(int type, int index) {
+		return peekColumn(slot(type), index).count;
+	}
+
+	public double getSum(int type, int index) {
+		return peekColumn(slot(type), index).sum;
+	}
+
+	public double getSumSquare(int type, int index) {
+		return peekColumn(slot(type), index).sumSquare;
+	}
+
+	/**
+	 * @return minimum of the column, positive infinity if it is empty
+	 */
+	public double getMin(int type, int index) {
+		return peekColumn(slot(type), index).min;
+	}
+
+	/**
+	 * @return maximum of the column, negative infinity if it is empty
+	 */
+	public double getMax(int type, int index) {
+		return peekColumn(slot(type), index).max;
+	}
+
+	public double getAverage(int type, int index) {
+		Column column = peekColumn(slot(type), index);
+		return column.count == 0 ? Double.NaN : column.sum / column.count;
+	}
+
+	/**
+	 * @return population variance of the column
+	 */
+	public double getVariance(int type, int index) {
+		Column column = peekColumn(slot(type), index);
+		if (column.count == 0) {
+			return Double.NaN;
+		}
+		double average = column.sum / column.count;
+		return Math.max(0, column.sumSquare / column.count - average * average);
+	}
+
+	/**
+	 * @return number of columns of every value type
+	 */
+	int[] getColumnCounts() {
+		int[] columnCounts = new int[SLOTS];
+		for (int slot = 0; slot < SLOTS; slot++) {
+			columnCounts[slot] = columns.get(slot).size();
+		}
+		return columnCounts;
+	}
+
+	/**
+	 * @return size of the fixed width encoding written by writeTo
+	 */
+	static int getEncodedSize(int[] columnCounts) {
+		int columnCount = 0;
+		for (int count : columnCounts) {
+			columnCount += count;
+		}
+		return 24 + 40 * columnCount;
+	}
+
+	/**
+	 * Writes the aggregate with a fixed number of columns per value type, further columns are dropped
+	 */
+	void writeTo(ByteBuffer buffer, int[] columnCounts) {
+		buffer.putLong(count);
+		buffer.putLong(firstTimestamp);
+		buffer.putLong(lastTimestamp);
+		for (int slot = 0; slot < SLOTS; slot++) {
+			for (int i = 0; i < columnCounts[slot]; i++) {
+				Column column = peekColumn(slot, i);
+				buffer.putLong(column.count);
+				buffer.putDouble(column.sum);
+				buffer.putDouble(column.sumSquare);
+				buffer.putDouble(column.min);
+				buffer.putDouble(column.max);
+			}
+		}
+	}
+
+	static SensorAggregate readFrom(ByteBuffer buffer, int[] columnCounts) {
+		SensorAggregate aggregate = new SensorAggregate();
+		aggregate.count = buffer.getLong();
+		aggregate.firstTimestamp = buffer.getLong();
+		aggregate.lastTimestamp = buffer.getLong();
+		for (int slot = 0; slot < SLOTS; slot++) {
+			for (int i = 0; i < columnCounts[slot]; i++) {
+				Column column = aggregate.getColumn(slot, i);
+				column.count = buffer.getLong();
+				column.sum = buffer.getDouble();
+				column.sumSquare = buffer.getDouble();
+				column.min = buffer.getDouble();
+				column.max = buffer.getDouble();
+			}
+		}
+		return aggregate;
+	}
+
+	public static File getFile(File dir, long sensorID, long page) {
+		return FileChannelCache.getFile(dir, sensorID, page, FileChannelCache.KIND_SUMMARY);
+	}
+
+	/**
+	 * Reads the summary of a full page
+	 *
+	 * @return the aggregate of the page or null if it has no summary
+	 */
+	public static SensorAggregate load(File dir, long sensorID, long page) {
+		File file = getFile(dir, sensorID, page);
+		if (!file.exists()) {
+			return null;
+		}
+		FileInputStream fis = null;
+		DataInputStream dis = null;
+		try {
+			fis = new FileInputStream(file);
+			dis = new DataInputStream(fis);
+			if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+				return null;
+			}
+			SensorAggregate aggregate = new SensorAggregate();
+			aggregate.count = dis.readLong();
+			aggregate.firstTimestamp = dis.readLong();
+			aggregate.lastTimestamp = dis.readLong();
+			for (int slot = 0; slot < SLOTS; slot++) {
+				int columnCount = dis.readInt();
+				for (int i = 0; i < columnCount; i++) {
+					Column column = aggregate.getColumn(slot, i);
+					column.count = dis.readLong();
+					column.sum = dis.readDouble();
+					column.sumSquare = dis.readDouble();
+					column.min = dis.readDouble();
+					column.max = dis.readDouble();
+				}
+			}
+			return aggregate;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			// Cleanup
+			if (dis != null) {
+				try {
+					dis.close();
+				} catch (IOException ex) {
+				}
+			}
+			if (fis != null) {
+				try {
+					fis.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the aggregate as the summary of a full page, replacing the file atomically
+	 */
+	public boolean store(File dir, long sensorID, long page) {
+		File file = getFile(dir, sensorID, page);
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = null;
+		DataOutputStream dos = null;
+		try {
+			fos = new FileOutputStream(tmpFile);
+			dos = new DataOutputStream(fos);
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(count);
+			dos.writeLong(firstTimestamp);
+			dos.writeLong(lastTimestamp);
+			for (int slot = 0; slot < SLOTS; slot++) {
+				List<Column> typeColumns = columns.get(slot);
+				dos.writeInt(typeColumns.size());
+				for (Column column : typeColumns) {
+					dos.writeLong(column.count);
+					dos.writeDouble(column.sum);
+					dos.writeDouble(column.sumSquare);
+					dos.writeDouble(column.min);
+					dos.writeDouble(column.max);
+				}
+			}
+			dos.flush();
+			dos.close();
+			dos = null;
+			fos = null;
+			return tmpFile.renameTo(file);
+		} catch (IOException ex) {
+			tmpFile.delete();
+			return false;
+		} finally {
+			// Cleanup
+			if (dos != null) {
+				try {
+					dos.close();
+				} catch (IOException ex) {
+				}
+			}
+			if (fos != null) {
+				try {
+					fos.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+}
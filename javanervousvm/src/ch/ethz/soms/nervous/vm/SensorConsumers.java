@@ -0,0 +1,163 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SensorConsumers {
+
+	// Named read positions of the consumers of a sensor, e.g. one per upload
+	// target, so that every consumer continues where it committed last,
+	// independently of the others. Positions are cursor positions (page,
+	// record offset, lower bound of the record time), they live in <id>K. A
+	// commit rewrites the file to a temporary file that is synced and renamed
+	// into place, so a crash leaves either the previous or the new positions
+	// behind.
+
+	private File dir;
+	private long sensorID;
+	private LinkedHashMap<String, SensorCursor.Position> positions = new LinkedHashMap<String, SensorCursor.Position>();
+
+	public SensorConsumers(File dir, long sensorID) {
+		this.dir = dir;
+		this.sensorID = sensorID;
+	}
+
+	public static File getFile(File dir, long sensorID) {
+		return new File(dir, "NervousVM/" + Long.toHexString(sensorID) + "K");
+	}
+
+	/**
+	 * @return the consumers of a sensor, none if their file is missing or unreadable
+	 */
+	public static SensorConsumers load(File dir, long sensorID) {
+		SensorConsumers consumers = new SensorConsumers(dir, sensorID);
+		File file = getFile(dir, sensorID);
+		if (!file.exists()) {
+			return consumers;
+		}
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new FileInputStream(file));
+			int count = dis.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = dis.readUTF();
+				consumers.positions.put(name, new SensorCursor.Position(dis.readLong(), dis.readLong(), dis.readLong()));
+			}
+		} catch (IOException e) {
+			consumers.positions.clear();
+		} finally {
+			// Cleanup
+			if (dis != null) {
+				try {
+					dis.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+		return consumers;
+	}
+
+	/**
+	 * @return committed position of a consumer or null if it is unknown
+	 */
+	public synchronized SensorCursor.Position get(String name) {
+		return positions.get(name);
+	}
+
+	/**
+	 * Sets the position of a consumer, adding it if it is unknown, and writes all positions to disk
+	 *
+	 * @return false if the positions could not be written, the previous position is kept then
+	 */
+	public synchronized boolean commit(String name, SensorCursor.Position position) {
+		SensorCursor.Position previous = positions.put(name, position);
+		if (store()) {
+			return true;
+		}
+		if (previous == null) {
+			positions.remove(name);
+		} else {
+			positions.put(name, previous);
+		}
+		return false;
+	}
+
+	/**
+	 * @return false if the positions could not be written
+	 */
+	public synchronized boolean remove(String name) {
+		SensorCursor.Position previous = positions.remove(name);
+		if (previous == null || store()) {
+			return true;
+		}
+		positions.put(name, previous);
+		return false;
+	}
+
+	public synchronized List<String> getNames() {
+		return new ArrayList<String>(positions.keySet());
+	}
+
+	/**
+	 * @return lowest page a consumer has not consumed completely, Long.MAX_VALUE if there are no consumers
+	 */
+	public synchronized long getFirstPage() {
+		long page = Long.MAX_VALUE;
+		for (SensorCursor.Position position : positions.values()) {
+			page = Math.min(page, position.getPage());
+		}
+		return page;
+	}
+
+	private boolean store() {
+		File file = getFile(dir, sensorID);
+		if (positions.isEmpty()) {
+			return !file.exists() || file.delete();
+		}
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(tmpFile);
+			DataOutputStream dos = new DataOutputStream(fos);
+			dos.writeInt(positions.size());
+			for (Map.Entry<String, SensorCursor.Position> consumer : positions.entrySet()) {
+				dos.writeUTF(consumer.getKey());
+				dos.writeLong(consumer.getValue().getPage());
+				dos.writeLong(consumer.getValue().getOffset());
+				dos.writeLong(consumer.getValue().getTimestamp());
+			}
+			dos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			return tmpFile.renameTo(file);
+		} catch (IOException ex) {
+			tmpFile.delete();
+			return false;
+		} finally {
+			// Cleanup
+			if (fos != null) {
+				try {
+					fos.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets all consumers and deletes their file
+	 */
+	public synchronized boolean delete() {
+		positions.clear();
+		return store();
+	}
+}
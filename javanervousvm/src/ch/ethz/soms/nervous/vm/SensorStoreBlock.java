@@ -0,0 +1,537 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+
+public class SensorStoreBlock {
+
+	// Columnar compressed encoding of a sealed page (<id>C<page>). All samples
+	// of a block have the same shape: the same number of bool, int32, int64,
+	// float and double values and no strings. Timestamps and integers are
+	// stored as delta of delta, floats and doubles XOR encoded against the
+	// previous value of their column (as in Facebook's Gorilla) and booleans
+	// as single bits. Columns are decoded on first use only, so a range search
+	// touches the timestamp column alone.
+
+	public final static int MAGIC = 0x4E564342;
+	public final static int VERSION = 1;
+
+	private final static int TYPE_BOOL = SensorColumns.VALUE_BOOL;
+	private final static int TYPE_INT32 = SensorColumns.VALUE_INT32;
+	private final static int TYPE_INT64 = SensorColumns.VALUE_INT64;
+	private final static int TYPE_FLOAT = SensorColumns.VALUE_FLOAT;
+	private final static int TYPE_DOUBLE = SensorColumns.VALUE_DOUBLE;
+	private final static int TYPE_COUNT = SensorColumns.VALUE_TYPES;
+
+	private final static int MAX_VALUES_PER_TYPE = 255;
+
+	private byte[] data;
+	private int count;
+	private int[] shape;
+	private int[] columnTypes;
+	private int[] columnOffsets;
+	private int[] columnLengths;
+
+	private long[] timestamps;
+	private long[][] columns;
+
+	private SensorStoreBlock(byte[] data) throws IOException {
+		this.data = data;
+		ByteBuffer header = ByteBuffer.wrap(data);
+		if (header.remaining() < 12 || header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("Not a sensor store block");
+		}
+		count = header.getInt();
+		shape = new int[TYPE_COUNT];
+		int columnCount = 1;
+		for (int type = 0; type < TYPE_COUNT; type++) {
+			shape[type] = header.get() & 0xFF;
+			columnCount += shape[type];
+		}
+		columnTypes = new int[columnCount];
+		columnOffsets = new int[columnCount];
+		columnLengths = new int[columnCount];
+		int column = 1;
+		for (int type = 0; type < TYPE_COUNT; type++) {
+			for (int i = 0; i < shape[type]; i++) {
+				columnTypes[column++] = type;
+			}
+		}
+		for (int i = 0; i < columnCount; i++) {
+			columnLengths[i] = header.getInt();
+		}
+		int offset = header.position();
+		for (int i = 0; i < columnCount; i++) {
+			columnOffsets[i] = offset;
+			offset += columnLengths[i];
+		}
+		if (count < 0 || offset > data.length) {
+			throw new IOException("Truncated sensor store block");
+		}
+		columns = new long[columnCount][];
+	}
+
+	public static File getFile(File dir, long sensorID, long page) {
+		return FileChannelCache.getFile(dir, sensorID, page, FileChannelCache.KIND_BLOCK);
+	}
+
+	/**
+	 * Reads the block of a sealed page. Only the header is parsed, columns are decoded on demand.
+	 *
+	 * @return the block or null if the page has not been sealed
+	 */
+	public static SensorStoreBlock load(File dir, long sensorID, long page) {
+		File file = getFile(dir, sensorID, page);
+		if (!file.exists()) {
+			return null;
+		}
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(file);
+			byte[] content = new byte[(int) file.length()];
+			int read = 0;
+			while (read < content.length) {
+				int bytes = fis.read(content, read, content.length - read);
+				if (bytes < 0) {
+					return null;
+				}
+				read += bytes;
+			}
+			return new SensorStoreBlock(content);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			// Cleanup
+			if (fis != null) {
+				try {
+					fis.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encodes the samples and writes the block to a temporary file that is synced and renamed into place.
+	 *
+	 * @return false if the samples cannot be encoded as a block or the block could not be written
+	 */
+	public static boolean write(File dir, long sensorID, long page, List<SensorData> sensorDataList) {
+		byte[] content = encode(sensorDataList);
+		if (content == null) {
+			return false;
+		}
+		File file = getFile(dir, sensorID, page);
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(tmpFile);
+			fos.write(content);
+			fos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			return tmpFile.renameTo(file);
+		} catch (IOException ex) {
+			tmpFile.delete();
+			return false;
+		} finally {
+			// Cleanup
+			if (fos != null) {
+				try {
+					fos.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the encoded block or null if the samples do not share one numeric shape
+	 */
+	public static byte[] encode(List<SensorData> sensorDataList) {
+		if (sensorDataList == null || sensorDataList.isEmpty()) {
+			return null;
+		}
+		SensorData first = sensorDataList.get(0);
+		int[] shape = getShape(first);
+		for (int type = 0; type < TYPE_COUNT; type++) {
+			if (shape[type] > MAX_VALUES_PER_TYPE) {
+				return null;
+			}
+		}
+		for (SensorData sensorData : sensorDataList) {
+			if (sensorData.getValueStringCount() > 0 || !Arrays.equals(shape, getShape(sensorData))) {
+				return null;
+			}
+		}
+		int count = sensorDataList.size();
+		List<byte[]> encodedColumns = new ArrayList<byte[]>();
+
+		BitOutput out = new BitOutput(count * 2);
+		long[] values = new long[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = sensorDataList.get(i).getRecordTime();
+		}
+		encodeDeltaOfDelta(out, values);
+		encodedColumns.add(out.toByteArray());
+
+		for (int type = 0; type < TYPE_COUNT; type++) {
+			for (int k = 0; k < shape[type]; k++) {
+				out = new BitOutput(count);
+				for (int i = 0; i < count; i++) {
+					values[i] = getValueBits(sensorDataList.get(i), type, k);
+				}
+				switch (type) {
+				case TYPE_BOOL:
+					for (int i = 0; i < count; i++) {
+						out.writeBits(values[i], 1);
+					}
+					break;
+				case TYPE_INT32:
+				case TYPE_INT64:
+					encodeDeltaOfDelta(out, values);
+					break;
+				case TYPE_FLOAT:
+					encodeXor(out, values, 32);
+					break;
+				case TYPE_DOUBLE:
+					encodeXor(out, values, 64);
+					break;
+				}
+				encodedColumns.add(out.toByteArray());
+			}
+		}
+
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(count);
+			for (int type = 0; type < TYPE_COUNT; type++) {
+				dos.writeByte(shape[type]);
+			}
+			for (byte[] column : encodedColumns) {
+				dos.writeInt(column.length);
+			}
+			for (byte[] column : encodedColumns) {
+				dos.write(column);
+			}
+			dos.flush();
+			return bos.toByteArray();
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	private static int[] getShape(SensorData sensorData) {
+		return new int[] { sensorData.getValueBoolCount(), sensorData.getValueInt32Count(), sensorData.getValueInt64Count(), sensorData.getValueFloatCount(), sensorData.getValueDoubleCount() };
+	}
+
+	private static long getValueBits(SensorData sensorData, int type, int index) {
+		switch (type) {
+		case TYPE_BOOL:
+			return sensorData.getValueBool(index) ? 1 : 0;
+		case TYPE_INT32:
+			return sensorData.getValueInt32(index);
+		case TYPE_INT64:
+			return sensorData.getValueInt64(index);
+		case TYPE_FLOAT:
+			return Float.floatToRawIntBits(sensorData.getValueFloat(index)) & 0xFFFFFFFFL;
+		default:
+			return Double.doubleToRawLongBits(sensorData.getValueDouble(index));
+		}
+	}
+
+	/**
+	 * First value verbatim, then the zigzag encoded delta of delta in buckets '0', '10' + 7 bits, '110' + 9 bits,
+	 * '1110' + 12 bits and '1111' + 64 bits
+	 */
+	private static void encodeDeltaOfDelta(BitOutput out, long[] values) {
+		out.writeBits(values[0], 64);
+		long previousDelta = 0;
+		for (int i = 1; i < values.length; i++) {
+			long delta = values[i] - values[i - 1];
+			long deltaOfDelta = delta - previousDelta;
+			long zigzag = (deltaOfDelta << 1) ^ (deltaOfDelta >> 63);
+			if (zigzag == 0) {
+				out.writeBits(0x0, 1);
+			} else if (zigzag >>> 7 == 0) {
+				out.writeBits(0x2, 2);
+				out.writeBits(zigzag, 7);
+			} else if (zigzag >>> 9 == 0) {
+				out.writeBits(0x6, 3);
+				out.writeBits(zigzag, 9);
+			} else if (zigzag >>> 12 == 0) {
+				out.writeBits(0xE, 4);
+				out.writeBits(zigzag, 12);
+			} else {
+				out.writeBits(0xF, 4);
+				out.writeBits(zigzag, 64);
+			}
+			previousDelta = delta;
+		}
+	}
+
+	private static void decodeDeltaOfDelta(BitInput in, long[] values) {
+		if (values.length == 0) {
+			return;
+		}
+		values[0] = in.readBits(64);
+		long previousDelta = 0;
+		for (int i = 1; i < values.length; i++) {
+			long zigzag;
+			if (!in.readBit()) {
+				zigzag = 0;
+			} else if (!in.readBit()) {
+				zigzag = in.readBits(7);
+			} else if (!in.readBit()) {
+				zigzag = in.readBits(9);
+			} else if (!in.readBit()) {
+				zigzag = in.readBits(12);
+			} else {
+				zigzag = in.readBits(64);
+			}
+			long delta = previousDelta + ((zigzag >>> 1) ^ -(zigzag & 1));
+			values[i] = values[i - 1] + delta;
+			previousDelta = delta;
+		}
+	}
+
+	/**
+	 * First value verbatim, then the XOR with the previous value: '0' if equal, '10' + the meaningful bits if they fit
+	 * into the window of the previous XOR, else '11' + 6 bits leading zeros + 6 bits length - 1 + the meaningful bits
+	 */
+	private static void encodeXor(BitOutput out, long[] values, int width) {
+		out.writeBits(values[0], width);
+		int previousLeading = -1;
+		int previousTrailing = 0;
+		for (int i = 1; i < values.length; i++) {
+			long xor = values[i] ^ values[i - 1];
+			if (xor == 0) {
+				out.writeBits(0x0, 1);
+				continue;
+			}
+			int leading = Long.numberOfLeadingZeros(xor) - (64 - width);
+			int trailing = Long.numberOfTrailingZeros(xor);
+			if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+				out.writeBits(0x2, 2);
+				out.writeBits(xor >>> previousTrailing, width - previousLeading - previousTrailing);
+			} else {
+				int length = width - leading - trailing;
+				out.writeBits(0x3, 2);
+				out.writeBits(leading, 6);
+				out.writeBits(length - 1, 6);
+				out.writeBits(xor >>> trailing, length);
+				previousLeading = leading;
+				previousTrailing = trailing;
+			}
+		}
+	}
+
+	private static void decodeXor(BitInput in, long[] values, int width) {
+		if (values.length == 0) {
+			return;
+		}
+		values[0] = in.readBits(width);
+		int previousLeading = 0;
+		int previousTrailing = 0;
+		for (int i = 1; i < values.length; i++) {
+			if (!in.readBit()) {
+				values[i] = values[i - 1];
+				continue;
+			}
+			if (in.readBit()) {
+				previousLeading = (int) in.readBits(6);
+				int length = (int) in.readBits(6) + 1;
+				previousTrailing = width - previousLeading - length;
+			}
+			long xor = in.readBits(width - previousLeading - previousTrailing) << previousTrailing;
+			values[i] = values[i - 1] ^ xor;
+		}
+	}
+
+	private long[] getColumn(int column) {
+		long[] values = columns[column];
+		if (values == null) {
+			values = new long[count];
+			BitInput in = new BitInput(data, columnOffsets[column], columnLengths[column]);
+			if (column == 0) {
+				decodeDeltaOfDelta(in, values);
+			} else {
+				switch (columnTypes[column]) {
+				case TYPE_BOOL:
+					for (int i = 0; i < count; i++) {
+						values[i] = in.readBits(1);
+					}
+					break;
+				case TYPE_INT32:
+				case TYPE_INT64:
+					decodeDeltaOfDelta(in, values);
+					break;
+				case TYPE_FLOAT:
+					decodeXor(in, values, 32);
+					break;
+				case TYPE_DOUBLE:
+					decodeXor(in, values, 64);
+					break;
+				}
+			}
+			columns[column] = values;
+		}
+		return values;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return encoded size of the block in bytes
+	 */
+	public int getSize() {
+		return data.length;
+	}
+
+	public long getTimestamp(int row) {
+		if (timestamps == null) {
+			timestamps = getColumn(0);
+		}
+		return timestamps[row];
+	}
+
+	/**
+	 * Finds the first row with a timestamp >= @param fromTimestamp and the last row with a timestamp <= @param
+	 * toTimestamp, decoding the timestamp column only
+	 *
+	 * @return {firstRow, lastRow} or null if no row falls into the range
+	 */
+	public int[] findRange(long fromTimestamp, long toTimestamp) {
+		int from = 0;
+		int to = count;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (getTimestamp(middle) < fromTimestamp) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		int first = from;
+		to = count;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (getTimestamp(middle) <= toTimestamp) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		int last = from - 1;
+		return (first >= count || last < first) ? null : new int[] { first, last };
+	}
+
+	/**
+	 * Materializes one row, decoding the value columns on first use
+	 */
+	public SensorData getSample(int row) {
+		SensorData.Builder sdb = SensorData.newBuilder();
+		sdb.setRecordTime(getTimestamp(row));
+		for (int column = 1; column < columns.length; column++) {
+			long value = getColumn(column)[row];
+			switch (columnTypes[column]) {
+			case TYPE_BOOL:
+				sdb.addValueBool(value != 0);
+				break;
+			case TYPE_INT32:
+				sdb.addValueInt32((int) value);
+				break;
+			case TYPE_INT64:
+				sdb.addValueInt64(value);
+				break;
+			case TYPE_FLOAT:
+				sdb.addValueFloat(Float.intBitsToFloat((int) value));
+				break;
+			case TYPE_DOUBLE:
+				sdb.addValueDouble(Double.longBitsToDouble(value));
+				break;
+			}
+		}
+		return sdb.build();
+	}
+
+	public List<SensorData> retrieve(long fromTimestamp, long toTimestamp) {
+		int[] range = findRange(fromTimestamp, toTimestamp);
+		if (range == null) {
+			return null;
+		}
+		List<SensorData> sensorDataList = new ArrayList<SensorData>(range[1] - range[0] + 1);
+		for (int row = range[0]; row <= range[1]; row++) {
+			sensorDataList.add(getSample(row));
+		}
+		return sensorDataList;
+	}
+
+	/**
+	 * Appends the rows in [fromTimestamp, toTimestamp] to @param sensorColumns straight from the decoded columns
+	 *
+	 * @return number of rows appended
+	 */
+	public int retrieveColumns(long fromTimestamp, long toTimestamp, SensorColumns sensorColumns) {
+		int[] range = findRange(fromTimestamp, toTimestamp);
+		if (range == null) {
+			return 0;
+		}
+		int rows = range[1] - range[0] + 1;
+		int row = sensorColumns.addRows(getColumn(0), range[0], rows);
+		int[] typeIndexes = new int[TYPE_COUNT];
+		for (int column = 1; column < columns.length; column++) {
+			// Block and result types share their order
+			int type = columnTypes[column];
+			sensorColumns.setColumn(type, typeIndexes[type]++, row, getColumn(column), range[0], rows);
+		}
+		return rows;
+	}
+
+	/**
+	 * Evaluates @param predicate on the decoded columns of the rows in [fromTimestamp, toTimestamp] and materializes
+	 * the matching rows only
+	 *
+	 * @param sensorColumns
+	 *            scratch space for the decoded rows
+	 */
+	public List<SensorData> scan(long fromTimestamp, long toTimestamp, SensorPredicate predicate, SensorColumns sensorColumns) {
+		List<SensorData> sensorDataList = new ArrayList<SensorData>();
+		sensorColumns.clear();
+		int[] range = findRange(fromTimestamp, toTimestamp);
+		if (range == null) {
+			return sensorDataList;
+		}
+		int rows = retrieveColumns(fromTimestamp, toTimestamp, sensorColumns);
+		for (int row = 0; row < rows; row++) {
+			if (predicate.matches(sensorColumns, row)) {
+				sensorDataList.add(getSample(range[0] + row));
+			}
+		}
+		return sensorDataList;
+	}
+
+	public List<SensorData> retrieveAll() {
+		List<SensorData> sensorDataList = new ArrayList<SensorData>(count);
+		for (int row = 0; row < count; row++) {
+			sensorDataList.add(getSample(row));
+		}
+		return sensorDataList;
+	}
+}
@@ -0,0 +1,396 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+
+public class SensorStoreRecovery {
+
+	// Brings the files of the store back into a consistent state after the
+	// process died in the middle of a write. Runs once when the VM is
+	// constructed, on a single listing of the NervousVM directory:
+	// - temporary files of interrupted atomic writes are removed
+	// - files of pages the directory no longer knows (interrupted evictions
+	// and deletions) are removed, records of sealed pages as well
+	// - pages newer than the last page of the directory are added to it
+	// - the open page of every sensor is checked against its index, torn
+	// records at its end are cut off and missing index entries are rebuilt
+	// with one sequential read of the page
+	// The config of a sensor is reconciled with its open page when it is
+	// first accessed, see NervousVM.recoverConfig.
+
+	private final static int READ_BUFFER_SIZE = 65536;
+
+	private static class PageFiles {
+		boolean page;
+		boolean index;
+		boolean sparse;
+		boolean block;
+		boolean summary;
+	}
+
+	private File dir;
+	private FileChannelCache channelCache;
+
+	private int removedFiles;
+	private int restoredPages;
+	private int repairedPages;
+
+	public SensorStoreRecovery(File dir, FileChannelCache channelCache) {
+		this.dir = dir;
+		this.channelCache = channelCache;
+	}
+
+	/**
+	 * Repairs the store and brings the directory in line with the page files. Changes to the directory are recorded
+	 * in the manifest.
+	 *
+	 * @param directoryLost
+	 *            the directory could not be loaded, rebuild it from the page files instead of removing the files of
+	 *            unknown sensors
+	 */
+	public void recover(HashMap<Long, PageDirectory> directories, SensorStoreManifest manifest, boolean directoryLost) {
+		File[] files = new File(dir, "NervousVM").listFiles();
+		if (files == null) {
+			return;
+		}
+		HashMap<Long, TreeMap<Long, PageFiles>> sensorFiles = new HashMap<Long, TreeMap<Long, PageFiles>>();
+		HashMap<Long, ArrayList<File>> rollupFiles = new HashMap<Long, ArrayList<File>>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".tmp")) {
+				// Interrupted before it was renamed into place
+				delete(file);
+				continue;
+			}
+			int kindIndex = 0;
+			while (kindIndex < name.length() && Character.digit(name.charAt(kindIndex), 16) >= 0 && !Character.isUpperCase(name.charAt(kindIndex))) {
+				kindIndex++;
+			}
+			if (kindIndex == 0 || kindIndex > 16 || kindIndex + 1 >= name.length() || name.length() - kindIndex - 1 > 16) {
+				// Manifest, VM config, sensor configs, consumer positions
+				continue;
+			}
+			long sensorID;
+			long page;
+			try {
+				sensorID = new BigInteger(name.substring(0, kindIndex), 16).longValue();
+				page = new BigInteger(name.substring(kindIndex + 1), 16).longValue();
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+			char kind = name.charAt(kindIndex);
+			if (kind == FileChannelCache.KIND_ROLLUP) {
+				ArrayList<File> rollup = rollupFiles.get(sensorID);
+				if (rollup == null) {
+					rollup = new ArrayList<File>();
+					rollupFiles.put(sensorID, rollup);
+				}
+				rollup.add(file);
+				continue;
+			}
+			TreeMap<Long, PageFiles> pages = sensorFiles.get(sensorID);
+			if (pages == null) {
+				pages = new TreeMap<Long, PageFiles>();
+				sensorFiles.put(sensorID, pages);
+			}
+			PageFiles pageFiles = pages.get(page);
+			if (pageFiles == null) {
+				pageFiles = new PageFiles();
+				pages.put(page, pageFiles);
+			}
+			switch (kind) {
+			case FileChannelCache.KIND_PAGE:
+				pageFiles.page = true;
+				break;
+			case FileChannelCache.KIND_INDEX:
+				pageFiles.index = true;
+				break;
+			case FileChannelCache.KIND_SPARSE_INDEX:
+				pageFiles.sparse = true;
+				break;
+			case FileChannelCache.KIND_BLOCK:
+				pageFiles.block = true;
+				break;
+			case FileChannelCache.KIND_SUMMARY:
+				pageFiles.summary = true;
+				break;
+			default:
+				break;
+			}
+		}
+
+		for (Map.Entry<Long, TreeMap<Long, PageFiles>> sensor : sensorFiles.entrySet()) {
+			long sensorID = sensor.getKey();
+			TreeMap<Long, PageFiles> pages = sensor.getValue();
+			PageDirectory directory = directories.get(sensorID);
+			if (directory == null || directory.isEmpty()) {
+				if (!directoryLost) {
+					// Leftovers of a deleted sensor
+					for (Map.Entry<Long, PageFiles> page : pages.entrySet()) {
+						deletePage(sensorID, page.getKey());
+					}
+					if (rollupFiles.containsKey(sensorID)) {
+						for (File file : rollupFiles.get(sensorID)) {
+							delete(file);
+						}
+					}
+					continue;
+				}
+				directory = new PageDirectory();
+				directories.put(sensorID, directory);
+			}
+			long firstPage = directory.isEmpty() ? pages.firstKey() : directory.getPage(0);
+			for (Map.Entry<Long, PageFiles> page : pages.entrySet()) {
+				if (page.getKey() < firstPage) {
+					// Leftovers of an evicted page
+					deletePage(sensorID, page.getKey());
+				} else if (page.getValue().block && (page.getValue().page || page.getValue().index) && SensorStoreBlock.load(dir, sensorID, page.getKey()) != null) {
+					// Sealed, but the records have not been dropped yet
+					deleteRecords(sensorID, page.getKey());
+					page.getValue().page = false;
+					page.getValue().index = false;
+					page.getValue().sparse = false;
+				} else if (page.getValue().sparse && page.getValue().index && SensorStoreSparseIndex.load(dir, sensorID, page.getKey()) != null) {
+					// Sparse index in place, but the dense one has not been dropped yet
+					channelCache.evict(sensorID, page.getKey());
+					delete(FileChannelCache.getFile(dir, sensorID, page.getKey(), FileChannelCache.KIND_INDEX));
+					page.getValue().index = false;
+				}
+			}
+			restorePages(sensorID, directory, pages, firstPage, manifest);
+
+			long openPage = directory.getPage(directory.size() - 1);
+			PageFiles openFiles = pages.get(openPage);
+			if (openFiles != null && !openFiles.block && (openFiles.page || openFiles.index)) {
+				if (openFiles.summary) {
+					// The page is open again, its summary is rewritten when it is full
+					delete(SensorAggregate.getFile(dir, sensorID, openPage));
+				}
+				if (openFiles.sparse) {
+					// Open pages are indexed densely
+					channelCache.evict(sensorID, openPage);
+					delete(SensorStoreSparseIndex.getFile(dir, sensorID, openPage));
+				}
+				if (!isConsistent(sensorID, openPage)) {
+					repairPage(sensorID, openPage, directory.getLower(directory.size() - 1));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the pages that are newer than the last page of the directory, each one starting after the last sample of
+	 * the previous one
+	 */
+	private void restorePages(long sensorID, PageDirectory directory, TreeMap<Long, PageFiles> pages, long firstPage, SensorStoreManifest manifest) {
+		long lastPage = directory.isEmpty() ? firstPage - 1 : directory.getPage(directory.size() - 1);
+		// Time partitioned sensors have no pages for empty slots
+		for (long page : pages.tailMap(lastPage, false).keySet()) {
+			long lower = 0;
+			if (!directory.isEmpty()) {
+				int last = directory.size() - 1;
+				long upper = Math.max(directory.getLower(last), getLastTimestamp(sensorID, directory.getPage(last)));
+				directory.setUpper(last, upper);
+				manifest.putPage(sensorID, directory.getPage(last), directory.getLower(last), upper);
+				lower = upper + 1;
+			}
+			directory.put(page, lower, Long.MAX_VALUE);
+			manifest.putPage(sensorID, page, lower, Long.MAX_VALUE);
+			restoredPages++;
+		}
+	}
+
+	/**
+	 * @return record time of the last sample of a full page, -1 if it has none
+	 */
+	private long getLastTimestamp(long sensorID, long page) {
+		SensorAggregate summary = SensorAggregate.load(dir, sensorID, page);
+		if (summary != null && summary.getCount() > 0) {
+			return summary.getLastTimestamp();
+		}
+		SensorStoreBlock block = SensorStoreBlock.load(dir, sensorID, page);
+		if (block != null && block.getCount() > 0) {
+			return block.getTimestamp(block.getCount() - 1);
+		}
+		SensorStoreTree sst = new SensorStoreTree(dir, channelCache, null, sensorID, page);
+		return sst.getTimestamp(sst.getEntryCount() - 1);
+	}
+
+	/**
+	 * Checks without a scan that the index is complete and that the last indexed record ends the page file
+	 */
+	private boolean isConsistent(long sensorID, long page) {
+		File pageFile = FileChannelCache.getFile(dir, sensorID, page, FileChannelCache.KIND_PAGE);
+		File indexFile = FileChannelCache.getFile(dir, sensorID, page, FileChannelCache.KIND_INDEX);
+		long pageSize = pageFile.exists() ? pageFile.length() : 0;
+		long indexSize = indexFile.exists() ? indexFile.length() : 0;
+		if (indexSize % 16 != 0) {
+			return false;
+		}
+		if (indexSize == 0) {
+			return pageSize == 0;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(indexFile, "r");
+			raf.seek(indexSize - 16);
+			long timestamp = raf.readLong();
+			long offset = raf.readLong();
+			raf.close();
+			raf = new RandomAccessFile(pageFile, "r");
+			if (offset < 0 || offset >= pageSize || pageSize - offset > READ_BUFFER_SIZE) {
+				return false;
+			}
+			byte[] record = new byte[(int) (pageSize - offset)];
+			raf.seek(offset);
+			raf.readFully(record);
+			CountInputStream cis = new CountInputStream(new ByteArrayInputStream(record));
+			SensorData sensorData = SensorData.parseDelimitedFrom(cis);
+			return sensorData != null && sensorData.getRecordTime() == timestamp && cis.bytesRead() == record.length;
+		} catch (IOException ex) {
+			return false;
+		} finally {
+			// Cleanup
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans the page once, cuts it off after the last complete record with an increasing record time and rewrites the
+	 * index entries that do not match the records
+	 */
+	private void repairPage(long sensorID, long page, long lowerTimestamp) {
+		File pageFile = FileChannelCache.getFile(dir, sensorID, page, FileChannelCache.KIND_PAGE);
+		File indexFile = FileChannelCache.getFile(dir, sensorID, page, FileChannelCache.KIND_INDEX);
+		ByteBuffer entries = ByteBuffer.allocate(1024);
+		long validEnd = 0;
+		FileInputStream fis = null;
+		CountInputStream cis = null;
+		try {
+			if (pageFile.exists()) {
+				fis = new FileInputStream(pageFile);
+				cis = new CountInputStream(new BufferedInputStream(fis, READ_BUFFER_SIZE));
+				long lastTimestamp = lowerTimestamp - 1;
+				while (true) {
+					SensorData sensorData = null;
+					try {
+						sensorData = SensorData.parseDelimitedFrom(cis);
+					} catch (IOException ex) {
+						// Torn record
+					}
+					if (sensorData == null || sensorData.getRecordTime() <= lastTimestamp) {
+						break;
+					}
+					if (entries.remaining() < 16) {
+						ByteBuffer grown = ByteBuffer.allocate(entries.capacity() * 2);
+						entries.flip();
+						grown.put(entries);
+						entries = grown;
+					}
+					entries.putLong(sensorData.getRecordTime());
+					entries.putLong(validEnd);
+					lastTimestamp = sensorData.getRecordTime();
+					validEnd = cis.bytesRead();
+				}
+			}
+		} catch (IOException ex) {
+		} finally {
+			// Cleanup
+			if (cis != null) {
+				try {
+					cis.close();
+				} catch (IOException ex) {
+				}
+			}
+			if (fis != null) {
+				try {
+					fis.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+		entries.flip();
+		channelCache.evict(sensorID, page);
+		RandomAccessFile raf = null;
+		try {
+			if (pageFile.exists()) {
+				raf = new RandomAccessFile(pageFile, "rw");
+				raf.setLength(validEnd);
+				raf.close();
+			}
+			raf = new RandomAccessFile(indexFile, "rw");
+			raf.setLength(0);
+			raf.write(entries.array(), 0, entries.limit());
+			raf.close();
+			raf = null;
+			repairedPages++;
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		} finally {
+			// Cleanup
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	private void deletePage(long sensorID, long page) {
+		deleteRecords(sensorID, page);
+		delete(SensorStoreBlock.getFile(dir, sensorID, page));
+		delete(SensorAggregate.getFile(dir, sensorID, page));
+	}
+
+	private void deleteRecords(long sensorID, long page) {
+		channelCache.evict(sensorID, page);
+		delete(FileChannelCache.getFile(dir, sensorID, page, FileChannelCache.KIND_PAGE));
+		delete(FileChannelCache.getFile(dir, sensorID, page, FileChannelCache.KIND_INDEX));
+		delete(SensorStoreSparseIndex.getFile(dir, sensorID, page));
+	}
+
+	private void delete(File file) {
+		if (file.exists() && file.delete()) {
+			removedFiles++;
+		}
+	}
+
+	/**
+	 * @return number of removed leftover and temporary files
+	 */
+	public int getRemovedFiles() {
+		return removedFiles;
+	}
+
+	/**
+	 * @return number of pages added to the directory
+	 */
+	public int getRestoredPages() {
+		return restoredPages;
+	}
+
+	/**
+	 * @return number of open pages whose records or index had to be repaired
+	 */
+	public int getRepairedPages() {
+		return repairedPages;
+	}
+}
@@ -2,22 +2,283 @@ package ch.ethz.soms.nervous.vm;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 
 public class SensorStoreTree {
 
 	// Actually not a tree. Binary search only, really.
+	// Full pages may have a sparse index (I) instead of the dense one (T), the
+	// search then runs on its kept entries and ends with a forward scan over
+	// the records up to the next kept entry.
 
 	private File dir;
+	private FileChannelCache channelCache;
+	private IndexMappingCache mappingCache;
 	private long sensorID;
 	private long currentPage;
 
-	public SensorStoreTree(File dir, long sensorID, long currentPage) {
+	/**
+	 * @param mappingCache
+	 *            searches run on memory mapped index files if set, otherwise with positioned reads
+	 */
+	public SensorStoreTree(File dir, FileChannelCache channelCache, IndexMappingCache mappingCache, long sensorID, long currentPage) {
 		this.dir = dir;
+		this.channelCache = channelCache;
+		this.mappingCache = mappingCache;
 		this.sensorID = sensorID;
 		this.currentPage = currentPage;
 	}
 
+	/**
+	 * Finds the offsets of the first entry with a timestamp >= @param fromTimestamp and of the last entry with a
+	 * timestamp <= @param toTimestamp in one search on the same index view
+	 * 
+	 * @return {startOffset, endOffset} or null if no entry falls into the range
+	 */
+	public long[] findRange(long fromTimestamp, long toTimestamp) {
+		SensorStoreSparseIndex sparse = getSparseIndex();
+		if (sparse != null) {
+			try {
+				long[] first = findSparse(sparse, fromTimestamp, false);
+				long[] next = findSparse(sparse, toTimestamp, true);
+				return (first[0] >= sparse.getEntryCount() || next[0] <= first[0]) ? null : new long[] { first[1], next[2] };
+			} catch (IOException e) {
+				return null;
+			}
+		}
+		if (mappingCache == null) {
+			long startOffset = findEntry(fromTimestamp, false);
+			long endOffset = findEntry(toTimestamp, true);
+			return (startOffset < 0 || endOffset < 0 || startOffset > endOffset) ? null : new long[] { startOffset, endOffset };
+		}
+		try {
+			LongBuffer index = mappingCache.get(sensorID, currentPage);
+			if (index == null) {
+				return null;
+			}
+			int entries = index.capacity() / 2;
+			int first = lowerBound(index, 0, entries, fromTimestamp);
+			int last = upperBound(index, first, entries, toTimestamp) - 1;
+			if (first >= entries || last < first) {
+				return null;
+			}
+			return new long[] { index.get(2 * first + 1), index.get(2 * last + 1) };
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Counts the entries with a timestamp in [fromTimestamp, toTimestamp] as the distance of their first and last
+	 * position in the index, without reading the page
+	 *
+	 * @return number of entries or -1 if the index could not be read
+	 */
+	public long countRange(long fromTimestamp, long toTimestamp) {
+		if (fromTimestamp > toTimestamp) {
+			return 0;
+		}
+		long[] entryRange = findEntryRange(fromTimestamp, toTimestamp);
+		return entryRange == null ? -1 : entryRange[1];
+	}
+
+	/**
+	 * @return {first entry with a timestamp >= @param fromTimestamp, number of entries in [fromTimestamp,
+	 *         toTimestamp]} or null if the index could not be read
+	 */
+	public long[] findEntryRange(long fromTimestamp, long toTimestamp) {
+		try {
+			SensorStoreSparseIndex sparse = getSparseIndex();
+			if (sparse != null) {
+				long first = findSparse(sparse, fromTimestamp, false)[0];
+				return new long[] { first, Math.max(0, findSparse(sparse, toTimestamp, true)[0] - first) };
+			}
+			if (mappingCache != null) {
+				LongBuffer index = mappingCache.get(sensorID, currentPage);
+				if (index == null) {
+					return new long[] { 0, 0 };
+				}
+				int entries = index.capacity() / 2;
+				int first = lowerBound(index, 0, entries, fromTimestamp);
+				return new long[] { first, Math.max(0, upperBound(index, first, entries, toTimestamp) - first) };
+			}
+			long size = channelCache.size(sensorID, currentPage, FileChannelCache.KIND_INDEX);
+			if (size < 0) {
+				return new long[] { 0, 0 };
+			}
+			ByteBuffer entry = ByteBuffer.allocate(16);
+			long entries = size / 16;
+			long first = searchEntries(entry, 0, entries, fromTimestamp, false);
+			return new long[] { first, Math.max(0, searchEntries(entry, first, entries, toTimestamp, true) - first) };
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return page file offset of the record of the given entry or -1 if it does not exist
+	 */
+	public long getOffset(long entryNumber) {
+		try {
+			SensorStoreSparseIndex sparse = getSparseIndex();
+			if (sparse != null) {
+				long[] entry = seekSparse(sparse, entryNumber);
+				return entry == null ? -1 : entry[1];
+			}
+			if (mappingCache != null) {
+				LongBuffer index = mappingCache.get(sensorID, currentPage);
+				if (index == null || entryNumber < 0 || entryNumber >= index.capacity() / 2) {
+					return -1;
+				}
+				return index.get((int) (2 * entryNumber + 1));
+			}
+			long size = channelCache.size(sensorID, currentPage, FileChannelCache.KIND_INDEX);
+			if (entryNumber < 0 || (entryNumber + 1) * 16 > size) {
+				return -1;
+			}
+			return readEntry(ByteBuffer.allocate(16), entryNumber).getLong(8);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the sparse index of the page if it has no dense index, null otherwise
+	 */
+	private SensorStoreSparseIndex getSparseIndex() {
+		SensorStoreSparseIndex sparse = channelCache.getCachedSparseIndex(sensorID, currentPage);
+		if (sparse != null) {
+			return sparse;
+		}
+		try {
+			if (channelCache.getIfExists(sensorID, currentPage, FileChannelCache.KIND_INDEX) != null) {
+				return null;
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return channelCache.getSparseIndex(sensorID, currentPage);
+	}
+
+	/**
+	 * @return {entry, offset, offset of the previous entry, timestamp} of the first entry with a timestamp >= @param
+	 *         timestamp, respectively > @param timestamp if @param after is set, the entry count and the end of the
+	 *         page if there is none
+	 */
+	private long[] findSparse(SensorStoreSparseIndex sparse, long timestamp, boolean after) throws IOException {
+		int sample = sparse.findSample(timestamp, after);
+		if (sample < 0) {
+			// Already the first entry
+			return new long[] { 0, sparse.getEntryCount() > 0 ? sparse.getSampleOffset(0) : 0, -1, -1 };
+		}
+		return scanSparse(sparse, sample, timestamp, after, -1);
+	}
+
+	/**
+	 * @return {entry, offset, offset of the previous entry, timestamp} of @param entryNumber or null if it does not
+	 *         exist
+	 */
+	private long[] seekSparse(SensorStoreSparseIndex sparse, long entryNumber) throws IOException {
+		if (entryNumber < 0 || entryNumber >= sparse.getEntryCount()) {
+			return null;
+		}
+		long[] entry = scanSparse(sparse, (int) (entryNumber / sparse.getInterval()), Long.MAX_VALUE, true, entryNumber);
+		return entry[0] == entryNumber ? entry : null;
+	}
+
+	/**
+	 * Forward scan over the records of the page from a kept entry of the sparse index up to the next one
+	 *
+	 * @return {entry, offset, offset of the previous entry, timestamp} of the first entry from the kept entry
+	 *         @param sample on that is @param entryNumber or has a timestamp >= @param timestamp, respectively >
+	 *         @param timestamp if @param after is set. The next kept entry, respectively the entry count and the end
+	 *         of the page, with a timestamp of -1 if there is none.
+	 */
+	private long[] scanSparse(SensorStoreSparseIndex sparse, int sample, long timestamp, boolean after, long entryNumber) throws IOException {
+		long entry = (long) sample * sparse.getInterval();
+		long startOffset = sparse.getSampleOffset(sample);
+		long endEntry;
+		long endOffset;
+		if (sample + 1 < sparse.getSampleCount()) {
+			endEntry = entry + sparse.getInterval();
+			endOffset = sparse.getSampleOffset(sample + 1);
+		} else {
+			endEntry = sparse.getEntryCount();
+			endOffset = channelCache.size(sensorID, currentPage, FileChannelCache.KIND_PAGE);
+		}
+		if (endOffset < startOffset) {
+			throw new IOException("Page shorter than its index");
+		}
+		byte[] data = new byte[(int) (endOffset - startOffset)];
+		if (!channelCache.readFully(sensorID, currentPage, FileChannelCache.KIND_PAGE, ByteBuffer.wrap(data), startOffset)) {
+			throw new IOException("Page shorter than its index");
+		}
+		int[] position = { 0 };
+		long previousOffset = -1;
+		while (entry < endEntry && position[0] < data.length) {
+			int recordOffset = position[0];
+			int recordLength = (int) SensorStorePage.readVarint(data, position, data.length);
+			long recordTime = SensorStorePage.readRecordTime(data, position[0], Math.min(data.length, position[0] + recordLength));
+			if (entry == entryNumber || recordTime > timestamp || (!after && recordTime == timestamp)) {
+				return new long[] { entry, startOffset + recordOffset, previousOffset, recordTime };
+			}
+			previousOffset = startOffset + recordOffset;
+			position[0] += recordLength;
+			entry++;
+		}
+		return new long[] { endEntry, endOffset, previousOffset, -1 };
+	}
+
+	/**
+	 * Binary search with positioned reads
+	 *
+	 * @return first entry in [from, to) with a timestamp >= @param timestamp, respectively > @param timestamp if
+	 *         @param after is set, to if there is none
+	 */
+	private long searchEntries(ByteBuffer entry, long from, long to, long timestamp, boolean after) throws IOException {
+		while (from < to) {
+			long middle = (from + to) >>> 1;
+			long middleTimestamp = readEntry(entry, middle).getLong(0);
+			if (middleTimestamp < timestamp || (after && middleTimestamp == timestamp)) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		return from;
+	}
+
+	/**
+	 * @return first entry in [from, to) with a timestamp >= @param timestamp, to if there is none
+	 */
+	private static int lowerBound(LongBuffer index, int from, int to, long timestamp) {
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (index.get(2 * middle) < timestamp) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		return from;
+	}
+
+	/**
+	 * @return first entry in [from, to) with a timestamp > @param timestamp, to if there is none
+	 */
+	private static int upperBound(LongBuffer index, int from, int to, long timestamp) {
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (index.get(2 * middle) <= timestamp) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		return from;
+	}
+
 	/**
 	 * Binary search for the next timestamp after @param timestamp
 	 * 
@@ -26,21 +287,23 @@ public class SensorStoreTree {
 	 * @return offset to start reading from in the page
 	 */
 	public long findEntry(long timestamp, boolean mode) {
+		if (mappingCache != null) {
+			return findEntryMapped(timestamp, mode);
+		}
 		long fileOffset = -1;
-		RandomAccessFile raf = null;
 		try {
-			File file = new File(dir, "NervousVM/" + Long.toHexString(sensorID) + "T" + Long.toHexString(currentPage));
-			if (!file.exists()) {
+			long size = channelCache.size(sensorID, currentPage, FileChannelCache.KIND_INDEX);
+			if (size < 0) {
 				return -1;
 			}
-			raf = new RandomAccessFile(file, "r");
+			ByteBuffer entry = ByteBuffer.allocate(16);
+			long entries = size / 16;
 			long lowerbound = 0;
-			long upperbound = file.length() / 16 - 1;
+			long upperbound = entries - 1;
 			long posTimestamp = 0;
 			while (upperbound > lowerbound) {
 				long readPosition = lowerbound + ((upperbound - lowerbound) / 2);
-				raf.seek(readPosition * 16);
-				posTimestamp = raf.readLong();
+				posTimestamp = readEntry(entry, readPosition).getLong(0);
 				if (posTimestamp > timestamp) {
 					upperbound = readPosition - 1;
 				} else if (posTimestamp < timestamp) {
@@ -51,77 +314,173 @@ public class SensorStoreTree {
 				}
 			}
 			// Fix if only one entry exists
-			raf.seek(lowerbound * 16);
-			posTimestamp = raf.readLong();
-			raf.seek(lowerbound * 16);
+			posTimestamp = readEntry(entry, lowerbound).getLong(0);
 			// Value correction (highest lower and lowest higher bound)
 			lowerbound = mode ? ((posTimestamp > timestamp) ? lowerbound -= 1 : lowerbound) : ((posTimestamp < timestamp) ? lowerbound += 1 : lowerbound);
 			// Safety border check
-			lowerbound = Math.max(0, Math.min(file.length() / 16 - 1, lowerbound));
-			raf.seek(lowerbound * 16);
-			posTimestamp = raf.readLong();
-			fileOffset = raf.readLong();
-			raf.close();
+			lowerbound = Math.max(0, Math.min(entries - 1, lowerbound));
+			readEntry(entry, lowerbound);
+			posTimestamp = entry.getLong(0);
+			fileOffset = entry.getLong(8);
 			// Out of range test
 			fileOffset = (!mode && posTimestamp < timestamp) ? -1 : fileOffset;
 			fileOffset = (mode && posTimestamp > timestamp) ? -1 : fileOffset;
 		} catch (IOException e) {
 			fileOffset = -1;
-		} finally {
-			// Cleanup
-			if (raf != null) {
-				try {
-					raf.close();
-				} catch (IOException ex) {
-				}
-			}
 		}
 		return fileOffset;
 	}
 
+	private long findEntryMapped(long timestamp, boolean mode) {
+		try {
+			LongBuffer index = mappingCache.get(sensorID, currentPage);
+			if (index == null) {
+				return -1;
+			}
+			int entries = index.capacity() / 2;
+			// Lowest higher or equal entry, highest lower or equal entry
+			int entry = mode ? upperBound(index, 0, entries, timestamp) - 1 : lowerBound(index, 0, entries, timestamp);
+			if (entry < 0 || entry >= entries) {
+				return -1;
+			}
+			return index.get(2 * entry + 1);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private ByteBuffer readEntry(ByteBuffer entry, long position) throws IOException {
+		entry.clear();
+		if (!channelCache.readFully(sensorID, currentPage, FileChannelCache.KIND_INDEX, entry, position * 16)) {
+			throw new IOException("Index entry " + position + " out of range");
+		}
+		return entry;
+	}
+
 	public void addEntry(long currentEntry, long timestamp, long fileOffset) {
 		long writeOffset = 16 * currentEntry;
-		RandomAccessFile raf = null;
 		try {
-			File file = new File(dir, "NervousVM/" + Long.toHexString(sensorID) + "T" + Long.toHexString(currentPage));
-			if (!file.exists()) {
-				file.createNewFile();
+			ByteBuffer entry = ByteBuffer.allocate(16);
+			entry.putLong(timestamp);
+			entry.putLong(fileOffset);
+			entry.flip();
+			channelCache.writeFully(sensorID, currentPage, FileChannelCache.KIND_INDEX, entry, writeOffset);
+		} catch (IOException ex) {
+		}
+	}
+
+	public void addEntries(long firstEntry, long[] timestamps, long[] fileOffsets, int count) {
+		long writeOffset = 16 * firstEntry;
+		try {
+			ByteBuffer entries = ByteBuffer.allocate(16 * count);
+			for (int i = 0; i < count; i++) {
+				entries.putLong(timestamps[i]);
+				entries.putLong(fileOffsets[i]);
 			}
+			entries.flip();
+			channelCache.writeFully(sensorID, currentPage, FileChannelCache.KIND_INDEX, entries, writeOffset);
+		} catch (IOException ex) {
+		}
+	}
 
-			raf = new RandomAccessFile(file, "rw");
-			raf.seek(writeOffset);
-			raf.writeLong(timestamp);
-			raf.writeLong(fileOffset);
-			raf.close();
+	/**
+	 * @return number of complete entries in the index file
+	 */
+	public long getEntryCount() {
+		File file = FileChannelCache.getFile(dir, sensorID, currentPage, FileChannelCache.KIND_INDEX);
+		if (file.exists()) {
+			return file.length() / 16;
+		}
+		SensorStoreSparseIndex sparse = channelCache.getSparseIndex(sensorID, currentPage);
+		return sparse == null ? 0 : sparse.getEntryCount();
+	}
 
-		} catch (IOException ex) {
-		} finally {
-			// Cleanup
-			if (raf != null) {
-				try {
-					raf.close();
-				} catch (IOException ex) {
+	/**
+	 * @return timestamp of the given entry or -1 if it does not exist
+	 */
+	public long getTimestamp(long entryNumber) {
+		try {
+			SensorStoreSparseIndex sparse = getSparseIndex();
+			if (sparse != null) {
+				if (entryNumber >= 0 && entryNumber == sparse.getEntryCount() - 1) {
+					return sparse.getLastTimestamp();
 				}
+				long[] entry = seekSparse(sparse, entryNumber);
+				return entry == null ? -1 : entry[3];
 			}
+			long size = channelCache.size(sensorID, currentPage, FileChannelCache.KIND_INDEX);
+			if (entryNumber < 0 || (entryNumber + 1) * 16 > size) {
+				return -1;
+			}
+			return readEntry(ByteBuffer.allocate(16), entryNumber).getLong(0);
+		} catch (IOException e) {
+			return -1;
 		}
 	}
 
 	public boolean evict() {
-		File file = new File(dir, "NervousVM/" + Long.toHexString(sensorID) + "T" + Long.toHexString(currentPage));
+		if (mappingCache != null) {
+			mappingCache.evict(sensorID, currentPage);
+		}
+		channelCache.evict(sensorID, currentPage);
+		boolean success = true;
+		File file = FileChannelCache.getFile(dir, sensorID, currentPage, FileChannelCache.KIND_INDEX);
 		if (file.exists()) {
-			return file.delete();
-		} else {
-			return true;
+			success = file.delete();
 		}
+		File sparseFile = SensorStoreSparseIndex.getFile(dir, sensorID, currentPage);
+		if (sparseFile.exists()) {
+			success = sparseFile.delete() && success;
+		}
+		return success;
+	}
+
+	/**
+	 * Replaces the dense index of the full page by a sparse index keeping every @param interval-th entry. The sparse
+	 * index is in place before the dense index is deleted.
+	 * 
+	 * @return true if the page has no dense index anymore
+	 */
+	public boolean sparsify(int interval) {
+		try {
+			long size = channelCache.size(sensorID, currentPage, FileChannelCache.KIND_INDEX);
+			if (size < 0) {
+				return SensorStoreSparseIndex.getFile(dir, sensorID, currentPage).exists();
+			}
+			int count = (int) (size / 16);
+			ByteBuffer entries = ByteBuffer.allocate(16 * count);
+			if (!channelCache.readFully(sensorID, currentPage, FileChannelCache.KIND_INDEX, entries, 0)) {
+				return false;
+			}
+			long[] timestamps = new long[count];
+			long[] offsets = new long[count];
+			for (int i = 0; i < count; i++) {
+				timestamps[i] = entries.getLong(16 * i);
+				offsets[i] = entries.getLong(16 * i + 8);
+			}
+			if (!SensorStoreSparseIndex.write(dir, sensorID, currentPage, timestamps, offsets, count, interval)) {
+				return false;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		if (mappingCache != null) {
+			mappingCache.evict(sensorID, currentPage);
+		}
+		channelCache.evict(sensorID, currentPage);
+		return FileChannelCache.getFile(dir, sensorID, currentPage, FileChannelCache.KIND_INDEX).delete();
 	}
 
+	/**
+	 * @return size of the dense index file, respectively of the sparse one
+	 */
 	public long getSize() {
-		File file = new File(dir, "NervousVM/" + Long.toHexString(sensorID) + "T" + Long.toHexString(currentPage));
+		File file = FileChannelCache.getFile(dir, sensorID, currentPage, FileChannelCache.KIND_INDEX);
 		if (file.exists()) {
 			return file.length();
-		} else {
-			return 0;
 		}
+		File sparseFile = SensorStoreSparseIndex.getFile(dir, sensorID, currentPage);
+		return sparseFile.exists() ? sparseFile.length() : 0;
 	}
 
 }
@@ -0,0 +1,158 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+
+public class SensorTail {
+
+	// Ring buffer of the most recent samples of one sensor, so that latest
+	// values and short recent ranges are answered without touching the
+	// pages. Record times are kept in a primitive array for the searches.
+	// The buffer holds every stored sample from coveredFrom on: it is filled
+	// with the newest samples of the pages when it is first used and with
+	// every batch that is stored afterwards.
+
+	public final static int DEFAULT_CAPACITY = 512;
+
+	private NervousVM vm;
+	private long sensorID;
+
+	private long[] timestamps;
+	private SensorData[] samples;
+	private int start;
+	private int count;
+	private long coveredFrom = Long.MAX_VALUE;
+	private boolean recovered;
+
+	SensorTail(NervousVM vm, long sensorID, int capacity) {
+		this.vm = vm;
+		this.sensorID = sensorID;
+		this.timestamps = new long[capacity];
+		this.samples = new SensorData[capacity];
+	}
+
+	/**
+	 * Fills the buffer with the newest samples of the pages. Has to be called with a lock of the sensor held.
+	 */
+	synchronized void recover() {
+		if (recovered) {
+			return;
+		}
+		List<SensorData> sensorDataList = vm.retrieveLastLocked(sensorID, samples.length);
+		if (sensorDataList.size() < samples.length) {
+			// All samples of the sensor
+			coveredFrom = Long.MIN_VALUE;
+		}
+		for (SensorData sensorData : sensorDataList) {
+			add(sensorData);
+		}
+		recovered = true;
+	}
+
+	/**
+	 * Adds stored samples in ascending order. Has to be called with the write lock of the sensor held.
+	 */
+	synchronized void addAll(List<SensorData> sensorDataList) {
+		for (SensorData sensorData : sensorDataList) {
+			add(sensorData);
+		}
+	}
+
+	private void add(SensorData sensorData) {
+		int capacity = samples.length;
+		if (count == capacity) {
+			// Overwrite the oldest sample
+			samples[start] = sensorData;
+			timestamps[start] = sensorData.getRecordTime();
+			start = (start + 1) % capacity;
+			coveredFrom = timestamps[start];
+		} else {
+			int index = (start + count) % capacity;
+			samples[index] = sensorData;
+			timestamps[index] = sensorData.getRecordTime();
+			count++;
+			if (coveredFrom == Long.MAX_VALUE) {
+				// Nothing older is known to the buffer
+				coveredFrom = sensorData.getRecordTime();
+			}
+		}
+	}
+
+	/**
+	 * Drops the samples up to and including @param timestamp, after their pages have been removed
+	 */
+	synchronized void removeUntil(long timestamp) {
+		while (count > 0 && timestamps[start] <= timestamp) {
+			samples[start] = null;
+			start = (start + 1) % samples.length;
+			count--;
+		}
+	}
+
+	/**
+	 * @return the newest sample or null if there is none
+	 */
+	synchronized SensorData getLatest() {
+		return count == 0 ? null : samples[(start + count - 1) % samples.length];
+	}
+
+	/**
+	 * @return the newest @param n samples in ascending order or null if the buffer does not hold that many of them
+	 */
+	synchronized List<SensorData> getLatest(int n) {
+		if (n > count && coveredFrom != Long.MIN_VALUE) {
+			return null;
+		}
+		n = Math.min(n, count);
+		ArrayList<SensorData> sensorDataList = new ArrayList<SensorData>(n);
+		for (int i = count - n; i < count; i++) {
+			sensorDataList.add(samples[(start + i) % samples.length]);
+		}
+		return sensorDataList;
+	}
+
+	/**
+	 * @return the samples in [fromTimestamp, toTimestamp] or null if the buffer does not cover the range
+	 */
+	synchronized List<SensorData> retrieve(long fromTimestamp, long toTimestamp) {
+		if (count == 0 || fromTimestamp < coveredFrom) {
+			return null;
+		}
+		int first = search(fromTimestamp, false);
+		int last = search(toTimestamp, true);
+		ArrayList<SensorData> sensorDataList = new ArrayList<SensorData>(Math.max(0, last - first));
+		for (int i = first; i < last; i++) {
+			sensorDataList.add(samples[(start + i) % samples.length]);
+		}
+		return sensorDataList;
+	}
+
+	/**
+	 * @return first position in the buffer with a timestamp >= @param timestamp, respectively > @param timestamp if
+	 *         @param after is set, count if there is none
+	 */
+	private int search(long timestamp, boolean after) {
+		int from = 0;
+		int to = count;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			long middleTimestamp = timestamps[(start + middle) % timestamps.length];
+			if (middleTimestamp < timestamp || (after && middleTimestamp == timestamp)) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		return from;
+	}
+
+	synchronized int getCount() {
+		return count;
+	}
+
+	int getCapacity() {
+		return samples.length;
+	}
+}
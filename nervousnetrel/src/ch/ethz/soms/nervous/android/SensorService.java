@@ -43,6 +43,8 @@ import ch.ethz.soms.nervous.android.sensors.SensorDescNoise;
 import ch.ethz.soms.nervous.android.sensors.SensorDescPressure;
 import ch.ethz.soms.nervous.android.sensors.SensorDescProximity;
 import ch.ethz.soms.nervous.android.sensors.SensorDescTemperature;
+import ch.ethz.soms.nervous.vm.NervousVM;
+import ch.ethz.soms.nervous.vm.SensorIngest;
 
 public class SensorService extends Service implements SensorEventListener, NoiseListener, BatteryListener, BLEBeaconListener, ConnectivityListener {
 
@@ -55,6 +57,7 @@ public class SensorService extends Service implements SensorEventListener, Noise
 	private HandlerThread hthread;
 	private Handler handler;
 	private Lock storeMutex;
+	private SensorIngest sensorIngest;
 
 	private SensorConfiguration sensorConfiguration;
 	private SensorService sensorListenerClass;
@@ -140,6 +143,15 @@ public class SensorService extends Service implements SensorEventListener, Noise
 		sensorBLEBeacon = new BLESensor(getApplicationContext());
 		sensorNoise = new NoiseSensor();
 
+		// Vector sensors keep their full pages in the compressed columnar format
+		NervousVM nervousVM = NervousVM.getInstance(getApplicationContext().getFilesDir());
+		nervousVM.setPageEncoding(SensorDescAccelerometer.SENSOR_ID, NervousVM.PAGE_ENCODING_COLUMNAR);
+		nervousVM.setPageEncoding(SensorDescGyroscope.SENSOR_ID, NervousVM.PAGE_ENCODING_COLUMNAR);
+		nervousVM.setPageEncoding(SensorDescMagnetic.SENSOR_ID, NervousVM.PAGE_ENCODING_COLUMNAR);
+		// Keep decoded pages for the statistics and charts, within 1/16 of the heap of this device class
+		ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+		nervousVM.setPageCacheBudget(activityManager.getMemoryClass() * 1024L * 1024L / 16);
+
 		// Schedule all sensors (initially)
 		scheduleSensor(SensorDescAccelerometer.SENSOR_ID);
 		scheduleSensor(SensorDescLight.SENSOR_ID);
@@ -277,6 +289,8 @@ public class SensorService extends Service implements SensorEventListener, Noise
 		wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
 		hthread = new HandlerThread("HandlerThread");
 		hthread.start();
+		// Samples are stored by a single writer thread, sensor callbacks must not block
+		sensorIngest = new SensorIngest(NervousVM.getInstance(getApplicationContext().getFilesDir()), SensorIngest.DEFAULT_CAPACITY, SensorIngest.BACKPRESSURE_DROP_OLDEST);
 		// Acquire wakelock, some sensors on some phones need this
 		if (!wakeLock.isHeld()) {
 			wakeLock.acquire();
@@ -291,6 +305,10 @@ public class SensorService extends Service implements SensorEventListener, Noise
 		}
 		sensorManager.unregisterListener(this);
 		hthread.quit();
+		// Store what is still queued
+		sensorIngest.close();
+		// Release the open page and index files of the storage
+		NervousVM.getInstance(getApplicationContext().getFilesDir()).close();
 	}
 
 	@Override
@@ -404,7 +422,7 @@ public class SensorService extends Service implements SensorEventListener, Noise
 						unregisterSensor(scs.getSensorId());
 					}
 					for (SensorDesc sensorDesc : sensorDescs) {
-						new StoreTask(getApplicationContext()).execute(sensorDesc);
+						sensorIngest.enqueue(sensorDesc.getSensorId(), sensorDesc.toProtoSensor());
 					}
 				} else {
 					unregisterSensor(scs.getSensorId());
@@ -26,11 +26,10 @@ import android.os.PowerManager;
 import android.util.Log;
 import android.widget.EditText;
 import ch.ethz.soms.nervous.android.sensors.SensorDesc;
-import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload;
-import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.Builder;
-import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
 import ch.ethz.soms.nervous.utils.NervousStatics;
 import ch.ethz.soms.nervous.vm.NervousVM;
+import ch.ethz.soms.nervous.vm.SensorCursor;
+import ch.ethz.soms.nervous.vm.SensorExport;
 
 public class UploadService extends Service {
 
@@ -46,6 +45,12 @@ public class UploadService extends Service {
 	
 	private static final String LOG_TAG = UploadService.class.getSimpleName();
 
+	private static final int UPLOAD_CHUNK_SIZE = 4096;
+
+	// Consumer names of the servers in the NervousVM
+	private static final String NERVOUS_CONSUMER = "nervous";
+	private static final String ADDITIONAL_CONSUMER = "additional";
+
 	private final IBinder mBinder = new UploadBinder();
 
 	private HandlerThread hthread;
@@ -138,6 +143,8 @@ public class UploadService extends Service {
 
 		Socket socket;
 		Socket optSocket;
+		// Reused for all uploads of the task
+		SensorExport export = new SensorExport();
 		public UploadTask(Socket socket, Socket optSocket) {
 			this.socket = socket;
 			this.optSocket = optSocket;
@@ -145,39 +152,79 @@ public class UploadService extends Service {
 		
 		@Override
 		protected Void doInBackground(SensorDesc... params) {
+			// Every server reads through its own consumer position, so a server that is down does not hold back the
+			// other one and catches up on its next connection
+			seedConsumers();
+			upload(socket, NERVOUS_CONSUMER);
+			upload(optSocket, ADDITIONAL_CONSUMER);
+			return null;
+		}
+
+		/**
+		 * Adds the consumer positions of the configured servers that have none yet, before any server uploads. The
+		 * first consumers of a sensor start where the timestamp based upload of older versions stopped, a server
+		 * added later starts at the position of an existing one, like the shared timestamp did.
+		 */
+		private void seedConsumers() {
+			final SharedPreferences settings = getApplicationContext().getSharedPreferences(NervousStatics.SENSOR_PREFS, 0);
+			NervousVM nvm = NervousVM.getInstance(getApplicationContext().getFilesDir());
+			String[] consumers = additionalIP != null && additionalPort != -1 ? new String[] { NERVOUS_CONSUMER, ADDITIONAL_CONSUMER } : new String[] { NERVOUS_CONSUMER };
+			for (long i = 0x0; i < 0xC; i++) {
+				boolean doShare = settings.getBoolean(Long.toHexString(i) + "_doShare", true);
+				if (doShare) {
+					List<String> names = nvm.getConsumerNames(i);
+					SensorCursor.Position position = null;
+					if (!names.isEmpty()) {
+						position = nvm.getConsumerPosition(i, names.contains(NERVOUS_CONSUMER) ? NERVOUS_CONSUMER : names.get(0));
+					}
+					long lastUploadedTimestamp = position == null ? nvm.getLastUploadedTimestamp(i) : 0;
+					for (String consumer : consumers) {
+						if (names.contains(consumer)) {
+							continue;
+						}
+						if (position == null) {
+							nvm.seekConsumer(i, consumer, lastUploadedTimestamp + 1);
+						} else {
+							nvm.commit(i, consumer, position);
+						}
+					}
+				}
+			}
+		}
+
+		private void upload(Socket server, String consumer) {
+			if (server == null) {
+				return;
+			}
 			final SharedPreferences settings = getApplicationContext().getSharedPreferences(NervousStatics.SENSOR_PREFS, 0);
 			try {
-				NervousVM nvm = NervousVM.getInstance(getApplicationContext().getFilesDir());				
-				OutputStream os = socket.getOutputStream();
-				OutputStream os2 = optSocket != null ? optSocket.getOutputStream() : null;
+				NervousVM nvm = NervousVM.getInstance(getApplicationContext().getFilesDir());
+				OutputStream os = server.getOutputStream();
 				for (long i = 0x0; i < 0xC; i++) {
 					boolean doShare = settings.getBoolean(Long.toHexString(i) + "_doShare", true);
 					if (doShare) {
-						Builder sub = SensorUpload.newBuilder();
-						sub.setHuuid(nvm.getUUID().getMostSignificantBits());
-						sub.setLuuid(nvm.getUUID().getLeastSignificantBits());
-						sub.setSensorId(i);
-						// Upload everything with "timestamp" > "last uploaded timestamp"
-						List<SensorData> sensorDataList = nvm.retrieve(i, nvm.getLastUploadedTimestamp(i) + 1, Long.MAX_VALUE);
-						// Only upload if there is actual data
-						if (sensorDataList != null && sensorDataList.size() > 0) {
-							sub.addAllSensorValues(sensorDataList);
-							sub.setUploadTime(System.currentTimeMillis());
-							sub.build().writeDelimitedTo(os);
-							sub.build().writeDelimitedTo(os2);
-							nvm.setLastUploadedTimestamp(i, sensorDataList.get(sensorDataList.size() - 1).getRecordTime());
+						// Upload everything after the committed position in chunks of bounded size, as frames copied from
+						// the pages
+						int count = UPLOAD_CHUNK_SIZE;
+						while (count == UPLOAD_CHUNK_SIZE) {
+							count = nvm.exportFrom(i, consumer, UPLOAD_CHUNK_SIZE, export);
+							// Only upload if there is actual data
+							if (count <= 0) {
+								break;
+							}
+							export.writeTo(os, System.currentTimeMillis());
+							nvm.commit(i, consumer, export.getPosition());
 						}
 					}
 				}
 				os.flush();
 				os.close();
-				socket.close();
+				server.close();
 			} catch (UnknownHostException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-			return null;
 		}
 	}
 
@@ -0,0 +1,129 @@
+package ch.ethz.soms.nervous.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.ethz.soms.nervous.android.sensors.SensorDesc;
+import ch.ethz.soms.nervous.android.sensors.SensorDescDummy;
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+import ch.ethz.soms.nervous.vm.NervousVM;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Concurrency stress test: several writer threads insert into their own sensor while reader threads retrieve whole
+ * sensors. Runs once with every call serialized on one monitor, like the former synchronized NervousVM, and once
+ * with the per sensor locks of NervousVM only.
+ */
+public class PerformanceTestTask3 extends AsyncTask<Void, Void, Void> {
+
+	private static final String LOG_TAG = "PerformanceTestTask3";
+	private static final int TEST_COUNT = 5000;
+	private static final int WRITER_COUNT = 8;
+	private static final int READER_COUNT = 4;
+	private Context context;
+
+	public PerformanceTestTask3(Context context) {
+		this.context = context;
+	}
+
+	@Override
+	protected Void doInBackground(Void... params) {
+		NervousVM vm = NervousVM.getInstance(context.getFilesDir());
+		runStress(vm, true);
+		runStress(vm, false);
+		return null;
+	}
+
+	private void runStress(final NervousVM vm, final boolean globalLock) {
+		final Object monitor = new Object();
+		final AtomicLong readCount = new AtomicLong();
+		final AtomicLong rejectCount = new AtomicLong();
+		final AtomicBoolean writersDone = new AtomicBoolean(false);
+
+		for (int sid = 0; sid < WRITER_COUNT; sid++) {
+			vm.deleteSensor(SensorDescDummy.SENSOR_ID - sid);
+		}
+
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int w = 0; w < WRITER_COUNT; w++) {
+			final long sensorId = SensorDescDummy.SENSOR_ID - w;
+			writers.add(new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < TEST_COUNT; i++) {
+						SensorDesc sensorDesc = new SensorDescDummy(i + 1, true, 12345, 13.5f, 12345L, 13.5d, "TEST");
+						boolean stored;
+						if (globalLock) {
+							synchronized (monitor) {
+								stored = vm.storeSensor(sensorId, sensorDesc.toProtoSensor());
+							}
+						} else {
+							stored = vm.storeSensor(sensorId, sensorDesc.toProtoSensor());
+						}
+						if (!stored) {
+							rejectCount.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int r = 0; r < READER_COUNT; r++) {
+			final long sensorId = SensorDescDummy.SENSOR_ID - r;
+			readers.add(new Thread() {
+				@Override
+				public void run() {
+					while (!writersDone.get()) {
+						List<SensorData> peek;
+						if (globalLock) {
+							synchronized (monitor) {
+								peek = vm.retrieve(sensorId, 0, Long.MAX_VALUE);
+							}
+						} else {
+							peek = vm.retrieve(sensorId, 0, Long.MAX_VALUE);
+						}
+						if (peek != null) {
+							readCount.addAndGet(peek.size());
+						}
+					}
+				}
+			});
+		}
+
+		long tick = System.currentTimeMillis();
+		for (Thread thread : writers) {
+			thread.start();
+		}
+		for (Thread thread : readers) {
+			thread.start();
+		}
+		try {
+			for (Thread thread : writers) {
+				thread.join();
+			}
+			writersDone.set(true);
+			for (Thread thread : readers) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Log.d(LOG_TAG, "Interrupted");
+			return;
+		}
+		long tock = System.currentTimeMillis();
+		double time = tock - tick;
+
+		String mode = globalLock ? "(GLOBAL LOCK)" : "(SENSOR LOCKS)";
+		Log.d(LOG_TAG, mode + " INSERTS: " + String.valueOf(WRITER_COUNT * TEST_COUNT) + " IN " + String.valueOf(time) + " ms");
+		Log.d(LOG_TAG, mode + " INSERTS PER SECOND: " + String.valueOf(WRITER_COUNT * TEST_COUNT * 1000 / time));
+		Log.d(LOG_TAG, mode + " RECORDS READ PER SECOND: " + String.valueOf(readCount.get() * 1000 / time));
+		Log.d(LOG_TAG, mode + " REJECTED: " + String.valueOf(rejectCount.get()));
+
+		for (int sid = 0; sid < WRITER_COUNT; sid++) {
+			vm.deleteSensor(SensorDescDummy.SENSOR_ID - sid);
+		}
+	}
+}
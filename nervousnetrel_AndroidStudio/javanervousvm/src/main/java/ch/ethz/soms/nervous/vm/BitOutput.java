@@ -0,0 +1,48 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.util.Arrays;
+
+class BitOutput {
+
+	// Growable MSB first bit stream used by the columnar block encoding
+
+	private byte[] buffer;
+	private int bytePosition;
+	private int bitPosition;
+
+	public BitOutput(int capacity) {
+		this.buffer = new byte[Math.max(16, capacity)];
+	}
+
+	public void writeBit(boolean bit) {
+		writeBits(bit ? 1 : 0, 1);
+	}
+
+	/**
+	 * Writes the lowest @param bits bits of @param value, most significant first
+	 */
+	public void writeBits(long value, int bits) {
+		while (bits > 0) {
+			if (bytePosition == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			int free = 8 - bitPosition;
+			int n = Math.min(free, bits);
+			int chunk = (int) ((value >>> (bits - n)) & ((1 << n) - 1));
+			buffer[bytePosition] |= chunk << (free - n);
+			bitPosition += n;
+			bits -= n;
+			if (bitPosition == 8) {
+				bytePosition++;
+				bitPosition = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return the written bits, padded with zeros to full bytes
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, bytePosition + (bitPosition > 0 ? 1 : 0));
+	}
+}
@@ -30,14 +30,17 @@ public class CountInputStream extends InputStream {
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
 		int bytesRead = in.read(b, off, len);
-		read = read + bytesRead;
+		if (bytesRead > 0) {
+			read = read + bytesRead;
+		}
 		return bytesRead;
 	}
 
 	@Override
 	public long skip(long n) throws IOException {
-		read = read + n;
-		return in.skip(n);
+		long skipped = in.skip(n);
+		read = read + skipped;
+		return skipped;
 	}
 
 	public long bytesRead() {
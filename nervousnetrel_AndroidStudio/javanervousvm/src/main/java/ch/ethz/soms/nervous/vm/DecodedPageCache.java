@@ -0,0 +1,230 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+
+public class DecodedPageCache {
+
+	// LRU of decoded pages, bounded by the approximate heap size of their
+	// samples, so that repeated queries over the same ranges do not parse the
+	// pages again. Full pages do not change until they are evicted from the
+	// store. The open head page of a sensor is appended to when samples are
+	// stored, as long as it is cached.
+
+	public final static long DEFAULT_BUDGET = 4 * 1024 * 1024;
+
+	// Approximate heap overhead of a decoded sample besides its serialized size
+	private final static int SAMPLE_OVERHEAD = 80;
+
+	private static class CachedPage {
+		long[] timestamps;
+		ArrayList<SensorData> samples;
+		long bytes;
+
+		CachedPage(List<SensorData> sensorDataList) {
+			timestamps = new long[Math.max(16, sensorDataList.size())];
+			samples = new ArrayList<SensorData>(sensorDataList.size());
+			append(sensorDataList);
+		}
+
+		void append(List<SensorData> sensorDataList) {
+			int count = samples.size();
+			if (count + sensorDataList.size() > timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, Math.max(2 * timestamps.length, count + sensorDataList.size()));
+			}
+			for (SensorData sensorData : sensorDataList) {
+				timestamps[count++] = sensorData.getRecordTime();
+				samples.add(sensorData);
+				bytes += sensorData.getSerializedSize() + SAMPLE_OVERHEAD;
+			}
+		}
+
+		/**
+		 * @return copy of the samples in [fromTimestamp, toTimestamp]
+		 */
+		List<SensorData> retrieve(long fromTimestamp, long toTimestamp) {
+			int count = samples.size();
+			int first = lowerBound(timestamps, count, fromTimestamp);
+			int last = upperBound(timestamps, count, toTimestamp);
+			if (first >= last) {
+				return new ArrayList<SensorData>();
+			}
+			return new ArrayList<SensorData>(samples.subList(first, last));
+		}
+	}
+
+	private long budget;
+	private long size;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private LinkedHashMap<PageKey, CachedPage> pages;
+
+	public DecodedPageCache() {
+		this(DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param budget
+	 *            approximate number of heap bytes of the cached samples, 0 disables the cache
+	 */
+	public DecodedPageCache(long budget) {
+		this.budget = budget;
+		this.pages = new LinkedHashMap<PageKey, CachedPage>(16, 0.75f, true);
+	}
+
+	/**
+	 * @return the samples of the page in [fromTimestamp, toTimestamp] or null if the page is not cached
+	 */
+	public synchronized List<SensorData> retrieve(long sensorID, long page, long fromTimestamp, long toTimestamp) {
+		CachedPage cachedPage = pages.get(new PageKey(sensorID, page, FileChannelCache.KIND_PAGE));
+		if (cachedPage == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return cachedPage.retrieve(fromTimestamp, toTimestamp);
+	}
+
+	/**
+	 * Caches all samples of a page in ascending order
+	 */
+	public synchronized void put(long sensorID, long page, List<SensorData> sensorDataList) {
+		PageKey key = new PageKey(sensorID, page, FileChannelCache.KIND_PAGE);
+		CachedPage cachedPage = new CachedPage(sensorDataList);
+		if (cachedPage.bytes > budget) {
+			remove(key);
+			return;
+		}
+		CachedPage previous = pages.put(key, cachedPage);
+		if (previous != null) {
+			size -= previous.bytes;
+		}
+		size += cachedPage.bytes;
+		trim();
+	}
+
+	/**
+	 * Appends samples that have just been stored to the page, if it is cached
+	 */
+	public synchronized void append(long sensorID, long page, List<SensorData> sensorDataList) {
+		PageKey key = new PageKey(sensorID, page, FileChannelCache.KIND_PAGE);
+		CachedPage cachedPage = pages.get(key);
+		if (cachedPage == null) {
+			return;
+		}
+		long bytes = cachedPage.bytes;
+		cachedPage.append(sensorDataList);
+		size += cachedPage.bytes - bytes;
+		if (cachedPage.bytes > budget) {
+			remove(key);
+		}
+		trim();
+	}
+
+	/**
+	 * Drops a page, e.g. when it is removed from the store
+	 */
+	public synchronized void evict(long sensorID, long page) {
+		remove(new PageKey(sensorID, page, FileChannelCache.KIND_PAGE));
+	}
+
+	private void remove(PageKey key) {
+		CachedPage cachedPage = pages.remove(key);
+		if (cachedPage != null) {
+			size -= cachedPage.bytes;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used pages until the cache fits into its budget
+	 */
+	private void trim() {
+		Iterator<Map.Entry<PageKey, CachedPage>> iterator = pages.entrySet().iterator();
+		while (size > budget && iterator.hasNext()) {
+			size -= iterator.next().getValue().bytes;
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		pages.clear();
+		size = 0;
+	}
+
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+		trim();
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return approximate number of heap bytes of the cached samples
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getPageCount() {
+		return pages.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return number of pages evicted to stay within the budget
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return first index in [0, count) with a timestamp >= @param timestamp, count if there is none
+	 */
+	private static int lowerBound(long[] timestamps, int count, long timestamp) {
+		int from = 0;
+		int to = count;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (timestamps[middle] < timestamp) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		return from;
+	}
+
+	/**
+	 * @return first index in [0, count) with a timestamp > @param timestamp, count if there is none
+	 */
+	private static int upperBound(long[] timestamps, int count, long timestamp) {
+		int from = 0;
+		int to = count;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (timestamps[middle] <= timestamp) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		return from;
+	}
+}
@@ -7,25 +7,75 @@ import java.io.ObjectInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
 
 public class NervousVM {
 
+	/**
+	 * Defaults of RetentionPolicy.DEFAULT
+	 */
 	public final static long MAX_PAGES = 5;
 	public final static long MAX_ENTRIES = 4096;
 
+	/**
+	 * Full pages stay length-delimited SensorData records
+	 */
+	public final static int PAGE_ENCODING_PROTOBUF = 0;
+	/**
+	 * Full pages are sealed into compressed columnar blocks, for sensors with a fixed set of numeric values
+	 */
+	public final static int PAGE_ENCODING_COLUMNAR = 1;
+
 	private static NervousVM nervousStorage;
 	private File dir;
 	private UUID uuid;
+	private FileChannelCache channelCache;
+	private volatile IndexMappingCache mappingCache;
+	private DecodedPageCache pageCache;
+
+	private ConcurrentHashMap<Long, SensorStoreConfig> sensorConfigs;
+	private volatile ConfigWritePolicy configWritePolicy = ConfigWritePolicy.DEFAULT;
+	private final AtomicBoolean configWriterRunning = new AtomicBoolean(false);
+	private volatile long diskBudget;
+	private final AtomicBoolean diskBudgetCheckDue = new AtomicBoolean(false);
+
+	// Running aggregates of the current pages, guarded by the sensor locks
+	private ConcurrentHashMap<Long, SensorAggregate> pageAggregates;
+	private ConcurrentHashMap<Long, SensorRollup> rollups;
+	private ConcurrentHashMap<Long, SensorConsumers> consumers;
+	private volatile RollupTier[] rollupTiers = RollupTier.DEFAULT_TIERS;
+	private ConcurrentHashMap<Long, SensorTail> tails;
+	private volatile int tailCapacity = SensorTail.DEFAULT_CAPACITY;
+	private final AtomicLong tailHits = new AtomicLong();
+	private final AtomicLong tailMisses = new AtomicLong();
+	private final AtomicLong scanPagesSkipped = new AtomicLong();
+
+	// Guarded by directoryLock for structural changes and by the sensor locks for the per sensor maps
+	private HashMap<Long, PageDirectory> directories;
+	private SensorStoreManifest manifest;
 
-	private HashMap<Long, TreeMap<PageInterval, PageInterval>> sensorTreeMap;
+	// Lock order: governorLock, vmLock, sensor lock, directoryLock. Sensor locks
+	// serialize the writers of one sensor against its readers, directoryLock
+	// guards the shared sensor tree map and the manifest, vmLock is only taken
+	// exclusively to close the VM or to switch modes. governorLock lets one
+	// thread at a time enforce the disk budget, one sensor lock after another.
+	private final ReentrantLock governorLock = new ReentrantLock();
+	private final ReentrantReadWriteLock vmLock = new ReentrantReadWriteLock();
+	private final ConcurrentHashMap<Long, ReentrantReadWriteLock> sensorLocks = new ConcurrentHashMap<Long, ReentrantReadWriteLock>();
+	private final Object directoryLock = new Object();
 
 	public static synchronized NervousVM getInstance(File dir) {
 		if (nervousStorage == null) {
@@ -36,6 +86,14 @@ public class NervousVM {
 
 	public NervousVM(File dir) {
 		this.dir = dir;
+		this.channelCache = new FileChannelCache(dir);
+		this.mappingCache = new IndexMappingCache(channelCache);
+		this.pageCache = new DecodedPageCache();
+		this.sensorConfigs = new ConcurrentHashMap<Long, SensorStoreConfig>();
+		this.pageAggregates = new ConcurrentHashMap<Long, SensorAggregate>();
+		this.rollups = new ConcurrentHashMap<Long, SensorRollup>();
+		this.consumers = new ConcurrentHashMap<Long, SensorConsumers>();
+		this.tails = new ConcurrentHashMap<Long, SensorTail>();
 		File file = new File(dir, "NervousVM");
 
 		if (!file.exists()) {
@@ -45,11 +103,22 @@ public class NervousVM {
 			}
 		}
 
-		boolean hasSTM = loadSTM();
-		if (!hasSTM) {
-			sensorTreeMap = new HashMap<Long, TreeMap<PageInterval, PageInterval>>();
-			writeSTM();
+		manifest = new SensorStoreManifest(dir);
+		directories = manifest.load();
+		boolean directoryLost = false;
+		if (directories == null) {
+			// Migrate from the serialized STM of older versions
+			boolean hasSTM = loadSTM();
+			if (!hasSTM) {
+				directories = new HashMap<Long, PageDirectory>();
+				directoryLost = true;
+			}
+			if (manifest.compact(directories)) {
+				new File(dir, "NervousVM/STM").delete();
+			}
 		}
+		// Repair what an interrupted write left behind
+		new SensorStoreRecovery(dir, channelCache).recover(directories, manifest, directoryLost);
 		boolean hasVMConfig = loadVMConfig();
 		if (!hasVMConfig) {
 			uuid = UUID.randomUUID();
@@ -57,50 +126,204 @@ public class NervousVM {
 		}
 	}
 
-	private synchronized boolean removeOldPages(long sensorID, long currentPage, long maxPages) {
-		boolean stmHasChanged = false;
+	private ReentrantReadWriteLock getSensorLock(long sensorID) {
+		ReentrantReadWriteLock lock = sensorLocks.get(sensorID);
+		if (lock == null) {
+			ReentrantReadWriteLock newLock = new ReentrantReadWriteLock();
+			lock = sensorLocks.putIfAbsent(sensorID, newLock);
+			if (lock == null) {
+				lock = newLock;
+			}
+		}
+		return lock;
+	}
+
+	private PageDirectory getDirectory(long sensorID) {
+		synchronized (directoryLock) {
+			return directories.get(sensorID);
+		}
+	}
+
+	/**
+	 * Finds the pages that may hold samples in [fromTimestamp, toTimestamp]. In the time partitioned layout the page
+	 * numbers follow from the slot length, otherwise the pages at both ends are looked up by their intervals. Only
+	 * pages that exist are returned, empty slots are skipped. Has to be called with a lock of the sensor held.
+	 * 
+	 * @return {first, end} indexes of the pages in @param directory, null if the sensor is unknown
+	 */
+	private int[] findPages(PageDirectory directory, long sensorID, long fromTimestamp, long toTimestamp) {
+		if (directory == null) {
+			return null;
+		}
+		SensorStoreConfig ssc = getConfig(sensorID);
+		if (ssc.getPageSlotMillis() > 0) {
+			long lowerPage = ssc.getSlot(fromTimestamp);
+			long upperPage = ssc.getSlot(toTimestamp);
+			if (lowerPage > upperPage) {
+				return new int[] { 0, 0 };
+			}
+			return new int[] { directory.ceiling(lowerPage), directory.floor(upperPage) + 1 };
+		}
+		int lower = directory.find(fromTimestamp);
+		int upper = directory.find(toTimestamp);
+		if (lower < 0 || upper < lower) {
+			return new int[] { 0, 0 };
+		}
+		return new int[] { lower, upper + 1 };
+	}
+
+	/**
+	 * Removes all pages of a sensor up to and including @param lastPage. Has to be called with the write lock of the
+	 * sensor held
+	 * 
+	 * @param removeSensor
+	 *            also drops the sensor from the directory
+	 */
+	private boolean removeOldPages(long sensorID, long lastPage, boolean removeSensor) {
 		boolean success = true;
-		TreeMap<PageInterval, PageInterval> treeMap = sensorTreeMap.get(sensorID);
-		if (treeMap != null) {
-			for (long i = currentPage - maxPages; i >= 0; i--) {
-				PageInterval pi = treeMap.get(new PageInterval(new Interval(0, 0), i));
-				if (pi == null) {
+		ArrayList<Long> evictedPages = new ArrayList<Long>();
+		long evictedUpper = Long.MIN_VALUE;
+		synchronized (directoryLock) {
+			PageDirectory directory = directories.get(sensorID);
+			if (directory != null) {
+				// Time partitioned pages leave gaps for empty slots
+				int oldPages = directory.floor(lastPage) + 1;
+				for (int i = oldPages - 1; i >= 0; i--) {
+					manifest.removePage(sensorID, directory.getPage(i));
+					evictedPages.add(directory.getPage(i));
+					evictedUpper = Math.max(evictedUpper, directory.getUpper(i));
+				}
+				directory.removeRange(0, oldPages);
+				if (removeSensor) {
+					// All removed, delete sensor as a whole
+					directories.remove(sensorID);
+					manifest.removeSensor(sensorID);
+				} else if (!evictedPages.isEmpty() && !directory.isEmpty()) {
+					// Correct so that the time interval is always from 0 to MAX_LONG in the directory
+					if (directory.getLower(0) != 0) {
+						directory.setLower(0, 0);
+						manifest.putPage(sensorID, directory.getPage(0), 0, directory.getUpper(0));
+					}
+				}
+				manifest.compactIfNeeded(directories);
+			}
+		}
+		for (Long page : evictedPages) {
+			SensorStorePage stp = new SensorStorePage(dir, channelCache, mappingCache, sensorID, page);
+			boolean successEvict = stp.evict();
+			pageCache.evict(sensorID, page);
+			success = success && successEvict;
+		}
+		SensorTail tail = tails.get(sensorID);
+		if (removeSensor) {
+			tails.remove(sensorID);
+		} else if (tail != null && !evictedPages.isEmpty()) {
+			tail.removeUntil(evictedUpper);
+		}
+		return success;
+	}
+
+	/**
+	 * Removes the oldest full pages of a sensor until its retention policy holds again. Has to be called with the
+	 * write lock of the sensor held.
+	 */
+	private boolean applyRetention(SensorStoreConfig ssc) {
+		long sensorID = ssc.getSensorID();
+		long currentPage = ssc.getCurrentPage();
+		RetentionPolicy policy = ssc.getRetentionPolicy();
+		long lastPage = -1;
+		if (policy.getMaxPages() > 0) {
+			lastPage = currentPage - policy.getMaxPages();
+		}
+		PageDirectory directory = getDirectory(sensorID);
+		if (directory == null) {
+			return true;
+		}
+		if (policy.getMaxAgeMillis() > 0) {
+			long oldest = System.currentTimeMillis() - policy.getMaxAgeMillis();
+			for (int i = 0; i < directory.size(); i++) {
+				if (directory.getPage(i) >= currentPage || directory.getUpper(i) >= oldest) {
 					break;
 				}
-				treeMap.remove(pi);
-				SensorStorePage stp = new SensorStorePage(dir, sensorID, pi.getPageNumber());
-				boolean successEvict = stp.evict();
-				success = success && successEvict;
+				lastPage = Math.max(lastPage, directory.getPage(i));
 			}
-			if (maxPages == 0) {
-				// All removed, delete sensor as a whole
-				sensorTreeMap.remove(sensorID);
-				stmHasChanged = true;
-			} else {
-				PageInterval pi = treeMap.get(new PageInterval(new Interval(0, 0), currentPage - maxPages + 1));
-				// Correct so that the time interval is always from 0 to MAX_LONG in the tree
-				if (pi != null) {
-					treeMap.remove(pi);
-					pi.getInterval().setLower(0);
-					treeMap.put(pi, pi);
+		}
+		if (policy.getMaxBytes() > 0 || policy.getMaxSamples() > 0) {
+			// Sum up from the newest page until a limit is exceeded. The current page is counted as if it was full
+			// already, estimated by the size of the last full page, so that the limits also hold while it fills up.
+			long samples = Math.max(ssc.getEntryNumber(), policy.getPageEntries());
+			long bytes = new SensorStorePage(dir, channelCache, mappingCache, sensorID, currentPage).getSize();
+			if (directory.size() > 1) {
+				bytes = Math.max(bytes, new SensorStorePage(dir, channelCache, mappingCache, sensorID, directory.getPage(directory.size() - 2)).getSize());
+			}
+			for (int i = directory.size() - 1; i >= 0; i--) {
+				long page = directory.getPage(i);
+				if (page >= currentPage) {
+					continue;
+				}
+				if (page <= lastPage) {
+					break;
+				}
+				SensorStorePage ssp = new SensorStorePage(dir, channelCache, mappingCache, sensorID, page);
+				samples += ssp.getEntryCount();
+				bytes += ssp.getSize();
+				if ((policy.getMaxSamples() > 0 && samples > policy.getMaxSamples()) || (policy.getMaxBytes() > 0 && bytes > policy.getMaxBytes())) {
+					lastPage = page;
+					break;
 				}
 			}
 		}
-		if(stmHasChanged) {
-			writeSTM();
+		if (lastPage >= 0 && policy.getMaxUnconsumedBytes() > 0) {
+			// Keep the newest pages that a consumer has not read yet, as many as fit into the cap
+			long consumedPage = getConsumers(sensorID).getFirstPage();
+			long keepFrom = lastPage + 1;
+			long bytes = 0;
+			for (int i = directory.floor(Math.min(lastPage, currentPage - 1)); i >= 0 && directory.getPage(i) >= consumedPage; i--) {
+				bytes += new SensorStorePage(dir, channelCache, mappingCache, sensorID, directory.getPage(i)).getSize();
+				if (bytes > policy.getMaxUnconsumedBytes()) {
+					break;
+				}
+				keepFrom = directory.getPage(i);
+			}
+			lastPage = keepFrom - 1;
+		}
+		if (lastPage < 0) {
+			return true;
+		}
+		return removeOldPages(sensorID, Math.min(lastPage, currentPage - 1), false);
+	}
+
+	public List<SensorData> retrieve(long sensorID, long fromTimestamp, long toTimestamp) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			SensorTail tail = getTail(sensorID);
+			if (tail != null) {
+				List<SensorData> sensorDataList = tail.retrieve(fromTimestamp, toTimestamp);
+				if (sensorDataList != null) {
+					tailHits.incrementAndGet();
+					return sensorDataList;
+				}
+				tailMisses.incrementAndGet();
+			}
+			return retrieveLocked(sensorID, fromTimestamp, toTimestamp);
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
 		}
-		return success;
 	}
 
-	public synchronized List<SensorData> retrieve(long sensorID, long fromTimestamp, long toTimestamp) {
-		TreeMap<PageInterval, PageInterval> treeMap = sensorTreeMap.get(sensorID);
-		if (treeMap != null) {
-			PageInterval lower = treeMap.get(new PageInterval(new Interval(fromTimestamp, fromTimestamp), -1));
-			PageInterval upper = treeMap.get(new PageInterval(new Interval(toTimestamp, toTimestamp), -1));
+	/**
+	 * Same as retrieve, has to be called with a lock of the sensor held
+	 */
+	List<SensorData> retrieveLocked(long sensorID, long fromTimestamp, long toTimestamp) {
+		PageDirectory directory = getDirectory(sensorID);
+		int[] pages = findPages(directory, sensorID, fromTimestamp, toTimestamp);
+		if (pages != null) {
 			ArrayList<SensorData> sensorData = new ArrayList<SensorData>();
-			for (long i = lower.getPageNumber(); i <= upper.getPageNumber(); i++) {
-				SensorStorePage stp = new SensorStorePage(dir, sensorID, i);
-				List<SensorData> sensorDataFromPage = stp.retrieve(fromTimestamp, toTimestamp);
+			for (int p = pages[0]; p < pages[1]; p++) {
+				List<SensorData> sensorDataFromPage = retrievePage(sensorID, directory.getPage(p), fromTimestamp, toTimestamp);
 				if (sensorDataFromPage != null) {
 					sensorData.addAll(sensorDataFromPage);
 				}
@@ -111,10 +334,1156 @@ public class NervousVM {
 		}
 	}
 
-	public synchronized void markLastUploaded(long sensorID, long lastUploaded) {
-		SensorStoreConfig ssc = new SensorStoreConfig(dir, sensorID);
-		ssc.setLastUploadedTimestamp(lastUploaded);
-		ssc.store();
+	/**
+	 * Counts the samples in [fromTimestamp, toTimestamp] from the page indexes alone, as the distance of the index
+	 * positions of the first and the last sample in the range per page. Sealed pages are counted from their summaries.
+	 * 
+	 * @return number of samples, 0 if the sensor is unknown
+	 */
+	public long count(long sensorID, long fromTimestamp, long toTimestamp) {
+		return count(sensorID, fromTimestamp, toTimestamp, false);
+	}
+
+	/**
+	 * Same as count(sensorID, fromTimestamp, toTimestamp) > 0, stops at the first page with a sample in the range
+	 */
+	public boolean exists(long sensorID, long fromTimestamp, long toTimestamp) {
+		return count(sensorID, fromTimestamp, toTimestamp, true) > 0;
+	}
+
+	private long count(long sensorID, long fromTimestamp, long toTimestamp, boolean any) {
+		if (fromTimestamp > toTimestamp) {
+			return 0;
+		}
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			PageDirectory directory = getDirectory(sensorID);
+			int[] pages = findPages(directory, sensorID, fromTimestamp, toTimestamp);
+			if (pages == null) {
+				return 0;
+			}
+			SensorStoreConfig ssc = getConfig(sensorID);
+			long count = 0;
+			for (int p = pages[0]; p < pages[1]; p++) {
+				if (any && count > 0) {
+					break;
+				}
+				long i = directory.getPage(p);
+				if (i == ssc.getCurrentPage() && fromTimestamp <= directory.getLower(p) && toTimestamp >= ssc.getLastWrittenTimestamp()) {
+					count += ssc.getEntryNumber();
+				} else {
+					SensorStorePage stp = new SensorStorePage(dir, channelCache, mappingCache, sensorID, i);
+					count += Math.max(0, stp.count(fromTimestamp, toTimestamp));
+				}
+			}
+			return count;
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Bulk read into primitive columns: fills @param sensorColumns with the samples in [fromTimestamp, toTimestamp]
+	 * decoded straight from the pages, without building SensorData messages. Reusing the result for the next read
+	 * avoids allocating per sample.
+	 *
+	 * @return false if the sensor is unknown
+	 */
+	public boolean retrieveColumns(long sensorID, long fromTimestamp, long toTimestamp, SensorColumns sensorColumns) {
+		sensorColumns.clear();
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			PageDirectory directory = getDirectory(sensorID);
+			int[] pages = findPages(directory, sensorID, fromTimestamp, toTimestamp);
+			if (pages == null) {
+				return false;
+			}
+			for (int p = pages[0]; p < pages[1]; p++) {
+				SensorStorePage stp = new SensorStorePage(dir, channelCache, mappingCache, sensorID, directory.getPage(p));
+				stp.retrieveColumns(fromTimestamp, toTimestamp, sensorColumns);
+			}
+			return true;
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns at most @param maxPoints samples of [fromTimestamp, toTimestamp] at evenly spaced positions, e.g. for
+	 * chart previews. The page indexes give the position of every sample, so only the records at the chosen positions
+	 * are read and decoded.
+	 * 
+	 * @return the samples in ascending order, all of them if the range holds no more than maxPoints, null if the
+	 *         sensor is unknown
+	 */
+	public List<SensorData> retrieveSampled(long sensorID, long fromTimestamp, long toTimestamp, int maxPoints) {
+		if (maxPoints <= 0) {
+			throw new IllegalArgumentException("No points to sample");
+		}
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			long[][] entryRanges = findEntryRanges(sensorID, fromTimestamp, toTimestamp);
+			if (entryRanges == null) {
+				return null;
+			}
+			long total = 0;
+			for (long[] entryRange : entryRanges) {
+				total += entryRange[2];
+			}
+			if (total <= maxPoints) {
+				return retrieveLocked(sensorID, fromTimestamp, toTimestamp);
+			}
+			long[] positions = new long[maxPoints];
+			for (int k = 0; k < positions.length; k++) {
+				// First and last sample included
+				positions[k] = positions.length == 1 ? 0 : k * (total - 1) / (positions.length - 1);
+			}
+			return retrievePositions(sensorID, entryRanges, positions, positions.length, fromTimestamp, toTimestamp);
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Downsamples [fromTimestamp, toTimestamp] into @param slots slots of evenly spaced positions and returns the
+	 * samples with the minimum and the maximum of one value column of every slot, so that spikes survive in chart
+	 * previews. The column is decoded into primitive arrays one page at a time, only the chosen samples are read as
+	 * SensorData. Samples without the column read as 0, a slot without the column at all keeps its first and last
+	 * sample.
+	 * 
+	 * @param type
+	 *            one of the SensorColumns VALUE types
+	 * @param index
+	 *            index of the value within its type
+	 * @return up to two samples per slot in ascending order, all samples if the range holds no more than two per slot,
+	 *         null if the sensor is unknown
+	 */
+	public List<SensorData> retrieveEnvelope(long sensorID, long fromTimestamp, long toTimestamp, int slots, int type, int index) {
+		if (slots <= 0 || slots > Integer.MAX_VALUE / 2 || type < SensorColumns.VALUE_BOOL || type > SensorColumns.VALUE_DOUBLE || index < 0) {
+			throw new IllegalArgumentException("Invalid envelope");
+		}
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			long[][] entryRanges = findEntryRanges(sensorID, fromTimestamp, toTimestamp);
+			if (entryRanges == null) {
+				return null;
+			}
+			long total = 0;
+			for (long[] entryRange : entryRanges) {
+				total += entryRange[2];
+			}
+			if (total <= 2L * slots) {
+				return retrieveLocked(sensorID, fromTimestamp, toTimestamp);
+			}
+			long[] positions = new long[2 * slots];
+			int positionCount = 0;
+			SensorColumns sensorColumns = new SensorColumns();
+			int slot = 0;
+			long slotEnd = getSlotStart(1, slots, total);
+			// First, last, minimum and maximum position of the current slot
+			long first = -1;
+			long last = -1;
+			long minPosition = -1;
+			long maxPosition = -1;
+			double min = 0;
+			double max = 0;
+			boolean slotHasColumn = false;
+			long pageStart = 0;
+			for (long[] entryRange : entryRanges) {
+				sensorColumns.clear();
+				SensorStorePage stp = new SensorStorePage(dir, channelCache, mappingCache, sensorID, entryRange[0]);
+				stp.retrieveColumns(fromTimestamp, toTimestamp, sensorColumns);
+				int rows = (int) Math.min(entryRange[2], sensorColumns.getCount());
+				boolean hasColumn = index < sensorColumns.getColumnCount(type);
+				for (int row = 0; row < rows; row++) {
+					long position = pageStart + row;
+					if (position >= slotEnd) {
+						if (first >= 0) {
+							positionCount = addEnvelope(positions, positionCount, slotHasColumn ? minPosition : first, slotHasColumn ? maxPosition : last);
+						}
+						first = -1;
+						while (position >= slotEnd) {
+							slot++;
+							slotEnd = getSlotStart(slot + 1, slots, total);
+						}
+					}
+					double value = hasColumn ? sensorColumns.getValue(type, index, row) : 0;
+					if (first < 0) {
+						first = position;
+						minPosition = position;
+						maxPosition = position;
+						min = value;
+						max = value;
+						slotHasColumn = hasColumn;
+					} else {
+						slotHasColumn |= hasColumn;
+						if (value < min) {
+							minPosition = position;
+							min = value;
+						} else if (value > max) {
+							maxPosition = position;
+							max = value;
+						}
+					}
+					last = position;
+				}
+				pageStart += entryRange[2];
+			}
+			if (first >= 0) {
+				positionCount = addEnvelope(positions, positionCount, slotHasColumn ? minPosition : first, slotHasColumn ? maxPosition : last);
+			}
+			return retrievePositions(sensorID, entryRanges, positions, positionCount, fromTimestamp, toTimestamp);
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return first position of a slot when @param total positions are split into @param slots even slots
+	 */
+	private static long getSlotStart(int slot, int slots, long total) {
+		// slot * total / slots without overflowing
+		return total / slots * slot + total % slots * slot / slots;
+	}
+
+	/**
+	 * Appends the positions of a slot in ascending order, once if they are equal
+	 * 
+	 * @return the new number of positions
+	 */
+	private static int addEnvelope(long[] positions, int positionCount, long a, long b) {
+		positions[positionCount++] = Math.min(a, b);
+		if (a != b) {
+			positions[positionCount++] = Math.max(a, b);
+		}
+		return positionCount;
+	}
+
+	/**
+	 * Finds the entries of every page that fall into the range, has to be called with a lock of the sensor held
+	 * 
+	 * @return {page, first entry, number of entries} per page in ascending order or null if the sensor is unknown
+	 */
+	private long[][] findEntryRanges(long sensorID, long fromTimestamp, long toTimestamp) {
+		PageDirectory directory = getDirectory(sensorID);
+		int[] pages = findPages(directory, sensorID, fromTimestamp, toTimestamp);
+		if (pages == null) {
+			return null;
+		}
+		ArrayList<long[]> entryRanges = new ArrayList<long[]>();
+		if (fromTimestamp > toTimestamp) {
+			return new long[0][];
+		}
+		for (int p = pages[0]; p < pages[1]; p++) {
+			long i = directory.getPage(p);
+			long[] entryRange = new SensorStorePage(dir, channelCache, mappingCache, sensorID, i).findEntryRange(fromTimestamp, toTimestamp);
+			if (entryRange != null && entryRange[1] > 0) {
+				entryRanges.add(new long[] { i, entryRange[0], entryRange[1] });
+			}
+		}
+		return entryRanges.toArray(new long[entryRanges.size()][]);
+	}
+
+	/**
+	 * Reads the samples at the given positions within the range described by @param entryRanges, has to be called with
+	 * a lock of the sensor held
+	 * 
+	 * @param positions
+	 *            ascending positions, counted from the first sample of the range
+	 */
+	private List<SensorData> retrievePositions(long sensorID, long[][] entryRanges, long[] positions, int positionCount, long fromTimestamp, long toTimestamp) {
+		ArrayList<SensorData> sensorDataList = new ArrayList<SensorData>(positionCount);
+		long[] entries = new long[positionCount];
+		long pageStart = 0;
+		int next = 0;
+		for (long[] entryRange : entryRanges) {
+			if (next < positionCount && positions[next] < pageStart + entryRange[2]) {
+				// Pages in the decoded page cache need no reads
+				List<SensorData> cached = pageCache.retrieve(sensorID, entryRange[0], fromTimestamp, toTimestamp);
+				if (cached != null && cached.size() == entryRange[2]) {
+					int previous = -1;
+					while (next < positionCount && positions[next] < pageStart + entryRange[2]) {
+						int position = (int) (positions[next++] - pageStart);
+						if (position != previous) {
+							sensorDataList.add(cached.get(position));
+							previous = position;
+						}
+					}
+				}
+			}
+			int entryCount = 0;
+			while (next < positionCount && positions[next] < pageStart + entryRange[2]) {
+				long entry = entryRange[1] + positions[next++] - pageStart;
+				if (entryCount == 0 || entries[entryCount - 1] != entry) {
+					entries[entryCount++] = entry;
+				}
+			}
+			if (entryCount > 0) {
+				SensorStorePage stp = new SensorStorePage(dir, channelCache, mappingCache, sensorID, entryRange[0]);
+				List<SensorData> sensorDataFromPage = stp.retrieveEntries(entries, 0, entryCount);
+				if (sensorDataFromPage != null) {
+					sensorDataList.addAll(sensorDataFromPage);
+				}
+			}
+			pageStart += entryRange[2];
+		}
+		return sensorDataList;
+	}
+
+	/**
+	 * @return the newest sample of the sensor or null if it has none
+	 */
+	public SensorData getLatest(long sensorID) {
+		List<SensorData> sensorDataList = getLatest(sensorID, 1);
+		return sensorDataList.isEmpty() ? null : sensorDataList.get(0);
+	}
+
+	/**
+	 * Returns the newest samples of a sensor, from the in-memory tail if it holds enough of them
+	 * 
+	 * @return up to @param n samples in ascending order
+	 */
+	public List<SensorData> getLatest(long sensorID, int n) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			SensorTail tail = getTail(sensorID);
+			if (tail != null) {
+				List<SensorData> sensorDataList = tail.getLatest(n);
+				if (sensorDataList != null) {
+					tailHits.incrementAndGet();
+					return sensorDataList;
+				}
+				tailMisses.incrementAndGet();
+			}
+			return retrieveLastLocked(sensorID, n);
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads the newest samples of a sensor from its pages, has to be called with a lock of the sensor held
+	 * 
+	 * @return up to @param n samples in ascending order
+	 */
+	List<SensorData> retrieveLastLocked(long sensorID, int n) {
+		PageDirectory directory = getDirectory(sensorID);
+		ArrayList<List<SensorData>> newestFirst = new ArrayList<List<SensorData>>();
+		int count = 0;
+		for (int i = directory == null ? -1 : directory.size() - 1; i >= 0 && count < n; i--) {
+			List<SensorData> sensorDataFromPage = retrievePage(sensorID, directory.getPage(i), Long.MIN_VALUE, Long.MAX_VALUE);
+			if (sensorDataFromPage != null && !sensorDataFromPage.isEmpty()) {
+				int skip = Math.max(0, sensorDataFromPage.size() - (n - count));
+				newestFirst.add(sensorDataFromPage.subList(skip, sensorDataFromPage.size()));
+				count += sensorDataFromPage.size() - skip;
+			}
+		}
+		ArrayList<SensorData> sensorDataList = new ArrayList<SensorData>(count);
+		for (int i = newestFirst.size() - 1; i >= 0; i--) {
+			sensorDataList.addAll(newestFirst.get(i));
+		}
+		return sensorDataList;
+	}
+
+	/**
+	 * Returns the in-memory tail of a sensor, filling it from the pages on first use. Has to be called with a lock of
+	 * the sensor held.
+	 * 
+	 * @return the tail or null if tails are disabled
+	 */
+	private SensorTail getTail(long sensorID) {
+		int capacity = tailCapacity;
+		if (capacity <= 0) {
+			return null;
+		}
+		SensorTail tail = tails.get(sensorID);
+		if (tail == null) {
+			tail = new SensorTail(this, sensorID, capacity);
+			SensorTail existing = tails.putIfAbsent(sensorID, tail);
+			if (existing != null) {
+				tail = existing;
+			}
+		}
+		tail.recover();
+		return tail;
+	}
+
+	/**
+	 * Sets the number of newest samples per sensor kept in memory for latest values and recent ranges, 0 disables
+	 * the tails
+	 */
+	public void setTailCapacity(int tailCapacity) {
+		vmLock.writeLock().lock();
+		try {
+			this.tailCapacity = tailCapacity;
+			tails.clear();
+		} finally {
+			vmLock.writeLock().unlock();
+		}
+	}
+
+	public int getTailCapacity() {
+		return tailCapacity;
+	}
+
+	/**
+	 * @return number of latest and range reads answered from the in-memory tails
+	 */
+	public long getTailHits() {
+		return tailHits.get();
+	}
+
+	/**
+	 * @return number of latest and range reads that had to go to the pages
+	 */
+	public long getTailMisses() {
+		return tailMisses.get();
+	}
+
+	/**
+	 * Reads the samples of a page in [fromTimestamp, toTimestamp], decoding and caching the whole page on a cache miss.
+	 * Has to be called with a lock of the sensor held.
+	 */
+	private List<SensorData> retrievePage(long sensorID, long page, long fromTimestamp, long toTimestamp) {
+		List<SensorData> sensorDataFromPage = pageCache.retrieve(sensorID, page, fromTimestamp, toTimestamp);
+		if (sensorDataFromPage != null) {
+			return sensorDataFromPage;
+		}
+		SensorStorePage stp = new SensorStorePage(dir, channelCache, mappingCache, sensorID, page);
+		if (pageCache.getBudget() <= 0) {
+			return stp.retrieve(fromTimestamp, toTimestamp);
+		}
+		List<SensorData> sensorDataList = stp.retrieveAll();
+		if (sensorDataList == null) {
+			return null;
+		}
+		pageCache.put(sensorID, page, sensorDataList);
+		int first = 0;
+		while (first < sensorDataList.size() && sensorDataList.get(first).getRecordTime() < fromTimestamp) {
+			first++;
+		}
+		int last = sensorDataList.size();
+		while (last > first && sensorDataList.get(last - 1).getRecordTime() > toTimestamp) {
+			last--;
+		}
+		return sensorDataList.subList(first, last);
+	}
+
+	/**
+	 * Returns count, sum, minimum and maximum of every value column per bucket of the finest rollup tier that reaches
+	 * back to fromTimestamp, e.g. per minute for the last days and per hour for older ranges. Rollups outlive the
+	 * pages they were computed from.
+	 * 
+	 * @return the buckets that start in [fromTimestamp, toTimestamp], the first one may begin before fromTimestamp
+	 */
+	public List<RollupBucket> retrieveRollup(long sensorID, long fromTimestamp, long toTimestamp) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			SensorRollup rollup = getRollup(sensorID);
+			rollup.recover();
+			return rollup.retrieve(fromTimestamp, toTimestamp);
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	private SensorRollup getRollup(long sensorID) {
+		SensorRollup rollup = rollups.get(sensorID);
+		if (rollup == null) {
+			rollup = new SensorRollup(this, sensorID, rollupTiers);
+			SensorRollup existing = rollups.putIfAbsent(sensorID, rollup);
+			if (existing != null) {
+				rollup = existing;
+			}
+		}
+		return rollup;
+	}
+
+	/**
+	 * Sets the rollup tiers of all sensors, from the finest to the coarsest. The bucket length of every tier has to be
+	 * a multiple of the one of the previous tier. Tier files of a different bucket length are started over.
+	 */
+	public void setRollupTiers(RollupTier... tiers) {
+		if (tiers == null || tiers.length == 0) {
+			throw new IllegalArgumentException("No rollup tiers");
+		}
+		for (int i = 1; i < tiers.length; i++) {
+			if (tiers[i].getBucketMillis() % tiers[i - 1].getBucketMillis() != 0) {
+				throw new IllegalArgumentException("Rollup tiers do not nest");
+			}
+		}
+		vmLock.writeLock().lock();
+		try {
+			rollupTiers = tiers.clone();
+			rollups.clear();
+		} finally {
+			vmLock.writeLock().unlock();
+		}
+	}
+
+	public RollupTier[] getRollupTiers() {
+		return rollupTiers.clone();
+	}
+
+	/**
+	 * Computes count, sum, sum of squares, minimum and maximum of every value column in [fromTimestamp, toTimestamp].
+	 * Pages that lie completely within the range are answered from their summaries, only the pages at the two ends
+	 * are decoded.
+	 * 
+	 * @return the aggregate, empty if the sensor has no data in the range
+	 */
+	public SensorAggregate retrieveAggregate(long sensorID, long fromTimestamp, long toTimestamp) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			SensorAggregate aggregate = new SensorAggregate();
+			PageDirectory directory = getDirectory(sensorID);
+			int[] pages = findPages(directory, sensorID, fromTimestamp, toTimestamp);
+			if (pages == null) {
+				return aggregate;
+			}
+			SensorStoreConfig ssc = getConfig(sensorID);
+			for (int p = pages[0]; p < pages[1]; p++) {
+				long i = directory.getPage(p);
+				SensorAggregate pageAggregate = null;
+				if (fromTimestamp <= directory.getLower(p)) {
+					if (i == ssc.getCurrentPage()) {
+						SensorAggregate running = pageAggregates.get(sensorID);
+						if (toTimestamp >= ssc.getLastWrittenTimestamp() && running != null && running.getCount() == ssc.getEntryNumber()) {
+							pageAggregate = running;
+						}
+					} else if (toTimestamp >= directory.getUpper(p)) {
+						pageAggregate = SensorAggregate.load(dir, sensorID, i);
+					}
+				}
+				if (pageAggregate != null) {
+					aggregate.merge(pageAggregate);
+				} else {
+					List<SensorData> sensorDataFromPage = retrievePage(sensorID, i, fromTimestamp, toTimestamp);
+					if (sensorDataFromPage != null) {
+						aggregate.addAll(sensorDataFromPage);
+					}
+				}
+			}
+			return aggregate;
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the samples in [fromTimestamp, toTimestamp] that match @param predicate, e.g. all readings above a
+	 * threshold. Pages whose summary shows that none of their samples can match are not read, the others are filtered
+	 * while they are decoded, so only matching samples are materialized.
+	 * 
+	 * @return the matching samples or null if the sensor is unknown
+	 */
+	public List<SensorData> scan(long sensorID, long fromTimestamp, long toTimestamp, SensorPredicate predicate) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			PageDirectory directory = getDirectory(sensorID);
+			int[] pages = findPages(directory, sensorID, fromTimestamp, toTimestamp);
+			if (pages == null) {
+				return null;
+			}
+			ArrayList<SensorData> sensorDataList = new ArrayList<SensorData>();
+			SensorStoreConfig ssc = getConfig(sensorID);
+			SensorColumns sensorColumns = new SensorColumns();
+			for (int p = pages[0]; p < pages[1]; p++) {
+				long i = directory.getPage(p);
+				SensorAggregate summary;
+				if (i == ssc.getCurrentPage()) {
+					SensorAggregate running = pageAggregates.get(sensorID);
+					summary = (running != null && running.getCount() == ssc.getEntryNumber()) ? running : null;
+				} else {
+					summary = SensorAggregate.load(dir, sensorID, i);
+				}
+				if (summary != null && !predicate.mayMatch(summary)) {
+					scanPagesSkipped.incrementAndGet();
+					continue;
+				}
+				List<SensorData> cached = pageCache.retrieve(sensorID, i, fromTimestamp, toTimestamp);
+				if (cached != null) {
+					for (SensorData sensorData : cached) {
+						if (predicate.matches(sensorData)) {
+							sensorDataList.add(sensorData);
+						}
+					}
+					continue;
+				}
+				SensorStorePage stp = new SensorStorePage(dir, channelCache, mappingCache, sensorID, i);
+				List<SensorData> matches = stp.scan(fromTimestamp, toTimestamp, predicate, sensorColumns);
+				if (matches != null) {
+					sensorDataList.addAll(matches);
+				}
+			}
+			return sensorDataList;
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of pages that scans did not read because their summary could not match the predicate
+	 */
+	public long getScanPagesSkipped() {
+		return scanPagesSkipped.get();
+	}
+
+	/**
+	 * Returns the running aggregate of the current page, rebuilding it from the page after a restart. Has to be called
+	 * with the write lock of the sensor held.
+	 */
+	private SensorAggregate getPageAggregate(SensorStoreConfig ssc) {
+		SensorAggregate aggregate = pageAggregates.get(ssc.getSensorID());
+		if (aggregate == null) {
+			if (ssc.getEntryNumber() > 0) {
+				aggregate = SensorAggregate.of(new SensorStorePage(dir, channelCache, mappingCache, ssc.getSensorID(), ssc.getCurrentPage()).retrieveAll());
+			} else {
+				aggregate = new SensorAggregate();
+			}
+			pageAggregates.put(ssc.getSensorID(), aggregate);
+		}
+		return aggregate;
+	}
+
+	/**
+	 * Opens a cursor that streams the samples in [fromTimestamp, toTimestamp] page by page. The cursor has to be
+	 * closed after use.
+	 * 
+	 * @return the cursor or null if the sensor has no data
+	 */
+	public SensorCursor openCursor(long sensorID, long fromTimestamp, long toTimestamp) {
+		return openCursor(sensorID, fromTimestamp, toTimestamp, -1);
+	}
+
+	/**
+	 * @param limit
+	 *            maximum number of samples returned by the cursor, -1 for no limit
+	 */
+	public SensorCursor openCursor(long sensorID, long fromTimestamp, long toTimestamp, long limit) {
+		long[] pages = findPageRange(sensorID, fromTimestamp, toTimestamp);
+		if (pages == null) {
+			return null;
+		}
+		return new SensorCursor(this, sensorID, pages[0], pages[1], 0, fromTimestamp, toTimestamp, limit, SensorCursor.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Opens a cursor that continues at the position where a previous cursor stopped
+	 * 
+	 * @param position
+	 *            as returned by SensorCursor.getPosition()
+	 */
+	public SensorCursor openCursor(long sensorID, SensorCursor.Position position, long toTimestamp, long limit) {
+		long[] pages = findPageRange(sensorID, 0, toTimestamp);
+		if (pages == null) {
+			return null;
+		}
+		long firstPage = Math.max(pages[0], position.getPage());
+		long offset = firstPage == position.getPage() ? position.getOffset() : 0;
+		return new SensorCursor(this, sensorID, firstPage, Math.max(firstPage, pages[1]), offset, position.getTimestamp(), toTimestamp, limit, SensorCursor.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Opens a cursor for a named consumer of a sensor, e.g. an upload target, that continues at the position the
+	 * consumer committed last. Every consumer reads the sensor independently of the others. The position of the
+	 * cursor is only stored by commit, once the samples have been processed.
+	 * 
+	 * @param maxRecords
+	 *            maximum number of samples returned by the cursor, -1 for no limit
+	 * @return the cursor or null if the sensor has no data
+	 */
+	public SensorCursor readFrom(long sensorID, String consumer, long maxRecords) {
+		SensorCursor.Position position = getConsumerPosition(sensorID, consumer);
+		if (position == null) {
+			position = new SensorCursor.Position(0, 0, 0);
+		}
+		return openCursor(sensorID, position, Long.MAX_VALUE, maxRecords);
+	}
+
+	/**
+	 * Upload export: fills @param sensorExport with at most @param maxRecords samples after the position a consumer
+	 * committed last, as a SensorUpload frame copied from the page files without decoding the samples. Commit
+	 * sensorExport.getPosition() once the frame has been uploaded.
+	 * 
+	 * @return number of samples in the frame, -1 if the sensor is unknown
+	 */
+	public int exportFrom(long sensorID, String consumer, int maxRecords, SensorExport sensorExport) {
+		SensorCursor.Position position = getConsumerPosition(sensorID, consumer);
+		if (position == null) {
+			position = new SensorCursor.Position(0, 0, 0);
+		}
+		return exportFrom(sensorID, position, maxRecords, sensorExport);
+	}
+
+	/**
+	 * @param position
+	 *            as returned by SensorCursor.getPosition() or SensorExport.getPosition()
+	 */
+	public int exportFrom(long sensorID, SensorCursor.Position position, int maxRecords, SensorExport sensorExport) {
+		UUID uuid = getUUID();
+		sensorExport.clear(sensorID, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), position);
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			PageDirectory directory = getDirectory(sensorID);
+			if (directory == null) {
+				return -1;
+			}
+			for (int p = directory.ceiling(position.getPage()); p < directory.size() && sensorExport.getCount() < maxRecords; p++) {
+				long page = directory.getPage(p);
+				long offset = page == position.getPage() ? position.getOffset() : 0;
+				SensorStorePage stp = new SensorStorePage(dir, channelCache, mappingCache, sensorID, page);
+				stp.export(position.getTimestamp(), offset, maxRecords - sensorExport.getCount(), sensorExport);
+			}
+			return sensorExport.getCount();
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Stores the position of a consumer, the samples before it are consumed. The positions of all consumers of the
+	 * sensor are replaced on disk at once.
+	 * 
+	 * @param position
+	 *            as returned by SensorCursor.getPosition() of a cursor opened with readFrom
+	 * @return false if the position could not be written, the previous one is kept then
+	 */
+	public boolean commit(long sensorID, String consumer, SensorCursor.Position position) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			return getConsumers(sensorID).commit(consumer, position);
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Moves a consumer to the first sample at or after @param timestamp, e.g. to start a new consumer where an
+	 * existing timestamp based bookmark stopped
+	 * 
+	 * @return false if the position could not be written
+	 */
+	public boolean seekConsumer(long sensorID, String consumer, long timestamp) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			PageDirectory directory = getDirectory(sensorID);
+			int[] pages = findPages(directory, sensorID, timestamp, Long.MAX_VALUE);
+			long page = 0;
+			if (pages != null && pages[0] < pages[1]) {
+				page = directory.getPage(pages[0]);
+			} else if (directory != null) {
+				page = getConfig(sensorID).getCurrentPage();
+			}
+			return getConsumers(sensorID).commit(consumer, new SensorCursor.Position(page, 0, timestamp));
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return committed position of a consumer or null if the consumer is unknown
+	 */
+	public SensorCursor.Position getConsumerPosition(long sensorID, String consumer) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			return getConsumers(sensorID).get(consumer);
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return names of the consumers of a sensor
+	 */
+	public List<String> getConsumerNames(long sensorID) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			return getConsumers(sensorID).getNames();
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Forgets a consumer, its unconsumed pages are no longer protected from retention
+	 * 
+	 * @return false if the positions could not be written
+	 */
+	public boolean removeConsumer(long sensorID, String consumer) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			return getConsumers(sensorID).remove(consumer);
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	private SensorConsumers getConsumers(long sensorID) {
+		SensorConsumers sensorConsumers = consumers.get(sensorID);
+		if (sensorConsumers == null) {
+			sensorConsumers = SensorConsumers.load(dir, sensorID);
+			SensorConsumers existing = consumers.putIfAbsent(sensorID, sensorConsumers);
+			if (existing != null) {
+				sensorConsumers = existing;
+			}
+		}
+		return sensorConsumers;
+	}
+
+	/**
+	 * Opens a cursor that streams the samples of several sensors in [fromTimestamp, toTimestamp] as rows aligned in
+	 * time, one sample per sensor. The cursor has to be closed after use.
+	 *
+	 * @param alignment
+	 *            one of the SensorMergeCursor ALIGN modes
+	 * @param tolerance
+	 *            maximum distance of a sample to the record time of its row in ALIGN_NEAREST
+	 */
+	public SensorMergeCursor openMergeCursor(long[] sensorIDs, long fromTimestamp, long toTimestamp, int alignment, long tolerance) {
+		SensorCursor[] cursors = new SensorCursor[sensorIDs.length];
+		for (int i = 0; i < sensorIDs.length; i++) {
+			cursors[i] = openCursor(sensorIDs[i], fromTimestamp, toTimestamp);
+		}
+		return new SensorMergeCursor(cursors, alignment, tolerance);
+	}
+
+	/**
+	 * @return {first page, last page} touched by the time range or null if the sensor has no pages
+	 */
+	long[] findPageRange(long sensorID, long fromTimestamp, long toTimestamp) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			PageDirectory directory = getDirectory(sensorID);
+			int[] pages = findPages(directory, sensorID, fromTimestamp, toTimestamp);
+			if (pages == null || pages[0] >= pages[1]) {
+				return null;
+			}
+			return new long[] { directory.getPage(pages[0]), directory.getPage(pages[1] - 1) };
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the first page after @param page, Long.MAX_VALUE if there is none
+	 */
+	long findNextPage(long sensorID, long page) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			PageDirectory directory = getDirectory(sensorID);
+			int next = directory == null ? -1 : directory.floor(page) + 1;
+			return (next < 0 || next >= directory.size()) ? Long.MAX_VALUE : directory.getPage(next);
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return {start offset, end offset} of the records of a page in the time range or null if there are none
+	 */
+	long[] findRecordRange(long sensorID, long page, long fromTimestamp, long toTimestamp) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			return new SensorStoreTree(dir, channelCache, mappingCache, sensorID, page).findRange(fromTimestamp, toTimestamp);
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the columnar block of a sealed page or null if the page is stored as records
+	 */
+	SensorStoreBlock loadBlock(long sensorID, long page) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			return SensorStoreBlock.load(dir, sensorID, page);
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	File getDir() {
+		return dir;
+	}
+
+	public void markLastUploaded(long sensorID, long lastUploaded) {
+		setLastUploadedTimestamp(sensorID, lastUploaded);
+	}
+
+	/**
+	 * Writes back all changed sensor configs and forces all pending page and index writes to the storage device.
+	 */
+	public void flush() {
+		vmLock.readLock().lock();
+		try {
+			for (SensorStoreConfig ssc : sensorConfigs.values()) {
+				ReentrantReadWriteLock lock = getSensorLock(ssc.getSensorID());
+				lock.writeLock().lock();
+				try {
+					if (ssc.isDirty()) {
+						ssc.store();
+					}
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+			channelCache.flush();
+			synchronized (directoryLock) {
+				manifest.flush();
+			}
+		} finally {
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Flushes and releases all open file handles. The VM stays usable, handles are reopened on demand.
+	 */
+	public void close() {
+		vmLock.writeLock().lock();
+		try {
+			flush();
+			if (mappingCache != null) {
+				mappingCache.clear();
+			}
+			channelCache.close();
+			synchronized (directoryLock) {
+				manifest.close();
+			}
+		} finally {
+			vmLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Enables or disables binary searches on memory mapped index files (enabled by default)
+	 */
+	public void setMappedIndex(boolean mappedIndex) {
+		vmLock.writeLock().lock();
+		try {
+			if (mappedIndex && mappingCache == null) {
+				mappingCache = new IndexMappingCache(channelCache);
+			} else if (!mappedIndex && mappingCache != null) {
+				mappingCache.clear();
+				mappingCache = null;
+			}
+		} finally {
+			vmLock.writeLock().unlock();
+		}
+	}
+
+	public boolean isMappedIndex() {
+		return mappingCache != null;
+	}
+
+	/**
+	 * Sets the approximate heap size of the decoded pages kept for repeated reads, 0 disables the cache
+	 */
+	public void setPageCacheBudget(long budget) {
+		pageCache.setBudget(budget);
+		if (budget <= 0) {
+			pageCache.clear();
+		}
+	}
+
+	/**
+	 * @return the decoded page cache, for its hit, miss and eviction counters
+	 */
+	public DecodedPageCache getPageCache() {
+		return pageCache;
+	}
+
+	/**
+	 * Sets when changed sensor configs are written back to disk
+	 */
+	public void setConfigWritePolicy(ConfigWritePolicy configWritePolicy) {
+		vmLock.writeLock().lock();
+		try {
+			this.configWritePolicy = configWritePolicy;
+			for (SensorStoreConfig ssc : sensorConfigs.values()) {
+				ssc.storeIfDue(configWritePolicy);
+				if (ssc.isDirty()) {
+					startConfigWriter();
+				}
+			}
+		} finally {
+			vmLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Starts the thread that writes back dirty configs once the time limit of the write policy has passed, unless it
+	 * runs already. Otherwise the time limit would only be checked when a config changes again, and the last changes
+	 * of a sensor, e.g. its last uploaded timestamp, would stay in memory until flush() if the process is killed
+	 * without closing the VM. The thread ends when no config is dirty anymore.
+	 */
+	private void startConfigWriter() {
+		if (configWritePolicy.getMaxPendingMillis() <= 0 || configWriterRunning.get() || !configWriterRunning.compareAndSet(false, true)) {
+			return;
+		}
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runConfigWriter();
+			}
+		}, "NervousVM-ConfigWriter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void runConfigWriter() {
+		while (true) {
+			long period = configWritePolicy.getMaxPendingMillis();
+			if (period > 0) {
+				try {
+					Thread.sleep(period);
+				} catch (InterruptedException ex) {
+					period = 0;
+				}
+			}
+			if (period > 0 && storeDueConfigs()) {
+				continue;
+			}
+			configWriterRunning.set(false);
+			// A config may have changed after the last check, while the writer was still marked as running
+			if (period <= 0 || !storeDueConfigs() || !configWriterRunning.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes back the dirty configs that are due by the write policy
+	 * 
+	 * @return true if dirty configs are left
+	 */
+	private boolean storeDueConfigs() {
+		boolean dirty = false;
+		vmLock.readLock().lock();
+		try {
+			for (SensorStoreConfig ssc : sensorConfigs.values()) {
+				ReentrantReadWriteLock lock = getSensorLock(ssc.getSensorID());
+				lock.writeLock().lock();
+				try {
+					ssc.storeIfDue(configWritePolicy);
+					dirty |= ssc.isDirty();
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+		} finally {
+			vmLock.readLock().unlock();
+		}
+		return dirty;
+	}
+
+	public ConfigWritePolicy getConfigWritePolicy() {
+		return configWritePolicy;
+	}
+
+	/**
+	 * Returns the resident config of a sensor, loading and recovering it on first access. Has to be called with a
+	 * lock of the sensor held.
+	 */
+	private SensorStoreConfig getConfig(long sensorID) {
+		SensorStoreConfig ssc = sensorConfigs.get(sensorID);
+		if (ssc == null) {
+			synchronized (sensorConfigs) {
+				ssc = sensorConfigs.get(sensorID);
+				if (ssc == null) {
+					ssc = new SensorStoreConfig(dir, sensorID);
+					recoverConfig(ssc);
+					sensorConfigs.put(sensorID, ssc);
+				}
+			}
+		}
+		return ssc;
+	}
+
+	/**
+	 * The config is written behind the pages, so rebuild the write position from the last page of the directory and
+	 * the tail of its index in case the last config writes got lost. Both have been repaired by the recovery at
+	 * construction.
+	 */
+	private void recoverConfig(SensorStoreConfig ssc) {
+		long sensorID = ssc.getSensorID();
+		long page = 0;
+		PageDirectory directory = getDirectory(sensorID);
+		if (directory != null && !directory.isEmpty()) {
+			page = directory.getPage(directory.size() - 1);
+		}
+		SensorStoreTree sst = new SensorStoreTree(dir, channelCache, mappingCache, sensorID, page);
+		// Not capped at the page size, which may have been lowered since the page was opened. An over-full page is
+		// closed by the next store.
+		long entryNumber = sst.getEntryCount();
+		long lastWrittenTimestamp = ssc.getLastWrittenTimestamp();
+		if (entryNumber > 0) {
+			lastWrittenTimestamp = sst.getTimestamp(entryNumber - 1);
+		} else if (directory != null && !directory.isEmpty() && directory.getLower(directory.size() - 1) > 0) {
+			// The open interval starts right after the last sample of the previous page, which may be sealed
+			lastWrittenTimestamp = directory.getLower(directory.size() - 1) - 1;
+		}
+		if (page != ssc.getCurrentPage() || entryNumber != ssc.getEntryNumber() || lastWrittenTimestamp != ssc.getLastWrittenTimestamp()) {
+			ssc.setCurrentPage(page);
+			ssc.setEntryNumber(entryNumber);
+			ssc.setLastWrittenTimestamp(lastWrittenTimestamp);
+			ssc.store();
+		}
 	}
 
 	public synchronized UUID getUUID() {
@@ -191,6 +1560,10 @@ public class NervousVM {
 		}
 	}
 
+	/**
+	 * Reads the serialized sensor tree map of older versions, only used for migrating to the manifest
+	 */
+	@SuppressWarnings("unchecked")
 	private synchronized boolean loadSTM() {
 		boolean success = true;
 		FileInputStream fis = null;
@@ -203,7 +1576,14 @@ public class NervousVM {
 			fis = new FileInputStream(file);
 			ois = new ObjectInputStream(fis);
 			HashMap<Long, TreeMap<PageInterval, PageInterval>> hashMap = (HashMap<Long, TreeMap<PageInterval, PageInterval>>) (ois.readObject());
-			sensorTreeMap = hashMap;
+			directories = new HashMap<Long, PageDirectory>();
+			for (Map.Entry<Long, TreeMap<PageInterval, PageInterval>> sensor : hashMap.entrySet()) {
+				PageDirectory directory = new PageDirectory(sensor.getValue().size());
+				for (PageInterval pi : sensor.getValue().keySet()) {
+					directory.put(pi.getPageNumber(), pi.getInterval().getLower(), pi.getInterval().getUpper());
+				}
+				directories.put(sensor.getKey(), directory);
+			}
 			ois.close();
 		} catch (IOException e) {
 			success = false;
@@ -227,119 +1607,492 @@ public class NervousVM {
 		return success;
 	}
 
-	private synchronized void writeSTM() {
-		FileOutputStream fos = null;
-		ObjectOutputStream oos = null;
+	public boolean storeSensor(long sensorID, SensorData sensorData) {
+		if (sensorData != null) {
+			return storeSensors(sensorID, Collections.singletonList(sensorData));
+		}
+		return false;
+	}
+
+	/**
+	 * Stores a batch of samples of one sensor. The records of each page are appended with one write, their index
+	 * entries with one positioned write and the sensor configuration is persisted once per batch.
+	 * 
+	 * @param sensorID
+	 * @param sensorDataList
+	 *            samples ordered by record time
+	 * @return false if the batch was empty or samples had to be rejected for non monotonically increasing timestamps
+	 */
+	public boolean storeSensors(long sensorID, List<SensorData> sensorDataList) {
+		if (sensorDataList == null || sensorDataList.isEmpty()) {
+			return false;
+		}
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.writeLock().lock();
+		boolean success;
 		try {
-			File file = new File(dir, "NervousVM/STM");
-			if (!file.exists()) {
-				file.createNewFile();
-			}
-			fos = new FileOutputStream(file, false);
-			oos = new ObjectOutputStream(fos);
-			oos.writeObject(sensorTreeMap);
-			oos.flush();
-			oos.close();
-		} catch (IOException ex) {
-			ex.printStackTrace();
+			success = storeSensorsLocked(sensorID, sensorDataList);
 		} finally {
-			// Cleanup
-			if (fos != null) {
-				try {
-					fos.close();
-				} catch (IOException ex) {
+			lock.writeLock().unlock();
+			vmLock.readLock().unlock();
+		}
+		if (diskBudget > 0 && diskBudgetCheckDue.compareAndSet(true, false)) {
+			enforceDiskBudget();
+		}
+		return success;
+	}
+
+	private boolean storeSensorsLocked(long sensorID, List<SensorData> sensorDataList) {
+		boolean success = true;
+		SensorStoreConfig ssc = getConfig(sensorID);
+
+		PageDirectory directory;
+		synchronized (directoryLock) {
+			directory = directories.get(sensorID);
+			if (directory == null) {
+				directory = new PageDirectory();
+				// Open the initial interval
+				directory.put(ssc.getCurrentPage(), 0, Long.MAX_VALUE);
+				directories.put(sensorID, directory);
+				manifest.putPage(sensorID, ssc.getCurrentPage(), 0, Long.MAX_VALUE);
+			}
+		}
+
+		// Reject non monotonically increasing timestamps
+		List<SensorData> accepted = sensorDataList;
+		long lastTimestamp = ssc.getLastWrittenTimestamp();
+		for (int i = 0; i < sensorDataList.size(); i++) {
+			SensorData sensorData = sensorDataList.get(i);
+			if (sensorData == null || lastTimestamp - sensorData.getRecordTime() >= 0) {
+				if (accepted == sensorDataList) {
+					accepted = new ArrayList<SensorData>(sensorDataList.subList(0, i));
+				}
+				success = false;
+			} else {
+				if (accepted != sensorDataList) {
+					accepted.add(sensorData);
 				}
+				lastTimestamp = sensorData.getRecordTime();
 			}
-			if (oos != null) {
-				try {
-					oos.close();
-				} catch (IOException ex) {
+		}
+
+		SensorRollup rollup = getRollup(sensorID);
+		rollup.recover();
+		SensorTail tail = getTail(sensorID);
+
+		int stored = 0;
+		while (stored < accepted.size()) {
+			int chunk;
+			if (ssc.getPageSlotMillis() > 0) {
+				// Add new page if the sample belongs to a later slot
+				long slot = ssc.getSlot(accepted.get(stored).getRecordTime());
+				if (slot != ssc.getCurrentPage() && ssc.getEntryNumber() == 0 && directory.size() == 1) {
+					moveCurrentPage(ssc, directory, slot);
+				} else if (slot > ssc.getCurrentPage()) {
+					openNextPage(ssc, directory, slot);
 				}
+				long pageEnd = ssc.getCurrentPage() + 1;
+				chunk = 1;
+				while (stored + chunk < accepted.size() && ssc.getSlot(accepted.get(stored + chunk).getRecordTime()) < pageEnd) {
+					chunk++;
+				}
+			} else {
+				// Add new page if the last one is full
+				long pageEntries = ssc.getRetentionPolicy().getPageEntries();
+				if (ssc.getEntryNumber() >= pageEntries) {
+					openNextPage(ssc, directory, ssc.getCurrentPage() + 1);
+				}
+				chunk = (int) Math.min(accepted.size() - stored, pageEntries - ssc.getEntryNumber());
 			}
+			List<SensorData> pageData = accepted.subList(stored, stored + chunk);
+
+			SensorAggregate pageAggregate = getPageAggregate(ssc);
+			SensorStorePage ssp = new SensorStorePage(dir, channelCache, mappingCache, ssc.getSensorID(), ssc.getCurrentPage());
+			if (ssp.storeAll(pageData, ssc.getEntryNumber()) < 0) {
+				pageCache.evict(sensorID, ssc.getCurrentPage());
+			} else {
+				pageCache.append(sensorID, ssc.getCurrentPage(), pageData);
+			}
+			pageAggregate.addAll(pageData);
+
+			ssc.setEntryNumber(ssc.getEntryNumber() + chunk);
+			ssc.setLastWrittenTimestamp(pageData.get(chunk - 1).getRecordTime());
+			stored += chunk;
 		}
+		if (stored > 0) {
+			rollup.addAll(accepted);
+			if (tail != null) {
+				tail.addAll(accepted.subList(0, stored));
+			}
+			ssc.markDirty();
+			ssc.storeIfDue(configWritePolicy);
+			if (ssc.isDirty()) {
+				startConfigWriter();
+			}
+		}
+		return success;
 	}
 
-	public synchronized boolean storeSensor(long sensorID, SensorData sensorData) {
-		if (sensorData != null) {
-			boolean stmHasChanged = false;
-			boolean success = true;
-			SensorStoreConfig ssc = new SensorStoreConfig(dir, sensorID);
+	private void openNextPage(SensorStoreConfig ssc, PageDirectory directory, long nextPage) {
+		long sensorID = ssc.getSensorID();
+		long lastPage = ssc.getCurrentPage();
+		// Write the summary of the full page
+		SensorAggregate pageAggregate = getPageAggregate(ssc);
+		if (pageAggregate.getCount() != ssc.getEntryNumber()) {
+			pageAggregate = SensorAggregate.of(new SensorStorePage(dir, channelCache, mappingCache, sensorID, ssc.getCurrentPage()).retrieveAll());
+		}
+		pageAggregate.store(dir, sensorID, ssc.getCurrentPage());
+		pageAggregates.put(sensorID, new SensorAggregate());
 
-			TreeMap<PageInterval, PageInterval> treeMap = sensorTreeMap.get(sensorID);
-			if (treeMap == null) {
-				treeMap = new TreeMap<PageInterval, PageInterval>();
-				// Open the initial interval
-				PageInterval piFirst = new PageInterval(new Interval(0, Long.MAX_VALUE), 0);
-				treeMap.put(piFirst, piFirst);
-				sensorTreeMap.put(sensorID, treeMap);
-				stmHasChanged = true;
-			}
+		ssc.setCurrentPage(nextPage);
+		ssc.setEntryNumber(0);
 
-			// Reject non monotonically increasing timestamps
-			if (ssc.getLastWrittenTimestamp() - sensorData.getRecordTime() >= 0) {
-				return false;
+		synchronized (directoryLock) {
+			// Close the last interval
+			int last = directory.indexOf(lastPage);
+			directory.setUpper(last, ssc.getLastWrittenTimestamp());
+			manifest.putPage(sensorID, lastPage, directory.getLower(last), ssc.getLastWrittenTimestamp());
+			// Open the next interval
+			directory.put(ssc.getCurrentPage(), ssc.getLastWrittenTimestamp() + 1, Long.MAX_VALUE);
+			manifest.putPage(sensorID, ssc.getCurrentPage(), ssc.getLastWrittenTimestamp() + 1, Long.MAX_VALUE);
+		}
+
+		SensorStorePage lastStorePage = new SensorStorePage(dir, channelCache, mappingCache, sensorID, lastPage);
+		boolean sealed = ssc.getPageEncoding() == PAGE_ENCODING_COLUMNAR && lastStorePage.seal();
+		if (!sealed && ssc.getIndexInterval() > 1) {
+			lastStorePage.sparsify(ssc.getIndexInterval());
+		}
+
+		// Remove old pages
+		applyRetention(ssc);
+		diskBudgetCheckDue.set(true);
+	}
+
+	/**
+	 * Renumbers the empty first page of a time partitioned sensor to the slot of its first sample
+	 */
+	private void moveCurrentPage(SensorStoreConfig ssc, PageDirectory directory, long page) {
+		long sensorID = ssc.getSensorID();
+		long lastPage = ssc.getCurrentPage();
+		synchronized (directoryLock) {
+			// The only page of the sensor
+			directory.setPage(0, page);
+			manifest.removePage(sensorID, lastPage);
+			manifest.putPage(sensorID, page, directory.getLower(0), directory.getUpper(0));
+		}
+		new SensorStorePage(dir, channelCache, mappingCache, sensorID, lastPage).evict();
+		pageCache.evict(sensorID, lastPage);
+		ssc.setCurrentPage(page);
+	}
+
+	/**
+	 * Sets the page size and the history limits of a sensor. Tighter limits are applied immediately, a new page size
+	 * from the next page on.
+	 */
+	public void setRetentionPolicy(long sensorID, RetentionPolicy retentionPolicy) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.writeLock().lock();
+		try {
+			SensorStoreConfig ssc = getConfig(sensorID);
+			if (!retentionPolicy.equals(ssc.getRetentionPolicy())) {
+				ssc.setRetentionPolicy(retentionPolicy);
+				ssc.store();
+				applyRetention(ssc);
 			}
+		} finally {
+			lock.writeLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
 
-			// Add new page if the last one is full
-			if (ssc.getEntryNumber() == MAX_ENTRIES) {
-				ssc.setCurrentPage(ssc.getCurrentPage() + 1);
-				ssc.setEntryNumber(0);
+	public RetentionPolicy getRetentionPolicy(long sensorID) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			return getConfig(sensorID).getRetentionPolicy();
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
 
-				// Close the last interval
-				PageInterval piLast = treeMap.get(new PageInterval(new Interval(0, 0), ssc.getCurrentPage() - 1));
-				treeMap.remove(piLast);
-				piLast.getInterval().setUpper(ssc.getLastWrittenTimestamp());
-				treeMap.put(piLast, piLast);
-				// Open the next interval
-				PageInterval piNext = new PageInterval(new Interval(ssc.getLastWrittenTimestamp() + 1, Long.MAX_VALUE), ssc.getCurrentPage());
-				treeMap.put(piNext, piNext);
+	/**
+	 * Limits the size of all files of the VM. Whenever a page is full, the oldest full pages across all sensors are
+	 * removed until the VM fits into the budget again.
+	 * 
+	 * @param diskBudget
+	 *            in bytes, 0 to disable
+	 */
+	public void setDiskBudget(long diskBudget) {
+		this.diskBudget = diskBudget;
+		enforceDiskBudget();
+	}
 
-				// Remove old pages
-				removeOldPages(sensorID, ssc.getCurrentPage(), MAX_PAGES);
-				stmHasChanged = true;
+	public long getDiskBudget() {
+		return diskBudget;
+	}
+
+	/**
+	 * Removes the full pages with the oldest samples across all sensors until the VM fits into the disk budget. Returns
+	 * immediately if another thread is already doing so.
+	 * 
+	 * @return number of removed pages
+	 */
+	public int enforceDiskBudget() {
+		long budget = diskBudget;
+		if (budget <= 0 || !governorLock.tryLock()) {
+			return 0;
+		}
+		vmLock.readLock().lock();
+		try {
+			int removed = 0;
+			long total = getTotalStorageSize();
+			while (total > budget) {
+				long oldestSensorID = 0;
+				long oldestPage = -1;
+				long oldestTimestamp = Long.MAX_VALUE;
+				synchronized (directoryLock) {
+					for (Map.Entry<Long, PageDirectory> sensor : directories.entrySet()) {
+						PageDirectory directory = sensor.getValue();
+						// The last page is the current one and is never removed
+						if (directory.size() > 1 && directory.getUpper(0) < oldestTimestamp) {
+							oldestSensorID = sensor.getKey();
+							oldestPage = directory.getPage(0);
+							oldestTimestamp = directory.getUpper(0);
+						}
+					}
+				}
+				if (oldestPage < 0) {
+					break;
+				}
+				ReentrantReadWriteLock lock = getSensorLock(oldestSensorID);
+				lock.writeLock().lock();
+				try {
+					PageDirectory directory = getDirectory(oldestSensorID);
+					// Only remove the page if it has not changed since it was picked
+					if (directory != null && directory.size() > 1 && directory.getPage(0) == oldestPage) {
+						total -= new SensorStorePage(dir, channelCache, mappingCache, oldestSensorID, oldestPage).getSize();
+						removeOldPages(oldestSensorID, oldestPage, false);
+						removed++;
+					}
+				} finally {
+					lock.writeLock().unlock();
+				}
 			}
+			return removed;
+		} finally {
+			vmLock.readLock().unlock();
+			governorLock.unlock();
+		}
+	}
 
-			SensorStorePage ssp = new SensorStorePage(dir, ssc.getSensorID(), ssc.getCurrentPage());
-			ssp.store(sensorData, ssc.getEntryNumber());
+	/**
+	 * @return size of all files of the VM in bytes
+	 */
+	public long getTotalStorageSize() {
+		long size = 0;
+		File[] files = new File(dir, "NervousVM").listFiles();
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
 
-			ssc.setEntryNumber(ssc.getEntryNumber() + 1);
+	/**
+	 * Selects how the pages of a sensor are stored once they are full. Pages that are already full keep their
+	 * encoding.
+	 * 
+	 * @param pageEncoding
+	 *            PAGE_ENCODING_PROTOBUF or PAGE_ENCODING_COLUMNAR
+	 */
+	public void setPageEncoding(long sensorID, int pageEncoding) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.writeLock().lock();
+		try {
+			SensorStoreConfig ssc = getConfig(sensorID);
+			if (ssc.getPageEncoding() != pageEncoding) {
+				ssc.setPageEncoding(pageEncoding);
+				ssc.store();
+			}
+		} finally {
+			lock.writeLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
 
-			ssc.setLastWrittenTimestamp(sensorData.getRecordTime());
+	/**
+	 * Selects the time partitioned layout for a sensor: every page holds the samples of one time slot, e.g. an hour,
+	 * so the page of a timestamp follows from the slot length. Slots without samples take no pages and the maximum
+	 * number of pages of the retention policy becomes the number of slots that are kept. The layout can only be
+	 * changed while the sensor has no samples.
+	 * 
+	 * @param slotMillis
+	 *            slot length in milliseconds, 0 to fill pages up to the page size of the retention policy
+	 * @return false if the sensor already has samples
+	 */
+	public boolean setPageSlot(long sensorID, long slotMillis) {
+		if (slotMillis < 0) {
+			throw new IllegalArgumentException("Invalid slot length");
+		}
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.writeLock().lock();
+		try {
+			SensorStoreConfig ssc = getConfig(sensorID);
+			if (ssc.getPageSlotMillis() == slotMillis) {
+				return true;
+			}
+			PageDirectory directory = getDirectory(sensorID);
+			if (directory != null && (directory.size() > 1 || ssc.getEntryNumber() > 0)) {
+				return false;
+			}
+			ssc.setPageSlotMillis(slotMillis);
 			ssc.store();
-			
-			if (stmHasChanged) {
-				writeSTM();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return slot length of the time partitioned layout in milliseconds, 0 if pages are filled up to their size
+	 */
+	public long getPageSlot(long sensorID) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			return getConfig(sensorID).getPageSlotMillis();
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Selects how densely the pages of a sensor are indexed once they are full. Pages that are already full keep
+	 * their index.
+	 * 
+	 * @param indexInterval
+	 *            every how many samples the index keeps an entry, range lookups scan forward over at most as many
+	 *            records of the page. 1 for a dense index, SensorStoreSparseIndex.DEFAULT_INTERVAL is a good trade-off.
+	 */
+	public void setIndexInterval(long sensorID, int indexInterval) {
+		if (indexInterval < 1) {
+			throw new IllegalArgumentException("Invalid index interval");
+		}
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.writeLock().lock();
+		try {
+			SensorStoreConfig ssc = getConfig(sensorID);
+			if (Math.max(1, ssc.getIndexInterval()) != indexInterval) {
+				ssc.setIndexInterval(indexInterval);
+				ssc.store();
 			}
-			return success;
+		} finally {
+			lock.writeLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	public int getIndexInterval(long sensorID) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			return Math.max(1, getConfig(sensorID).getIndexInterval());
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
+	}
+
+	public int getPageEncoding(long sensorID) {
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			return getConfig(sensorID).getPageEncoding();
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
 		}
-		return false;
 	}
 
 	public long getLastUploadedTimestamp(long sensorID) {
-		SensorStoreConfig ssc = new SensorStoreConfig(dir, sensorID);
-		return ssc.getLastUploadedTimestamp();
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			return getConfig(sensorID).getLastUploadedTimestamp();
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
+		}
 	}
 
 	public void setLastUploadedTimestamp(long sensorID, long timestamp) {
-		SensorStoreConfig ssc = new SensorStoreConfig(dir, sensorID);
-		ssc.setLastUploadedTimestamp(timestamp);
-		ssc.store();
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.writeLock().lock();
+		try {
+			SensorStoreConfig ssc = getConfig(sensorID);
+			ssc.setLastUploadedTimestamp(timestamp);
+			ssc.markDirty();
+			ssc.storeIfDue(configWritePolicy);
+			if (ssc.isDirty()) {
+				startConfigWriter();
+			}
+		} finally {
+			lock.writeLock().unlock();
+			vmLock.readLock().unlock();
+		}
 	}
 
 	public void deleteSensor(long sensorID) {
-		SensorStoreConfig ssc = new SensorStoreConfig(dir, sensorID);
-		removeOldPages(sensorID, ssc.getCurrentPage(), 0);
-		ssc.delete();
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.writeLock().lock();
+		try {
+			SensorStoreConfig ssc = getConfig(sensorID);
+			removeOldPages(sensorID, ssc.getCurrentPage(), true);
+			ssc.delete();
+			sensorConfigs.remove(sensorID);
+			pageAggregates.remove(sensorID);
+			getRollup(sensorID).delete();
+			rollups.remove(sensorID);
+			getConsumers(sensorID).delete();
+			consumers.remove(sensorID);
+		} finally {
+			lock.writeLock().unlock();
+			vmLock.readLock().unlock();
+		}
 	}
 
 	public long[] getSensorStorageSize(long sensorID) {
-		long[] size = { 0, 0 };
-		SensorStoreConfig ssc = new SensorStoreConfig(dir, sensorID);
-		for (int i = 0; i < MAX_PAGES; i++) {
-			SensorStorePage ssp = new SensorStorePage(dir, sensorID, ssc.getCurrentPage() - i);
-			size[0] += ssp.getStoreSize();
-			size[1] += ssp.getIndexSize();
+		vmLock.readLock().lock();
+		ReentrantReadWriteLock lock = getSensorLock(sensorID);
+		lock.readLock().lock();
+		try {
+			long[] size = { 0, 0 };
+			PageDirectory directory = getDirectory(sensorID);
+			for (int i = 0; directory != null && i < directory.size(); i++) {
+				SensorStorePage ssp = new SensorStorePage(dir, channelCache, mappingCache, sensorID, directory.getPage(i));
+				size[0] += ssp.getStoreSize();
+				size[1] += ssp.getIndexSize();
+			}
+			return size;
+		} finally {
+			lock.readLock().unlock();
+			vmLock.readLock().unlock();
 		}
-		return size;
 	}
 }
@@ -0,0 +1,161 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.util.Arrays;
+
+public class PageDirectory {
+
+	// Page directory of one sensor: the page numbers and the time interval
+	// [lower, upper] of their samples in parallel arrays, sorted by page
+	// number. Pages are numbered in the order they are filled and their
+	// intervals do not overlap, so the lower bounds are sorted as well and a
+	// page is found by its number or by a timestamp with a binary search,
+	// without probe objects or boxing. Pages are added at the tail without
+	// shifting. Retention and eviction remove pages at the head, which
+	// shifts the remaining entries once per pass, a copy of three arrays
+	// of the few pages a sensor keeps.
+
+	private final static int DEFAULT_CAPACITY = 4;
+
+	private long[] pages;
+	private long[] lowers;
+	private long[] uppers;
+	private int size;
+
+	public PageDirectory() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PageDirectory(int capacity) {
+		capacity = Math.max(1, capacity);
+		this.pages = new long[capacity];
+		this.lowers = new long[capacity];
+		this.uppers = new long[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long getPage(int index) {
+		return pages[index];
+	}
+
+	public long getLower(int index) {
+		return lowers[index];
+	}
+
+	public long getUpper(int index) {
+		return uppers[index];
+	}
+
+	public void setLower(int index, long lower) {
+		lowers[index] = lower;
+	}
+
+	public void setUpper(int index, long upper) {
+		uppers[index] = upper;
+	}
+
+	/**
+	 * Renumbers a page, the order of the pages must not change
+	 */
+	public void setPage(int index, long page) {
+		pages[index] = page;
+	}
+
+	/**
+	 * @return index of @param page or (-(insertion point) - 1) if there is no such page
+	 */
+	public int indexOf(long page) {
+		return Arrays.binarySearch(pages, 0, size, page);
+	}
+
+	/**
+	 * @return index of the first page >= @param page, size() if there is none
+	 */
+	public int ceiling(long page) {
+		int index = indexOf(page);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	/**
+	 * @return index of the last page <= @param page, -1 if there is none
+	 */
+	public int floor(long page) {
+		int index = indexOf(page);
+		return index >= 0 ? index : -index - 2;
+	}
+
+	/**
+	 * @return index of the page whose interval holds @param timestamp, -1 if there is none
+	 */
+	public int find(long timestamp) {
+		int index = Arrays.binarySearch(lowers, 0, size, timestamp);
+		if (index < 0) {
+			// Last page starting before the timestamp
+			index = -index - 2;
+		}
+		return (index >= 0 && uppers[index] >= timestamp) ? index : -1;
+	}
+
+	/**
+	 * Adds a page or replaces the interval of a page
+	 *
+	 * @return index of the page
+	 */
+	public int put(long page, long lower, long upper) {
+		int index = indexOf(page);
+		if (index < 0) {
+			index = -index - 1;
+			if (size == pages.length) {
+				int capacity = 2 * pages.length;
+				pages = Arrays.copyOf(pages, capacity);
+				lowers = Arrays.copyOf(lowers, capacity);
+				uppers = Arrays.copyOf(uppers, capacity);
+			}
+			System.arraycopy(pages, index, pages, index + 1, size - index);
+			System.arraycopy(lowers, index, lowers, index + 1, size - index);
+			System.arraycopy(uppers, index, uppers, index + 1, size - index);
+			pages[index] = page;
+			size++;
+		}
+		lowers[index] = lower;
+		uppers[index] = upper;
+		return index;
+	}
+
+	/**
+	 * @return false if there is no such page
+	 */
+	public boolean remove(long page) {
+		int index = indexOf(page);
+		if (index < 0) {
+			return false;
+		}
+		removeRange(index, index + 1);
+		return true;
+	}
+
+	/**
+	 * Removes the pages at the indexes [from, to)
+	 */
+	public void removeRange(int from, int to) {
+		System.arraycopy(pages, to, pages, from, size - to);
+		System.arraycopy(lowers, to, lowers, from, size - to);
+		System.arraycopy(uppers, to, uppers, from, size - to);
+		size -= to - from;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			sb.append("[").append(lowers[i]).append(",").append(uppers[i]).append("]->(").append(Long.toHexString(pages[i])).append(")");
+		}
+		return sb.toString();
+	}
+}
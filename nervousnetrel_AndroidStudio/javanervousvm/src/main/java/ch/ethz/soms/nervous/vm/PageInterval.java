@@ -3,6 +3,9 @@ import java.io.Serializable;
 
 public class PageInterval implements Comparable<PageInterval>, Serializable {
 
+	// Entry of the serialized STM of older versions, only read when migrating
+	// to the manifest. The directory is kept in a PageDirectory per sensor.
+
 	private static final long serialVersionUID = -3883324724432537835L;
 
 	private long pageNumber;
@@ -0,0 +1,49 @@
+package ch.ethz.soms.nervous.vm;
+
+class PageKey {
+
+	// Identifies one file of a page (P for data, T for index)
+
+	private final long sensorID;
+	private final long page;
+	private final char kind;
+
+	public PageKey(long sensorID, long page, char kind) {
+		this.sensorID = sensorID;
+		this.page = page;
+		this.kind = kind;
+	}
+
+	public long getSensorID() {
+		return sensorID;
+	}
+
+	public long getPage() {
+		return page;
+	}
+
+	public char getKind() {
+		return kind;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = (int) (sensorID ^ (sensorID >>> 32));
+		result = 31 * result + (int) (page ^ (page >>> 32));
+		result = 31 * result + kind;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof PageKey)) {
+			return false;
+		}
+		PageKey other = (PageKey) obj;
+		return sensorID == other.sensorID && page == other.page && kind == other.kind;
+	}
+
+	public String toString() {
+		return Long.toHexString(sensorID) + kind + Long.toHexString(page);
+	}
+}
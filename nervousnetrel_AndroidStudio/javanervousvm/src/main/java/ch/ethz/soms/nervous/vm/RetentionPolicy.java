@@ -0,0 +1,97 @@
+package ch.ethz.soms.nervous.vm;
+
+public class RetentionPolicy {
+
+	// Decides how much history NervousVM keeps for a sensor and how many
+	// samples go into one page. The limits are enforced at page granularity
+	// whenever a page is full: the oldest pages are removed until all limits
+	// hold again, the current page is never removed. A limit of 0 disables it.
+	// Pages that a consumer has not committed yet can be kept beyond the
+	// limits, see NervousVM.readFrom.
+
+	public final static RetentionPolicy DEFAULT = new RetentionPolicy(NervousVM.MAX_ENTRIES, NervousVM.MAX_PAGES, 0, 0, 0);
+
+	private final long pageEntries;
+	private final long maxPages;
+	private final long maxAgeMillis;
+	private final long maxBytes;
+	private final long maxSamples;
+	private final long maxUnconsumedBytes;
+
+	/**
+	 * @param pageEntries
+	 *            samples per page, high rate sensors should use larger pages
+	 * @param maxPages
+	 *            number of pages including the current one, of time slots for sensors with time partitioned pages
+	 * @param maxAgeMillis
+	 *            pages are removed once their last sample is older than this
+	 * @param maxBytes
+	 *            size of all page, index and summary files of the sensor
+	 * @param maxSamples
+	 *            number of samples of the sensor
+	 */
+	public RetentionPolicy(long pageEntries, long maxPages, long maxAgeMillis, long maxBytes, long maxSamples) {
+		this(pageEntries, maxPages, maxAgeMillis, maxBytes, maxSamples, 0);
+	}
+
+	/**
+	 * @param maxUnconsumedBytes
+	 *            size of the pages beyond the other limits that are kept because a consumer of the sensor has not
+	 *            committed them yet, the newest first
+	 */
+	public RetentionPolicy(long pageEntries, long maxPages, long maxAgeMillis, long maxBytes, long maxSamples, long maxUnconsumedBytes) {
+		if (pageEntries <= 0 || maxPages < 0 || maxAgeMillis < 0 || maxBytes < 0 || maxSamples < 0 || maxUnconsumedBytes < 0) {
+			throw new IllegalArgumentException("Invalid retention policy");
+		}
+		this.pageEntries = pageEntries;
+		this.maxPages = maxPages;
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxBytes = maxBytes;
+		this.maxSamples = maxSamples;
+		this.maxUnconsumedBytes = maxUnconsumedBytes;
+	}
+
+	public long getPageEntries() {
+		return pageEntries;
+	}
+
+	public long getMaxPages() {
+		return maxPages;
+	}
+
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMaxSamples() {
+		return maxSamples;
+	}
+
+	public long getMaxUnconsumedBytes() {
+		return maxUnconsumedBytes;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof RetentionPolicy)) {
+			return false;
+		}
+		RetentionPolicy other = (RetentionPolicy) o;
+		return pageEntries == other.pageEntries && maxPages == other.maxPages && maxAgeMillis == other.maxAgeMillis && maxBytes == other.maxBytes && maxSamples == other.maxSamples && maxUnconsumedBytes == other.maxUnconsumedBytes;
+	}
+
+	@Override
+	public int hashCode() {
+		long hash = pageEntries;
+		hash = 31 * hash + maxPages;
+		hash = 31 * hash + maxAgeMillis;
+		hash = 31 * hash + maxBytes;
+		hash = 31 * hash + maxSamples;
+		hash = 31 * hash + maxUnconsumedBytes;
+		return (int) (hash ^ (hash >>> 32));
+	}
+}
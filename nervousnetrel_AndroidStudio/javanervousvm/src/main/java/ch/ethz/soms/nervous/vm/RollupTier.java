@@ -0,0 +1,38 @@
+package ch.ethz.soms.nervous.vm;
+
+public class RollupTier {
+
+	// One level of downsampled history: samples are aggregated into buckets
+	// of a fixed length and the newest maxBuckets closed buckets are kept.
+
+	public final static RollupTier MINUTE = new RollupTier(60 * 1000L, 3 * 24 * 60);
+	public final static RollupTier HOUR = new RollupTier(60 * 60 * 1000L, 365 * 24);
+
+	public final static RollupTier[] DEFAULT_TIERS = { MINUTE, HOUR };
+
+	private final long bucketMillis;
+	private final long maxBuckets;
+
+	public RollupTier(long bucketMillis, long maxBuckets) {
+		if (bucketMillis <= 0 || maxBuckets <= 0) {
+			throw new IllegalArgumentException("Invalid rollup tier");
+		}
+		this.bucketMillis = bucketMillis;
+		this.maxBuckets = maxBuckets;
+	}
+
+	public long getBucketMillis() {
+		return bucketMillis;
+	}
+
+	public long getMaxBuckets() {
+		return maxBuckets;
+	}
+
+	/**
+	 * @return start of the bucket that contains the timestamp
+	 */
+	public long getBucketStart(long timestamp) {
+		return timestamp - ((timestamp % bucketMillis) + bucketMillis) % bucketMillis;
+	}
+}
@@ -0,0 +1,355 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.util.Arrays;
+
+public class SensorColumns {
+
+	// Reusable columnar result of NervousVM.retrieveColumns: the record times
+	// and one primitive array per value column, where column i of a type is
+	// value i of that type in SensorData. Samples with fewer values than
+	// there are columns read as 0 in the missing ones, strings are not
+	// retrieved. The arrays and the read buffer grow as needed and are kept
+	// across retrievals, so repeated reads over ranges of similar size do
+	// not allocate.
+
+	public final static int VALUE_BOOL = 0;
+	public final static int VALUE_INT32 = 1;
+	public final static int VALUE_INT64 = 2;
+	public final static int VALUE_FLOAT = 3;
+	public final static int VALUE_DOUBLE = 4;
+	final static int VALUE_TYPES = 5;
+
+	private final static int DEFAULT_CAPACITY = 256;
+
+	private int count;
+	private int capacity;
+	private long[] timestamps;
+	private int[] columnCounts = new int[VALUE_TYPES];
+	// Column counts before the last addRow, so that a sample that cannot be
+	// decoded is dropped together with the columns it added
+	private int[] lastRowColumnCounts = new int[VALUE_TYPES];
+	private boolean[][] bools = new boolean[0][];
+	private int[][] int32s = new int[0][];
+	private long[][] int64s = new long[0][];
+	private float[][] floats = new float[0][];
+	private double[][] doubles = new double[0][];
+
+	private byte[] buffer = new byte[0];
+
+	public SensorColumns() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            number of samples the arrays are allocated for initially
+	 */
+	public SensorColumns(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.timestamps = new long[this.capacity];
+	}
+
+	/**
+	 * Empties the result, keeping the arrays for the next retrieval
+	 */
+	public void clear() {
+		count = 0;
+		Arrays.fill(columnCounts, 0);
+	}
+
+	/**
+	 * @return number of samples
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return record times, valid up to getCount()
+	 */
+	public long[] getTimestamps() {
+		return timestamps;
+	}
+
+	/**
+	 * @return number of columns of one of the VALUE types
+	 */
+	public int getColumnCount(int type) {
+		return columnCounts[checkType(type)];
+	}
+
+	/**
+	 * @return value @param index of the samples, valid up to getCount()
+	 */
+	public boolean[] getBoolColumn(int index) {
+		return bools[checkColumn(VALUE_BOOL, index)];
+	}
+
+	public int[] getInt32Column(int index) {
+		return int32s[checkColumn(VALUE_INT32, index)];
+	}
+
+	public long[] getInt64Column(int index) {
+		return int64s[checkColumn(VALUE_INT64, index)];
+	}
+
+	public float[] getFloatColumn(int index) {
+		return floats[checkColumn(VALUE_FLOAT, index)];
+	}
+
+	public double[] getDoubleColumn(int index) {
+		return doubles[checkColumn(VALUE_DOUBLE, index)];
+	}
+
+	/**
+	 * @return value @param index of one of the VALUE types of a sample as a double, booleans as 0 or 1
+	 */
+	public double getValue(int type, int index, int row) {
+		checkColumn(type, index);
+		switch (type) {
+		case VALUE_BOOL:
+			return bools[index][row] ? 1 : 0;
+		case VALUE_INT32:
+			return int32s[index][row];
+		case VALUE_INT64:
+			return int64s[index][row];
+		case VALUE_FLOAT:
+			return floats[index][row];
+		default:
+			return doubles[index][row];
+		}
+	}
+
+	private static int checkType(int type) {
+		if (type < VALUE_BOOL || type >= VALUE_TYPES) {
+			throw new IllegalArgumentException("No value type " + type);
+		}
+		return type;
+	}
+
+	private int checkColumn(int type, int index) {
+		if (index < 0 || index >= columnCounts[checkType(type)]) {
+			throw new IndexOutOfBoundsException("No column " + index + " of type " + type);
+		}
+		return index;
+	}
+
+	/**
+	 * @return a read buffer of at least @param size bytes
+	 */
+	byte[] getBuffer(int size) {
+		if (buffer.length < size) {
+			buffer = new byte[Math.max(size, 2 * buffer.length)];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Appends @param rows samples with the given record times and no values yet
+	 *
+	 * @return index of the first new sample
+	 */
+	int addRows(long[] recordTimes, int from, int rows) {
+		ensureCapacity(count + rows);
+		System.arraycopy(recordTimes, from, timestamps, count, rows);
+		return appendRows(rows);
+	}
+
+	/**
+	 * Appends a sample with no values yet
+	 *
+	 * @return index of the new sample
+	 */
+	int addRow(long recordTime) {
+		ensureCapacity(count + 1);
+		timestamps[count] = recordTime;
+		System.arraycopy(columnCounts, 0, lastRowColumnCounts, 0, VALUE_TYPES);
+		return appendRows(1);
+	}
+
+	/**
+	 * Drops the sample of the last addRow and the columns it added
+	 */
+	void removeLastRow() {
+		count--;
+		System.arraycopy(lastRowColumnCounts, 0, columnCounts, 0, VALUE_TYPES);
+	}
+
+	private int appendRows(int rows) {
+		int first = count;
+		count += rows;
+		for (int type = 0; type < VALUE_TYPES; type++) {
+			for (int index = 0; index < columnCounts[type]; index++) {
+				zero(type, index, first, count);
+			}
+		}
+		return first;
+	}
+
+	void setBool(int row, int index, boolean value) {
+		addColumns(VALUE_BOOL, index + 1);
+		bools[index][row] = value;
+	}
+
+	void setInt32(int row, int index, int value) {
+		addColumns(VALUE_INT32, index + 1);
+		int32s[index][row] = value;
+	}
+
+	void setInt64(int row, int index, long value) {
+		addColumns(VALUE_INT64, index + 1);
+		int64s[index][row] = value;
+	}
+
+	void setFloat(int row, int index, float value) {
+		addColumns(VALUE_FLOAT, index + 1);
+		floats[index][row] = value;
+	}
+
+	void setDouble(int row, int index, double value) {
+		addColumns(VALUE_DOUBLE, index + 1);
+		doubles[index][row] = value;
+	}
+
+	/**
+	 * Sets a column of @param rows samples from raw bits as kept by SensorStoreBlock: 0 or 1 for booleans, the
+	 * integers, Float.floatToRawIntBits and Double.doubleToRawLongBits
+	 */
+	void setColumn(int type, int index, int row, long[] bits, int from, int rows) {
+		addColumns(type, index + 1);
+		switch (type) {
+		case VALUE_BOOL:
+			boolean[] boolColumn = bools[index];
+			for (int i = 0; i < rows; i++) {
+				boolColumn[row + i] = bits[from + i] != 0;
+			}
+			break;
+		case VALUE_INT32:
+			int[] int32Column = int32s[index];
+			for (int i = 0; i < rows; i++) {
+				int32Column[row + i] = (int) bits[from + i];
+			}
+			break;
+		case VALUE_INT64:
+			System.arraycopy(bits, from, int64s[index], row, rows);
+			break;
+		case VALUE_FLOAT:
+			float[] floatColumn = floats[index];
+			for (int i = 0; i < rows; i++) {
+				floatColumn[row + i] = Float.intBitsToFloat((int) bits[from + i]);
+			}
+			break;
+		case VALUE_DOUBLE:
+			double[] doubleColumn = doubles[index];
+			for (int i = 0; i < rows; i++) {
+				doubleColumn[row + i] = Double.longBitsToDouble(bits[from + i]);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Adds columns of a type up to @param columns, reusing arrays of earlier retrievals. Samples added before a column
+	 * read as 0 in it.
+	 */
+	private void addColumns(int type, int columns) {
+		if (columns <= columnCounts[type]) {
+			return;
+		}
+		switch (type) {
+		case VALUE_BOOL:
+			if (bools.length < columns) {
+				bools = Arrays.copyOf(bools, columns);
+			}
+			break;
+		case VALUE_INT32:
+			if (int32s.length < columns) {
+				int32s = Arrays.copyOf(int32s, columns);
+			}
+			break;
+		case VALUE_INT64:
+			if (int64s.length < columns) {
+				int64s = Arrays.copyOf(int64s, columns);
+			}
+			break;
+		case VALUE_FLOAT:
+			if (floats.length < columns) {
+				floats = Arrays.copyOf(floats, columns);
+			}
+			break;
+		case VALUE_DOUBLE:
+			if (doubles.length < columns) {
+				doubles = Arrays.copyOf(doubles, columns);
+			}
+			break;
+		}
+		for (int index = columnCounts[type]; index < columns; index++) {
+			allocate(type, index);
+			zero(type, index, 0, count);
+		}
+		columnCounts[type] = columns;
+	}
+
+	private void allocate(int type, int index) {
+		switch (type) {
+		case VALUE_BOOL:
+			if (bools[index] == null || bools[index].length < capacity) {
+				bools[index] = bools[index] == null ? new boolean[capacity] : Arrays.copyOf(bools[index], capacity);
+			}
+			break;
+		case VALUE_INT32:
+			if (int32s[index] == null || int32s[index].length < capacity) {
+				int32s[index] = int32s[index] == null ? new int[capacity] : Arrays.copyOf(int32s[index], capacity);
+			}
+			break;
+		case VALUE_INT64:
+			if (int64s[index] == null || int64s[index].length < capacity) {
+				int64s[index] = int64s[index] == null ? new long[capacity] : Arrays.copyOf(int64s[index], capacity);
+			}
+			break;
+		case VALUE_FLOAT:
+			if (floats[index] == null || floats[index].length < capacity) {
+				floats[index] = floats[index] == null ? new float[capacity] : Arrays.copyOf(floats[index], capacity);
+			}
+			break;
+		case VALUE_DOUBLE:
+			if (doubles[index] == null || doubles[index].length < capacity) {
+				doubles[index] = doubles[index] == null ? new double[capacity] : Arrays.copyOf(doubles[index], capacity);
+			}
+			break;
+		}
+	}
+
+	private void zero(int type, int index, int from, int to) {
+		switch (type) {
+		case VALUE_BOOL:
+			Arrays.fill(bools[index], from, to, false);
+			break;
+		case VALUE_INT32:
+			Arrays.fill(int32s[index], from, to, 0);
+			break;
+		case VALUE_INT64:
+			Arrays.fill(int64s[index], from, to, 0L);
+			break;
+		case VALUE_FLOAT:
+			Arrays.fill(floats[index], from, to, 0f);
+			break;
+		case VALUE_DOUBLE:
+			Arrays.fill(doubles[index], from, to, 0d);
+			break;
+		}
+	}
+
+	private void ensureCapacity(int required) {
+		if (required <= capacity) {
+			return;
+		}
+		capacity = Math.max(required, 2 * capacity);
+		timestamps = Arrays.copyOf(timestamps, capacity);
+		for (int type = 0; type < VALUE_TYPES; type++) {
+			for (int index = 0; index < columnCounts[type]; index++) {
+				allocate(type, index);
+			}
+		}
+	}
+}
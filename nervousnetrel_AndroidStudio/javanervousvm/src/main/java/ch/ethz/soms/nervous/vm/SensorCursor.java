@@ -0,0 +1,258 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+
+public class SensorCursor implements Iterator<SensorData>, Closeable {
+
+	// Lazily reads the samples of a sensor page by page through a bounded read
+	// buffer, so that ranges of any size can be processed in constant memory.
+	// The cursor does not hold a lock between calls: each page is located
+	// under the read lock of the sensor when the cursor arrives at it.
+	// Sealed pages are read from their columnar block instead, row by row.
+
+	public final static int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * Position of a record in the store, used to resume reading where a cursor stopped
+	 */
+	public static class Position {
+		private final long page;
+		private final long offset;
+		private final long timestamp;
+
+		public Position(long page, long offset, long timestamp) {
+			this.page = page;
+			this.offset = offset;
+			this.timestamp = timestamp;
+		}
+
+		public long getPage() {
+			return page;
+		}
+
+		/**
+		 * @return byte offset of the record in the page file or row of the record in the block of a sealed page
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return lower bound of the record time, the offset does not survive sealing the page
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public String toString() {
+			return "(" + Long.toHexString(page) + "," + offset + "," + timestamp + ")";
+		}
+	}
+
+	private NervousVM vm;
+	private long sensorID;
+	private long fromTimestamp;
+	private long toTimestamp;
+	private long limit;
+	private int bufferSize;
+
+	private long page;
+	private long lastPage;
+	private long resumeOffset;
+
+	private FileInputStream fis;
+	private CountInputStream cis;
+	private long streamStart;
+	private long streamEnd;
+
+	private SensorStoreBlock block;
+	private int blockRow;
+	private int blockEnd;
+
+	private SensorData next;
+	private Position nextPosition;
+	private Position position;
+	private long returned;
+	private boolean closed;
+
+	SensorCursor(NervousVM vm, long sensorID, long firstPage, long lastPage, long resumeOffset, long fromTimestamp, long toTimestamp, long limit, int bufferSize) {
+		this.vm = vm;
+		this.sensorID = sensorID;
+		this.page = firstPage;
+		this.lastPage = lastPage;
+		this.resumeOffset = resumeOffset;
+		this.fromTimestamp = fromTimestamp;
+		this.toTimestamp = toTimestamp;
+		this.limit = limit;
+		this.bufferSize = bufferSize;
+		this.position = new Position(firstPage, resumeOffset, fromTimestamp);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null && !closed) {
+			advance();
+		}
+		return next != null;
+	}
+
+	@Override
+	public SensorData next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		SensorData sensorData = next;
+		next = null;
+		position = nextPosition;
+		returned++;
+		return sensorData;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return position of the first record that has not been returned yet
+	 */
+	public Position getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return number of records returned so far
+	 */
+	public long getCount() {
+		return returned;
+	}
+
+	private void advance() {
+		if (limit >= 0 && returned >= limit) {
+			return;
+		}
+		while (page <= lastPage) {
+			if (cis == null && block == null && !openPage()) {
+				if (page == lastPage) {
+					// Nothing (yet) on the last page
+					return;
+				}
+				nextPage();
+				continue;
+			}
+			if (block != null) {
+				if (blockRow <= blockEnd) {
+					next = block.getSample(blockRow);
+					blockRow++;
+					nextPosition = new Position(page, blockRow, next.getRecordTime() + 1);
+					return;
+				}
+				if (page == lastPage) {
+					closePage();
+					return;
+				}
+				nextPage();
+				continue;
+			}
+			long recordOffset = streamStart + cis.bytesRead();
+			if (recordOffset <= streamEnd) {
+				SensorData sensorData = null;
+				try {
+					sensorData = SensorData.parseDelimitedFrom(cis);
+				} catch (IOException ex) {
+					sensorData = null;
+				}
+				if (sensorData != null) {
+					next = sensorData;
+					nextPosition = new Position(page, streamStart + cis.bytesRead(), sensorData.getRecordTime() + 1);
+					return;
+				}
+			}
+			if (page == lastPage) {
+				// Stay on the last page, it may still grow
+				resumeOffset = recordOffset;
+				closePage();
+				return;
+			}
+			nextPage();
+		}
+	}
+
+	private boolean openPage() {
+		long from = Math.max(fromTimestamp, position.getTimestamp());
+		SensorStoreBlock sealed = vm.loadBlock(sensorID, page);
+		if (sealed != null) {
+			int[] rows = sealed.findRange(from, toTimestamp);
+			if (rows == null) {
+				return false;
+			}
+			block = sealed;
+			blockRow = rows[0];
+			blockEnd = rows[1];
+			return true;
+		}
+		long[] range = vm.findRecordRange(sensorID, page, from, toTimestamp);
+		if (range == null) {
+			return false;
+		}
+		long start = Math.max(range[0], resumeOffset);
+		if (start > range[1]) {
+			return false;
+		}
+		try {
+			File file = FileChannelCache.getFile(vm.getDir(), sensorID, page, FileChannelCache.KIND_PAGE);
+			fis = new FileInputStream(file);
+			fis.getChannel().position(start);
+			cis = new CountInputStream(new BufferedInputStream(fis, bufferSize));
+			streamStart = start;
+			streamEnd = range[1];
+			return true;
+		} catch (IOException ex) {
+			closePage();
+			return false;
+		}
+	}
+
+	private void nextPage() {
+		closePage();
+		// Time partitioned sensors have no pages for empty slots
+		page = vm.findNextPage(sensorID, page);
+		resumeOffset = 0;
+		if (next == null && page <= lastPage) {
+			position = new Position(page, 0, position.getTimestamp());
+		}
+	}
+
+	private void closePage() {
+		block = null;
+		if (cis != null) {
+			try {
+				cis.close();
+			} catch (IOException ex) {
+			}
+			cis = null;
+		}
+		if (fis != null) {
+			try {
+				fis.close();
+			} catch (IOException ex) {
+			}
+			fis = null;
+		}
+	}
+
+	@Override
+	public void close() {
+		closePage();
+		next = null;
+		closed = true;
+	}
+}
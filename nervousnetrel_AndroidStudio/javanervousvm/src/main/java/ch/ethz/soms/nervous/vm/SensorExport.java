@@ -0,0 +1,169 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+
+import com.google.protobuf.CodedOutputStream;
+
+public class SensorExport {
+
+	// Reusable SensorUpload frame of NervousVM.exportFrom. Pages store their
+	// records length delimited, which is how sensor_values (field 5) embeds
+	// them in a SensorUpload apart from the tag, so the record bytes are
+	// copied from the page file with the tag in front, without parsing them
+	// into SensorData and serializing them again. The header fields are put
+	// in front of the records when the frame is written, so the same frame
+	// can be written to several streams. Sealed pages have no record bytes
+	// and are encoded from their columns. The buffers grow as needed and are
+	// kept across exports.
+
+	private final static int TAG_HUUID = 1 << 3;
+	private final static int TAG_LUUID = 2 << 3;
+	private final static int TAG_UPLOAD_TIME = 3 << 3;
+	private final static int TAG_SENSOR_ID = 4 << 3;
+	private final static int TAG_SENSOR_VALUES = 5 << 3 | 2;
+
+	private final static int MAX_VARINT_SIZE = 10;
+	// Frame length and four tagged varint fields
+	private final static int HEADER_SIZE = MAX_VARINT_SIZE + 4 * (1 + MAX_VARINT_SIZE);
+
+	private final static int DEFAULT_CAPACITY = 64 * 1024;
+
+	private byte[] frame;
+	private int length;
+	private int count;
+	private byte[] header = new byte[HEADER_SIZE];
+	private byte[] buffer = new byte[0];
+
+	private long sensorID;
+	private long huuid;
+	private long luuid;
+	private SensorCursor.Position position;
+	private long lastRecordTime;
+
+	public SensorExport() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            number of record bytes the frame is allocated for initially
+	 */
+	public SensorExport(int capacity) {
+		this.frame = new byte[HEADER_SIZE + Math.max(0, capacity)];
+		this.length = HEADER_SIZE;
+	}
+
+	/**
+	 * Empties the frame for the samples of a sensor after @param position, keeping the buffers
+	 */
+	void clear(long sensorID, long huuid, long luuid, SensorCursor.Position position) {
+		this.sensorID = sensorID;
+		this.huuid = huuid;
+		this.luuid = luuid;
+		this.position = position;
+		this.lastRecordTime = position.getTimestamp() - 1;
+		length = HEADER_SIZE;
+		count = 0;
+	}
+
+	/**
+	 * @return number of samples in the frame
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public long getSensorID() {
+		return sensorID;
+	}
+
+	/**
+	 * @return position after the last sample in the frame, to be committed once the frame has been uploaded
+	 */
+	public SensorCursor.Position getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return record time of the last sample in the frame
+	 */
+	public long getLastRecordTime() {
+		return lastRecordTime;
+	}
+
+	byte[] getBuffer(int size) {
+		if (buffer.length < size) {
+			buffer = new byte[Math.max(size, 2 * buffer.length)];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Appends a length delimited record as it is stored in a page
+	 */
+	void addRecord(byte[] data, int offset, int recordLength) {
+		ensureCapacity(1 + recordLength);
+		frame[length++] = (byte) TAG_SENSOR_VALUES;
+		System.arraycopy(data, offset, frame, length, recordLength);
+		length += recordLength;
+		count++;
+	}
+
+	void addSample(SensorData sensorData) throws IOException {
+		int size = sensorData.getSerializedSize();
+		ensureCapacity(1 + MAX_VARINT_SIZE + size);
+		frame[length] = (byte) TAG_SENSOR_VALUES;
+		int offset = putVarint(frame, length + 1, size);
+		CodedOutputStream cos = CodedOutputStream.newInstance(frame, offset, size);
+		sensorData.writeTo(cos);
+		cos.checkNoSpaceLeft();
+		length = offset + size;
+		count++;
+	}
+
+	void setPosition(long page, long offset, long recordTime) {
+		position = new SensorCursor.Position(page, offset, recordTime + 1);
+		lastRecordTime = recordTime;
+	}
+
+	private void ensureCapacity(int size) {
+		if (frame.length - length < size) {
+			byte[] grown = new byte[Math.max(length + size, 2 * frame.length)];
+			System.arraycopy(frame, 0, grown, 0, length);
+			frame = grown;
+		}
+	}
+
+	/**
+	 * Writes the frame as a length delimited SensorUpload, as SensorUpload.writeDelimitedTo would
+	 */
+	public void writeTo(OutputStream os, long uploadTime) throws IOException {
+		int fields = putVarint(header, MAX_VARINT_SIZE, TAG_HUUID);
+		fields = putVarint(header, fields, huuid);
+		fields = putVarint(header, fields, TAG_LUUID);
+		fields = putVarint(header, fields, luuid);
+		fields = putVarint(header, fields, TAG_UPLOAD_TIME);
+		fields = putVarint(header, fields, uploadTime);
+		fields = putVarint(header, fields, TAG_SENSOR_ID);
+		fields = putVarint(header, fields, sensorID);
+		int fieldsSize = fields - MAX_VARINT_SIZE;
+		int prefixSize = putVarint(header, 0, fieldsSize + length - HEADER_SIZE);
+		// Right in front of the records
+		int start = HEADER_SIZE - fieldsSize - prefixSize;
+		System.arraycopy(header, 0, frame, start, prefixSize);
+		System.arraycopy(header, MAX_VARINT_SIZE, frame, start + prefixSize, fieldsSize);
+		os.write(frame, start, length - start);
+	}
+
+	private static int putVarint(byte[] data, int offset, long value) {
+		while ((value & ~0x7FL) != 0) {
+			data[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[offset++] = (byte) value;
+		return offset;
+	}
+}
@@ -0,0 +1,322 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+
+public class SensorIngest {
+
+	// Decouples the producers of samples from the storage. Producers enqueue
+	// into a bounded lock-free ring buffer (every slot carries a sequence
+	// number that tells whether it is free or filled for the current lap), a
+	// single writer thread drains it in batches and stores them per sensor,
+	// in the order they were enqueued. When the buffer is full the
+	// backpressure mode decides whether the producer waits, the oldest
+	// queued sample is dropped or the new sample is dropped.
+
+	public final static int BACKPRESSURE_BLOCK = 0;
+	public final static int BACKPRESSURE_DROP_OLDEST = 1;
+	public final static int BACKPRESSURE_DROP_NEWEST = 2;
+
+	public final static int DEFAULT_CAPACITY = 8192;
+	public final static int DEFAULT_MAX_BATCH = 1024;
+
+	private final static long BLOCK_PARK_NANOS = 100000;
+
+	private static class Entry {
+		final long sensorID;
+		final SensorData sensorData;
+
+		Entry(long sensorID, SensorData sensorData) {
+			this.sensorID = sensorID;
+			this.sensorData = sensorData;
+		}
+	}
+
+	private final NervousVM vm;
+	private final int backpressure;
+	private final int maxBatch;
+
+	private final int mask;
+	private final Entry[] slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong maxQueueDepth = new AtomicLong();
+
+	private final Thread writer;
+	private volatile boolean writerWaiting;
+	private volatile boolean closed;
+
+	public SensorIngest(NervousVM vm) {
+		this(vm, DEFAULT_CAPACITY, BACKPRESSURE_BLOCK);
+	}
+
+	/**
+	 * Starts the writer thread
+	 *
+	 * @param capacity
+	 *            number of queued samples, rounded up to a power of two
+	 * @param backpressure
+	 *            one of the BACKPRESSURE modes
+	 */
+	public SensorIngest(NervousVM vm, int capacity, int backpressure) {
+		if (capacity <= 0 || capacity > (1 << 30) || backpressure < BACKPRESSURE_BLOCK || backpressure > BACKPRESSURE_DROP_NEWEST) {
+			throw new IllegalArgumentException("Invalid ingest configuration");
+		}
+		this.vm = vm;
+		this.backpressure = backpressure;
+		this.maxBatch = DEFAULT_MAX_BATCH;
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.slots = new Entry[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runWriter();
+			}
+		}, "NervousVM-Ingest");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Queues a sample for storing. Samples of a sensor are stored in the order they are enqueued and have to be
+	 * enqueued with increasing record times.
+	 *
+	 * @return false if the sample was dropped because the buffer is full or the ingest is closed
+	 */
+	public boolean enqueue(long sensorID, SensorData sensorData) {
+		if (sensorData == null) {
+			return false;
+		}
+		Entry entry = new Entry(sensorID, sensorData);
+		while (!closed) {
+			if (offer(entry)) {
+				if (writerWaiting) {
+					LockSupport.unpark(writer);
+				}
+				return true;
+			}
+			if (backpressure == BACKPRESSURE_DROP_NEWEST) {
+				break;
+			} else if (backpressure == BACKPRESSURE_DROP_OLDEST) {
+				if (poll() != null) {
+					dropped.incrementAndGet();
+					processed.incrementAndGet();
+				}
+			} else {
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+			}
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	private boolean offer(Entry entry) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots[index] = entry;
+					// Publishes the slot to the consumer
+					sequences.lazySet(index, position + 1);
+					updateMaxQueueDepth(position + 1 - head.get());
+					return true;
+				}
+			} else if (difference < 0) {
+				// Full
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Takes the oldest sample, called by the writer and by producers that drop the oldest sample
+	 */
+	private Entry poll() {
+		while (true) {
+			long position = head.get();
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - (position + 1);
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					Entry entry = slots[index];
+					slots[index] = null;
+					// Frees the slot for the next lap
+					sequences.lazySet(index, position + mask + 1);
+					return entry;
+				}
+			} else if (difference < 0) {
+				// Empty or not yet published
+				return null;
+			}
+		}
+	}
+
+	private void updateMaxQueueDepth(long depth) {
+		long max = maxQueueDepth.get();
+		while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+			max = maxQueueDepth.get();
+		}
+	}
+
+	private void runWriter() {
+		ArrayList<Entry> batch = new ArrayList<Entry>(maxBatch);
+		while (true) {
+			Entry entry;
+			while (batch.size() < maxBatch && (entry = poll()) != null) {
+				batch.add(entry);
+			}
+			if (batch.isEmpty()) {
+				if (closed && tail.get() == head.get()) {
+					return;
+				}
+				writerWaiting = true;
+				if (tail.get() == head.get() && !closed) {
+					LockSupport.park(this);
+				}
+				writerWaiting = false;
+				continue;
+			}
+			write(batch);
+			processed.addAndGet(batch.size());
+			batch.clear();
+		}
+	}
+
+	private void write(List<Entry> batch) {
+		// Group by sensor so that each sensor is stored with a single batch
+		LinkedHashMap<Long, List<SensorData>> sensorBatches = new LinkedHashMap<Long, List<SensorData>>();
+		for (Entry entry : batch) {
+			List<SensorData> sensorBatch = sensorBatches.get(entry.sensorID);
+			if (sensorBatch == null) {
+				sensorBatch = new ArrayList<SensorData>();
+				sensorBatches.put(entry.sensorID, sensorBatch);
+			}
+			sensorBatch.add(entry.sensorData);
+		}
+		for (Map.Entry<Long, List<SensorData>> sensorBatch : sensorBatches.entrySet()) {
+			try {
+				vm.storeSensors(sensorBatch.getKey(), sensorBatch.getValue());
+			} catch (RuntimeException ex) {
+				// Keep the writer alive for the other sensors
+				ex.printStackTrace();
+			}
+		}
+		written.addAndGet(batch.size());
+		batches.incrementAndGet();
+	}
+
+	/**
+	 * Waits until all samples enqueued so far have been stored or dropped and flushes the storage
+	 */
+	public void flush() {
+		long target = tail.get();
+		while (processed.get() < target && writer.isAlive()) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+		}
+		vm.flush();
+	}
+
+	/**
+	 * Stops accepting samples and waits until the writer has stored the queued ones
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		// Samples of producers that raced with closing
+		ArrayList<Entry> batch = new ArrayList<Entry>();
+		Entry entry;
+		while ((entry = poll()) != null) {
+			batch.add(entry);
+		}
+		if (!batch.isEmpty()) {
+			write(batch);
+			processed.addAndGet(batch.size());
+		}
+	}
+
+	public int getBackpressure() {
+		return backpressure;
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * @return number of samples waiting for the writer
+	 */
+	public long getQueueDepth() {
+		return Math.max(0, tail.get() - head.get());
+	}
+
+	/**
+	 * @return highest number of samples that were waiting at the same time
+	 */
+	public long getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	/**
+	 * @return number of samples that were accepted into the buffer
+	 */
+	public long getEnqueued() {
+		return tail.get();
+	}
+
+	/**
+	 * @return number of samples dropped by backpressure or because the ingest was closed
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of samples handed to the storage, including the ones it rejected
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * @return number of batches the writer has drained
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+}
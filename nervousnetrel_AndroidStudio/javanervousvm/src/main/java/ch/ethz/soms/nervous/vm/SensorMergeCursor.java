@@ -0,0 +1,206 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.Closeable;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+
+public class SensorMergeCursor implements Iterator<SensorData[]>, Closeable {
+
+	// Merges the cursors of several sensors into rows aligned in time. A heap
+	// keyed on the record time of the next sample of every sensor yields the
+	// distinct record times of all sensors in ascending order, one row per
+	// record time. Only the next and the last consumed sample of every sensor
+	// are kept, so memory does not depend on the size of the range. Several
+	// samples of one sensor with the same record time count as one, the last
+	// one wins.
+
+	/**
+	 * Rows only for record times at which every sensor has a sample, so a sensor without data in the range leaves no
+	 * rows at all
+	 */
+	public final static int ALIGN_EXACT = 0;
+	/**
+	 * Rows for every record time, each sensor contributes its sample closest to the record time within the tolerance
+	 * or null
+	 */
+	public final static int ALIGN_NEAREST = 1;
+	/**
+	 * Rows for every record time, each sensor contributes its last sample at or before the record time (last value
+	 * carried forward) or null if it has none yet
+	 */
+	public final static int ALIGN_LOCF = 2;
+
+	private SensorCursor[] cursors;
+	private int alignment;
+	private long tolerance;
+
+	private SensorData[] heads;
+	private SensorData[] lasts;
+	private PriorityQueue<Integer> heap;
+
+	private SensorData[] next;
+	private long nextTimestamp;
+	private long timestamp;
+	private boolean closed;
+
+	/**
+	 * @param cursors
+	 *            one cursor per sensor, null for a sensor without data. The cursors are closed with this cursor.
+	 * @param alignment
+	 *            one of the ALIGN modes
+	 * @param tolerance
+	 *            maximum distance of a sample to the record time of the row in ALIGN_NEAREST
+	 */
+	public SensorMergeCursor(SensorCursor[] cursors, int alignment, long tolerance) {
+		this.cursors = cursors;
+		this.alignment = alignment;
+		this.tolerance = tolerance;
+		this.heads = new SensorData[cursors.length];
+		this.lasts = new SensorData[cursors.length];
+		this.heap = new PriorityQueue<Integer>(Math.max(1, cursors.length), new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				long lhsTimestamp = heads[lhs].getRecordTime();
+				long rhsTimestamp = heads[rhs].getRecordTime();
+				if (lhsTimestamp != rhsTimestamp) {
+					return lhsTimestamp < rhsTimestamp ? -1 : 1;
+				}
+				return lhs.compareTo(rhs);
+			}
+		});
+		if (alignment < ALIGN_EXACT || alignment > ALIGN_LOCF) {
+			close();
+			throw new IllegalArgumentException("Unknown alignment " + alignment);
+		}
+		for (int i = 0; i < cursors.length; i++) {
+			pull(i);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null && !closed) {
+			advance();
+		}
+		return next != null;
+	}
+
+	/**
+	 * @return one sample per sensor in the order of the cursors, entries may be null unless aligned with ALIGN_EXACT.
+	 *         The array is not reused.
+	 */
+	@Override
+	public SensorData[] next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		SensorData[] row = next;
+		next = null;
+		timestamp = nextTimestamp;
+		return row;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return record time of the row last returned by next()
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	private void advance() {
+		while (!heap.isEmpty()) {
+			if (alignment == ALIGN_EXACT && isAnyExhausted()) {
+				// Every sample of that sensor is older than the remaining record times
+				heap.clear();
+				return;
+			}
+			long rowTimestamp = heads[heap.peek()].getRecordTime();
+			while (!heap.isEmpty() && heads[heap.peek()].getRecordTime() == rowTimestamp) {
+				int sensor = heap.poll();
+				lasts[sensor] = heads[sensor];
+				pull(sensor);
+			}
+			SensorData[] row = align(rowTimestamp);
+			if (row != null) {
+				next = row;
+				nextTimestamp = rowTimestamp;
+				return;
+			}
+		}
+	}
+
+	private boolean isAnyExhausted() {
+		for (SensorData head : heads) {
+			if (head == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Builds the row of a record time from the last consumed and the next sample of every sensor
+	 *
+	 * @return the row or null if it is skipped
+	 */
+	private SensorData[] align(long rowTimestamp) {
+		SensorData[] row = new SensorData[cursors.length];
+		for (int i = 0; i < cursors.length; i++) {
+			SensorData last = lasts[i];
+			switch (alignment) {
+			case ALIGN_EXACT:
+				if (last == null || last.getRecordTime() != rowTimestamp) {
+					return null;
+				}
+				row[i] = last;
+				break;
+			case ALIGN_NEAREST:
+				SensorData head = heads[i];
+				long lastDistance = last == null ? Long.MAX_VALUE : rowTimestamp - last.getRecordTime();
+				long headDistance = head == null ? Long.MAX_VALUE : head.getRecordTime() - rowTimestamp;
+				if (lastDistance <= headDistance) {
+					row[i] = lastDistance <= tolerance ? last : null;
+				} else {
+					row[i] = headDistance <= tolerance ? head : null;
+				}
+				break;
+			default:
+				row[i] = last;
+				break;
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Reads the next sample of a sensor and puts it on the heap
+	 */
+	private void pull(int sensor) {
+		heads[sensor] = null;
+		if (cursors[sensor] != null && cursors[sensor].hasNext()) {
+			heads[sensor] = cursors[sensor].next();
+			heap.add(sensor);
+		}
+	}
+
+	@Override
+	public void close() {
+		for (SensorCursor cursor : cursors) {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		heap.clear();
+		next = null;
+		closed = true;
+	}
+}
@@ -0,0 +1,204 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.util.Arrays;
+
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+
+public class SensorPredicate {
+
+	// Conjunction of comparisons of numeric value columns against constants,
+	// e.g. "float 0 > 25 and float 0 < 30", for NervousVM.scan. Columns are
+	// addressed with the value types of SensorAggregate, so the page
+	// summaries tell whether a page can hold a match at all. Values are
+	// compared as doubles. A sample without the value does not match.
+
+	public final static int GREATER = 0;
+	public final static int GREATER_EQUAL = 1;
+	public final static int LESS = 2;
+	public final static int LESS_EQUAL = 3;
+	public final static int EQUAL = 4;
+	public final static int NOT_EQUAL = 5;
+
+	private final int[] types;
+	private final int[] indexes;
+	private final int[] operators;
+	private final double[] values;
+
+	/**
+	 * @param type
+	 *            one of the numeric SensorColumns VALUE types
+	 * @param index
+	 *            index of the value within its type
+	 * @param operator
+	 *            one of the comparison operators
+	 */
+	public SensorPredicate(int type, int index, int operator, double value) {
+		this(new int[] { type }, new int[] { index }, new int[] { operator }, new double[] { value });
+	}
+
+	private SensorPredicate(int[] types, int[] indexes, int[] operators, double[] values) {
+		int last = types.length - 1;
+		if (types[last] < SensorColumns.VALUE_INT32 || types[last] > SensorColumns.VALUE_DOUBLE || indexes[last] < 0 || operators[last] < GREATER || operators[last] > NOT_EQUAL) {
+			throw new IllegalArgumentException("Invalid predicate term");
+		}
+		this.types = types;
+		this.indexes = indexes;
+		this.operators = operators;
+		this.values = values;
+	}
+
+	/**
+	 * @return a predicate that additionally requires the given comparison to hold
+	 */
+	public SensorPredicate and(int type, int index, int operator, double value) {
+		int terms = types.length;
+		int[] newTypes = Arrays.copyOf(types, terms + 1);
+		int[] newIndexes = Arrays.copyOf(indexes, terms + 1);
+		int[] newOperators = Arrays.copyOf(operators, terms + 1);
+		double[] newValues = Arrays.copyOf(values, terms + 1);
+		newTypes[terms] = type;
+		newIndexes[terms] = index;
+		newOperators[terms] = operator;
+		newValues[terms] = value;
+		return new SensorPredicate(newTypes, newIndexes, newOperators, newValues);
+	}
+
+	/**
+	 * @return false if no sample summarized by @param aggregate can match, e.g. a page whose maximum is below the
+	 *         threshold
+	 */
+	public boolean mayMatch(SensorAggregate aggregate) {
+		for (int term = 0; term < types.length; term++) {
+			if (indexes[term] >= aggregate.getColumnCount(types[term]) || aggregate.getCount(types[term], indexes[term]) == 0) {
+				return false;
+			}
+			double min = aggregate.getMin(types[term], indexes[term]);
+			double max = aggregate.getMax(types[term], indexes[term]);
+			if (Double.isNaN(min) || Double.isNaN(max)) {
+				// A NaN sample leaves no usable bounds
+				continue;
+			}
+			double value = values[term];
+			boolean possible;
+			switch (operators[term]) {
+			case GREATER:
+				possible = max > value;
+				break;
+			case GREATER_EQUAL:
+				possible = max >= value;
+				break;
+			case LESS:
+				possible = min < value;
+				break;
+			case LESS_EQUAL:
+				possible = min <= value;
+				break;
+			case EQUAL:
+				possible = min <= value && value <= max;
+				break;
+			default:
+				possible = min != value || max != value;
+				break;
+			}
+			if (!possible) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean matches(SensorData sensorData) {
+		for (int term = 0; term < types.length; term++) {
+			int index = indexes[term];
+			double value;
+			switch (types[term]) {
+			case SensorColumns.VALUE_INT32:
+				if (index >= sensorData.getValueInt32Count()) {
+					return false;
+				}
+				value = sensorData.getValueInt32(index);
+				break;
+			case SensorColumns.VALUE_INT64:
+				if (index >= sensorData.getValueInt64Count()) {
+					return false;
+				}
+				value = sensorData.getValueInt64(index);
+				break;
+			case SensorColumns.VALUE_FLOAT:
+				if (index >= sensorData.getValueFloatCount()) {
+					return false;
+				}
+				value = sensorData.getValueFloat(index);
+				break;
+			default:
+				if (index >= sensorData.getValueDoubleCount()) {
+					return false;
+				}
+				value = sensorData.getValueDouble(index);
+				break;
+			}
+			if (!compare(operators[term], value, values[term])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Evaluates the predicate on a decoded row. Columns the result does not have count as missing values, values of
+	 * samples that are shorter than their columns read as 0.
+	 */
+	boolean matches(SensorColumns sensorColumns, int row) {
+		for (int term = 0; term < types.length; term++) {
+			int index = indexes[term];
+			double value;
+			switch (types[term]) {
+			case SensorColumns.VALUE_INT32:
+				if (index >= sensorColumns.getColumnCount(SensorColumns.VALUE_INT32)) {
+					return false;
+				}
+				value = sensorColumns.getInt32Column(index)[row];
+				break;
+			case SensorColumns.VALUE_INT64:
+				if (index >= sensorColumns.getColumnCount(SensorColumns.VALUE_INT64)) {
+					return false;
+				}
+				value = sensorColumns.getInt64Column(index)[row];
+				break;
+			case SensorColumns.VALUE_FLOAT:
+				if (index >= sensorColumns.getColumnCount(SensorColumns.VALUE_FLOAT)) {
+					return false;
+				}
+				value = sensorColumns.getFloatColumn(index)[row];
+				break;
+			default:
+				if (index >= sensorColumns.getColumnCount(SensorColumns.VALUE_DOUBLE)) {
+					return false;
+				}
+				value = sensorColumns.getDoubleColumn(index)[row];
+				break;
+			}
+			if (!compare(operators[term], value, values[term])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean compare(int operator, double value, double threshold) {
+		switch (operator) {
+		case GREATER:
+			return value > threshold;
+		case GREATER_EQUAL:
+			return value >= threshold;
+		case LESS:
+			return value < threshold;
+		case LESS_EQUAL:
+			return value <= threshold;
+		case EQUAL:
+			return value == threshold;
+		default:
+			return value != threshold;
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+
+public class SensorRollup {
+
+	// Downsampled history of one sensor, one file (<id>R<tier>) per tier.
+	// Stored samples go into the open bucket of the finest tier, a closed
+	// bucket is appended to the file of its tier and merged into the open
+	// bucket of the next coarser one. Open buckets only live in memory and
+	// are rebuilt from the finer tier, respectively the pages, after a
+	// restart. A tier file starts with a header (magic, version, bucket
+	// length, number of columns per value type) followed by fixed width
+	// records (bucket start, aggregate). Columns beyond those of the first
+	// bucket are not kept.
+
+	public final static int MAGIC = 0x4E565252;
+	public final static int VERSION = 1;
+	public final static int HEADER_SIZE = 24;
+
+	private NervousVM vm;
+	private File dir;
+	private long sensorID;
+	private RollupTier[] tiers;
+
+	private long[] openStarts;
+	private SensorAggregate[] openBuckets;
+	private boolean recovered;
+
+	SensorRollup(NervousVM vm, long sensorID, RollupTier[] tiers) {
+		this.vm = vm;
+		this.dir = vm.getDir();
+		this.sensorID = sensorID;
+		this.tiers = tiers;
+		this.openStarts = new long[tiers.length];
+		this.openBuckets = new SensorAggregate[tiers.length];
+	}
+
+	public static File getFile(File dir, long sensorID, int tier) {
+		return FileChannelCache.getFile(dir, sensorID, tier, FileChannelCache.KIND_ROLLUP);
+	}
+
+	/**
+	 * Rebuilds the open buckets, from the coarsest tier down to the pages. Has to be called with a lock of the sensor
+	 * held.
+	 */
+	synchronized void recover() {
+		if (recovered) {
+			return;
+		}
+		for (int tier = tiers.length - 1; tier > 0; tier--) {
+			for (RollupBucket bucket : readBuckets(tier - 1, getClosedEnd(tier), Long.MAX_VALUE)) {
+				addBucket(tier, bucket.getStart(), bucket.getAggregate());
+			}
+		}
+		List<SensorData> sensorDataList = vm.retrieveLocked(sensorID, Math.max(0, getClosedEnd(0)), Long.MAX_VALUE);
+		if (sensorDataList != null) {
+			addAll(sensorDataList);
+		}
+		recovered = true;
+	}
+
+	/**
+	 * Adds stored samples in ascending order
+	 */
+	synchronized void addAll(List<SensorData> sensorDataList) {
+		for (SensorData sensorData : sensorDataList) {
+			long start = tiers[0].getBucketStart(sensorData.getRecordTime());
+			if (openBuckets[0] != null && openStarts[0] != start) {
+				close(0);
+			}
+			if (openBuckets[0] == null) {
+				openBuckets[0] = new SensorAggregate();
+				openStarts[0] = start;
+			}
+			openBuckets[0].add(sensorData);
+		}
+	}
+
+	private void addBucket(int tier, long bucketStart, SensorAggregate aggregate) {
+		long start = tiers[tier].getBucketStart(bucketStart);
+		if (openBuckets[tier] != null && openStarts[tier] != start) {
+			close(tier);
+		}
+		if (openBuckets[tier] == null) {
+			openBuckets[tier] = new SensorAggregate();
+			openStarts[tier] = start;
+		}
+		openBuckets[tier].merge(aggregate);
+	}
+
+	private void close(int tier) {
+		append(tier, openStarts[tier], openBuckets[tier]);
+		if (tier + 1 < tiers.length) {
+			addBucket(tier + 1, openStarts[tier], openBuckets[tier]);
+		}
+		openBuckets[tier] = null;
+	}
+
+	/**
+	 * Returns the buckets of the finest tier that reaches back to @param fromTimestamp, or that reaches back as far as
+	 * the coarsest tier if none does. The buckets that are still open are included.
+	 */
+	synchronized List<RollupBucket> retrieve(long fromTimestamp, long toTimestamp) {
+		long coarsestStart = getOldestStart(tiers.length - 1);
+		int tier = 0;
+		while (tier < tiers.length - 1 && getOldestStart(tier) > Math.max(fromTimestamp, coarsestStart)) {
+			tier++;
+		}
+		return retrieve(tier, fromTimestamp, toTimestamp);
+	}
+
+	synchronized List<RollupBucket> retrieve(int tier, long fromTimestamp, long toTimestamp) {
+		long bucketMillis = tiers[tier].getBucketMillis();
+		long fromStart = tiers[tier].getBucketStart(fromTimestamp);
+		List<RollupBucket> buckets = readBuckets(tier, fromStart, toTimestamp);
+		// Open buckets of this and all finer tiers, by the bucket of this tier they fall into
+		TreeMap<Long, SensorAggregate> open = new TreeMap<Long, SensorAggregate>();
+		for (int i = 0; i <= tier; i++) {
+			if (openBuckets[i] != null) {
+				long start = tiers[tier].getBucketStart(openStarts[i]);
+				SensorAggregate aggregate = open.get(start);
+				if (aggregate == null) {
+					aggregate = new SensorAggregate();
+					open.put(start, aggregate);
+				}
+				aggregate.merge(openBuckets[i]);
+			}
+		}
+		for (Map.Entry<Long, SensorAggregate> bucket : open.entrySet()) {
+			if (bucket.getKey() >= fromStart && bucket.getKey() <= toTimestamp) {
+				buckets.add(new RollupBucket(bucket.getKey(), bucketMillis, bucket.getValue()));
+			}
+		}
+		return buckets;
+	}
+
+	/**
+	 * @return start of the oldest bucket of the tier, Long.MAX_VALUE if it is empty
+	 */
+	private long getOldestStart(int tier) {
+		List<RollupBucket> first = readBuckets(tier, Long.MIN_VALUE, Long.MAX_VALUE, 1);
+		if (!first.isEmpty()) {
+			return first.get(0).getStart();
+		}
+		long oldest = Long.MAX_VALUE;
+		for (int i = 0; i <= tier; i++) {
+			if (openBuckets[i] != null) {
+				oldest = Math.min(oldest, tiers[tier].getBucketStart(openStarts[i]));
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * @return end of the last closed bucket of the tier, Long.MIN_VALUE if there is none
+	 */
+	private long getClosedEnd(int tier) {
+		RandomAccessFile raf = null;
+		try {
+			File file = getFile(dir, sensorID, tier);
+			if (!file.exists()) {
+				return Long.MIN_VALUE;
+			}
+			raf = new RandomAccessFile(file, "r");
+			int[] columnCounts = readHeader(raf, tier);
+			if (columnCounts == null) {
+				return Long.MIN_VALUE;
+			}
+			int recordSize = getRecordSize(columnCounts);
+			long records = (raf.length() - HEADER_SIZE) / recordSize;
+			if (records == 0) {
+				return Long.MIN_VALUE;
+			}
+			raf.seek(HEADER_SIZE + (records - 1) * recordSize);
+			return raf.readLong() + tiers[tier].getBucketMillis();
+		} catch (IOException ex) {
+			return Long.MIN_VALUE;
+		} finally {
+			// Cleanup
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	private static int getRecordSize(int[] columnCounts) {
+		return 8 + SensorAggregate.getEncodedSize(columnCounts);
+	}
+
+	/**
+	 * @return the column counts of a valid header or null
+	 */
+	private int[] readHeader(RandomAccessFile raf, int tier) throws IOException {
+		if (raf.length() < HEADER_SIZE) {
+			return null;
+		}
+		raf.seek(0);
+		if (raf.readInt() != MAGIC || raf.readInt() != VERSION || raf.readLong() != tiers[tier].getBucketMillis()) {
+			return null;
+		}
+		int[] columnCounts = new int[4];
+		for (int type = 0; type < columnCounts.length; type++) {
+			columnCounts[type] = raf.readByte() & 0xFF;
+		}
+		return columnCounts;
+	}
+
+	private List<RollupBucket> readBuckets(int tier, long fromStart, long toStart) {
+		return readBuckets(tier, fromStart, toStart, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the closed buckets of the tier that start in [fromStart, toStart]
+	 */
+	private List<RollupBucket> readBuckets(int tier, long fromStart, long toStart, int limit) {
+		List<RollupBucket> buckets = new ArrayList<RollupBucket>();
+		File file = getFile(dir, sensorID, tier);
+		if (!file.exists()) {
+			return buckets;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			int[] columnCounts = readHeader(raf, tier);
+			if (columnCounts == null) {
+				return buckets;
+			}
+			int recordSize = getRecordSize(columnCounts);
+			long records = (raf.length() - HEADER_SIZE) / recordSize;
+			// Binary search for the first bucket >= fromStart
+			long lower = 0;
+			long upper = records;
+			while (lower < upper) {
+				long middle = (lower + upper) >>> 1;
+				raf.seek(HEADER_SIZE + middle * recordSize);
+				if (raf.readLong() < fromStart) {
+					lower = middle + 1;
+				} else {
+					upper = middle;
+				}
+			}
+			raf.seek(HEADER_SIZE + lower * recordSize);
+			byte[] record = new byte[recordSize];
+			for (long i = lower; i < records && buckets.size() < limit; i++) {
+				raf.readFully(record);
+				ByteBuffer buffer = ByteBuffer.wrap(record);
+				long start = buffer.getLong();
+				if (start > toStart) {
+					break;
+				}
+				buckets.add(new RollupBucket(start, tiers[tier].getBucketMillis(), SensorAggregate.readFrom(buffer, columnCounts)));
+			}
+		} catch (IOException ex) {
+		} finally {
+			// Cleanup
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+		return buckets;
+	}
+
+	private void append(int tier, long start, SensorAggregate aggregate) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(getFile(dir, sensorID, tier), "rw");
+			int[] columnCounts = readHeader(raf, tier);
+			if (columnCounts == null) {
+				// New file or one of different tiers
+				columnCounts = aggregate.getColumnCounts();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC);
+				header.putInt(VERSION);
+				header.putLong(tiers[tier].getBucketMillis());
+				for (int type = 0; type < columnCounts.length; type++) {
+					columnCounts[type] = Math.min(columnCounts[type], 255);
+					header.put((byte) columnCounts[type]);
+				}
+				raf.setLength(0);
+				raf.write(header.array());
+			}
+			int recordSize = getRecordSize(columnCounts);
+			long records = (raf.length() - HEADER_SIZE) / recordSize;
+			ByteBuffer record = ByteBuffer.allocate(recordSize);
+			record.putLong(start);
+			aggregate.writeTo(record, columnCounts);
+			raf.seek(HEADER_SIZE + records * recordSize);
+			raf.write(record.array());
+			records++;
+			// Keep at most twice the retained buckets, then drop the oldest at once
+			if (records > 2 * tiers[tier].getMaxBuckets()) {
+				long keep = tiers[tier].getMaxBuckets();
+				byte[] content = new byte[(int) (keep * recordSize)];
+				raf.seek(HEADER_SIZE + (records - keep) * recordSize);
+				raf.readFully(content);
+				raf.seek(HEADER_SIZE);
+				raf.write(content);
+				raf.setLength(HEADER_SIZE + content.length);
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		} finally {
+			// Cleanup
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the files of all tiers
+	 */
+	synchronized void delete() {
+		for (int tier = 0; tier < tiers.length; tier++) {
+			File file = getFile(dir, sensorID, tier);
+			if (file.exists()) {
+				file.delete();
+			}
+		}
+		openBuckets = new SensorAggregate[tiers.length];
+		recovered = true;
+	}
+}
@@ -35,6 +35,36 @@ public class SensorStoreConfig {
 	 */
 	private long entryNumber;
 
+	/**
+	 * Encoding of full pages, see NervousVM.PAGE_ENCODING_PROTOBUF and NervousVM.PAGE_ENCODING_COLUMNAR
+	 */
+	private int pageEncoding;
+
+	/**
+	 * Page size and history limits
+	 */
+	private RetentionPolicy retentionPolicy = RetentionPolicy.DEFAULT;
+
+	/**
+	 * Time slot covered by one page in milliseconds, 0 if pages are filled up to the page size of the retention policy
+	 */
+	private long pageSlotMillis;
+
+	/**
+	 * Every how many entries full pages keep in their index, 0 or 1 for a dense index
+	 */
+	private int indexInterval;
+
+	/**
+	 * Number of changes since the config was last written to disk
+	 */
+	private int pendingWrites;
+
+	/**
+	 * Time of the last write to disk
+	 */
+	private long lastStoreTime;
+
 	public long getSensorID() {
 		return sensorID;
 	}
@@ -75,6 +105,71 @@ public class SensorStoreConfig {
 		this.entryNumber = entryNumber;
 	}
 
+	public int getPageEncoding() {
+		return pageEncoding;
+	}
+
+	public void setPageEncoding(int pageEncoding) {
+		this.pageEncoding = pageEncoding;
+	}
+
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy;
+	}
+
+	public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+		this.retentionPolicy = retentionPolicy;
+	}
+
+	public long getPageSlotMillis() {
+		return pageSlotMillis;
+	}
+
+	public void setPageSlotMillis(long pageSlotMillis) {
+		this.pageSlotMillis = pageSlotMillis;
+	}
+
+	public int getIndexInterval() {
+		return indexInterval;
+	}
+
+	public void setIndexInterval(int indexInterval) {
+		this.indexInterval = indexInterval;
+	}
+
+	/**
+	 * @return page number of the slot of @param timestamp in the time partitioned layout
+	 */
+	public long getSlot(long timestamp) {
+		long slot = timestamp / pageSlotMillis;
+		return (timestamp < 0 && slot * pageSlotMillis != timestamp) ? slot - 1 : slot;
+	}
+
+	public boolean isDirty() {
+		return pendingWrites > 0;
+	}
+
+	public void markDirty() {
+		pendingWrites++;
+	}
+
+	public int getPendingWrites() {
+		return pendingWrites;
+	}
+
+	public long getLastStoreTime() {
+		return lastStoreTime;
+	}
+
+	/**
+	 * Writes the config back if it has changed, according to the given policy
+	 */
+	public void storeIfDue(ConfigWritePolicy policy) {
+		if (policy.isDue(pendingWrites, System.currentTimeMillis() - lastStoreTime)) {
+			store();
+		}
+	}
+
 	public SensorStoreConfig(File dir, long sensorID) {
 		this.dir = dir;
 		this.sensorID = sensorID;
@@ -103,7 +198,22 @@ public class SensorStoreConfig {
 			lastWrittenTimestamp = dis.readLong();
 			currentPage = dis.readLong();
 			entryNumber = dis.readLong();
+			// Configs of older versions end here
+			pageEncoding = dis.available() >= 8 ? (int) dis.readLong() : 0;
+			if (dis.available() >= 40) {
+				retentionPolicy = new RetentionPolicy(dis.readLong(), dis.readLong(), dis.readLong(), dis.readLong(), dis.readLong());
+			} else {
+				retentionPolicy = RetentionPolicy.DEFAULT;
+			}
+			pageSlotMillis = dis.available() >= 8 ? dis.readLong() : 0;
+			indexInterval = dis.available() >= 8 ? (int) dis.readLong() : 0;
+			if (dis.available() >= 8) {
+				RetentionPolicy policy = retentionPolicy;
+				retentionPolicy = new RetentionPolicy(policy.getPageEntries(), policy.getMaxPages(), policy.getMaxAgeMillis(), policy.getMaxBytes(), policy.getMaxSamples(), dis.readLong());
+			}
 			dis.close();
+			pendingWrites = 0;
+			lastStoreTime = System.currentTimeMillis();
 		} catch (IOException e) {
 			success = false;
 		} finally {
@@ -124,25 +234,44 @@ public class SensorStoreConfig {
 		return success;
 	}
 
+	/**
+	 * Writes the config to a temporary file that is renamed into place, so a crash leaves either the old or the new
+	 * config behind
+	 */
 	void store() {
 		FileOutputStream fos = null;
 		DataOutputStream dos = null;
+		File file = new File(dir, "NervousVM/" + Long.toHexString(sensorID) + "G");
+		File tmpFile = new File(file.getPath() + ".tmp");
 		try {
-			File file = new File(dir, "NervousVM/" + Long.toHexString(sensorID) + "G");
-			if (!file.exists()) {
-				file.createNewFile();
-			}
-			fos = new FileOutputStream(file);
+			fos = new FileOutputStream(tmpFile);
 			dos = new DataOutputStream(fos);
 			dos.writeLong(lastUploadedTimestamp);
 			dos.writeLong(lastWrittenTimestamp);
 			dos.writeLong(currentPage);
 			dos.writeLong(entryNumber);
+			dos.writeLong(pageEncoding);
+			dos.writeLong(retentionPolicy.getPageEntries());
+			dos.writeLong(retentionPolicy.getMaxPages());
+			dos.writeLong(retentionPolicy.getMaxAgeMillis());
+			dos.writeLong(retentionPolicy.getMaxBytes());
+			dos.writeLong(retentionPolicy.getMaxSamples());
+			dos.writeLong(pageSlotMillis);
+			dos.writeLong(indexInterval);
+			dos.writeLong(retentionPolicy.getMaxUnconsumedBytes());
 			dos.flush();
 			fos.flush();
+			// On disk before it replaces the previous config
+			fos.getFD().sync();
 			dos.close();
 			fos.close();
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("Could not replace " + file.getName());
+			}
+			pendingWrites = 0;
+			lastStoreTime = System.currentTimeMillis();
 		} catch (IOException ex) {
+			tmpFile.delete();
 			System.out.println(ex.getMessage());
 		} finally {
 			// Cleanup
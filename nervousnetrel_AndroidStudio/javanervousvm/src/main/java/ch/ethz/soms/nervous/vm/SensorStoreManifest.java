@@ -0,0 +1,256 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SensorStoreManifest {
+
+	// Binary replacement of the serialized STM. After a 8 byte header (magic,
+	// version) the file is a log of fixed width records (sensorID, page, lower,
+	// upper). A record sets the time interval of a page, lower == REMOVED drops
+	// the page and page == REMOVED drops the whole sensor. The log is compacted
+	// into one record per live page once it has grown too long.
+
+	public final static int MAGIC = 0x4E564D4D;
+	public final static int VERSION = 1;
+	public final static int HEADER_SIZE = 8;
+	public final static int RECORD_SIZE = 32;
+
+	public final static long REMOVED = -1;
+
+	private File dir;
+	private FileChannel channel;
+	private long recordCount;
+
+	public SensorStoreManifest(File dir) {
+		this.dir = dir;
+	}
+
+	private File getFile() {
+		return new File(dir, "NervousVM/MAN");
+	}
+
+	public boolean exists() {
+		return getFile().exists();
+	}
+
+	/**
+	 * Replays the manifest with one sequential read. A torn record at the end of the log is ignored.
+	 *
+	 * @return the page intervals of all sensors or null if the manifest is missing or unreadable
+	 */
+	public HashMap<Long, PageDirectory> load() {
+		File file = getFile();
+		if (!file.exists()) {
+			return null;
+		}
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(file);
+			byte[] content = new byte[(int) file.length()];
+			int read = 0;
+			while (read < content.length) {
+				int bytes = fis.read(content, read, content.length - read);
+				if (bytes < 0) {
+					break;
+				}
+				read += bytes;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(content, 0, read);
+			if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+			HashMap<Long, PageDirectory> directories = new HashMap<Long, PageDirectory>();
+			recordCount = 0;
+			while (buffer.remaining() >= RECORD_SIZE) {
+				apply(directories, buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+				recordCount++;
+			}
+			return directories;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			// Cleanup
+			if (fis != null) {
+				try {
+					fis.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	private static void apply(HashMap<Long, PageDirectory> directories, long sensorID, long page, long lower, long upper) {
+		if (page == REMOVED) {
+			directories.remove(sensorID);
+			return;
+		}
+		PageDirectory directory = directories.get(sensorID);
+		if (directory == null) {
+			if (lower == REMOVED) {
+				return;
+			}
+			directory = new PageDirectory();
+			directories.put(sensorID, directory);
+		}
+		if (lower == REMOVED) {
+			directory.remove(page);
+		} else {
+			directory.put(page, lower, upper);
+		}
+	}
+
+	/**
+	 * Records the current interval of a page
+	 */
+	public void putPage(long sensorID, long page, long lower, long upper) {
+		append(sensorID, page, lower, upper);
+	}
+
+	public void removePage(long sensorID, long page) {
+		append(sensorID, page, REMOVED, REMOVED);
+	}
+
+	public void removeSensor(long sensorID) {
+		append(sensorID, REMOVED, REMOVED, REMOVED);
+	}
+
+	private void append(long sensorID, long page, long lower, long upper) {
+		try {
+			FileChannel fc = getChannel();
+			ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+			record.putLong(sensorID);
+			record.putLong(page);
+			record.putLong(lower);
+			record.putLong(upper);
+			record.flip();
+			long position = HEADER_SIZE + recordCount * RECORD_SIZE;
+			while (record.hasRemaining()) {
+				fc.write(record, position + record.position());
+			}
+			recordCount++;
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private FileChannel getChannel() throws IOException {
+		if (channel == null || !channel.isOpen()) {
+			channel = new RandomAccessFile(getFile(), "rw").getChannel();
+			if (channel.size() < HEADER_SIZE) {
+				writeHeader(channel);
+				recordCount = 0;
+			} else {
+				recordCount = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+			}
+		}
+		return channel;
+	}
+
+	private static void writeHeader(FileChannel fc) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.flip();
+		while (header.hasRemaining()) {
+			fc.write(header, header.position());
+		}
+	}
+
+	/**
+	 * Compacts the log if it holds considerably more records than there are live pages
+	 */
+	public void compactIfNeeded(HashMap<Long, PageDirectory> directories) {
+		long livePages = 0;
+		for (PageDirectory directory : directories.values()) {
+			livePages += directory.size();
+		}
+		if (recordCount > 4 * livePages + 64) {
+			compact(directories);
+		}
+	}
+
+	/**
+	 * Rewrites the manifest with one record per live page and atomically replaces the log with it
+	 */
+	public boolean compact(HashMap<Long, PageDirectory> directories) {
+		File tmpFile = new File(dir, "NervousVM/MAN.tmp");
+		RandomAccessFile raf = null;
+		long records = 0;
+		try {
+			int livePages = 0;
+			for (PageDirectory directory : directories.values()) {
+				livePages += directory.size();
+			}
+			ByteBuffer content = ByteBuffer.allocate(HEADER_SIZE + livePages * RECORD_SIZE);
+			content.putInt(MAGIC);
+			content.putInt(VERSION);
+			for (Map.Entry<Long, PageDirectory> sensor : directories.entrySet()) {
+				PageDirectory directory = sensor.getValue();
+				for (int i = 0; i < directory.size(); i++) {
+					content.putLong(sensor.getKey());
+					content.putLong(directory.getPage(i));
+					content.putLong(directory.getLower(i));
+					content.putLong(directory.getUpper(i));
+					records++;
+				}
+			}
+			content.flip();
+			raf = new RandomAccessFile(tmpFile, "rw");
+			raf.setLength(0);
+			FileChannel fc = raf.getChannel();
+			while (content.hasRemaining()) {
+				fc.write(content);
+			}
+			fc.force(false);
+			raf.close();
+			raf = null;
+			close();
+			if (!tmpFile.renameTo(getFile())) {
+				return false;
+			}
+			recordCount = records;
+			return true;
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			return false;
+		} finally {
+			// Cleanup
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	public void flush() {
+		if (channel != null && channel.isOpen()) {
+			try {
+				channel.force(false);
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	public void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+			}
+			channel = null;
+		}
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+}
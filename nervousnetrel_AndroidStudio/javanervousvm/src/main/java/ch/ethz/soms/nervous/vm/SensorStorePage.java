@@ -1,9 +1,10 @@
 package ch.ethz.soms.nervous.vm;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -12,52 +13,75 @@ import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorD
 public class SensorStorePage {
 
 	private File dir;
+	private FileChannelCache channelCache;
 	private SensorStoreTree sst;
 	private long sensorID;
 	private long currentPage;
 
-	public SensorStorePage(File dir, long sensorID, long currentPage) {
+	public SensorStorePage(File dir, FileChannelCache channelCache, IndexMappingCache mappingCache, long sensorID, long currentPage) {
 		this.dir = dir;
+		this.channelCache = channelCache;
 		this.sensorID = sensorID;
 		this.currentPage = currentPage;
-		sst = new SensorStoreTree(dir, sensorID, currentPage);
+		sst = new SensorStoreTree(dir, channelCache, mappingCache, sensorID, currentPage);
 	}
 
 	public long store(SensorData protoSensor, long currentEntry) {
 		long fileOffset = -1;
-		FileOutputStream fos = null;
 		try {
-			File file = new File(dir, "NervousVM/" + Long.toHexString(sensorID) + "P" + Long.toHexString(currentPage));
-			if (!file.exists()) {
-				file.createNewFile();
-			}
-			fileOffset = file.length();
-			fos = new FileOutputStream(file, true);
-			protoSensor.writeDelimitedTo(fos);
-			fos.flush();
-			fos.close();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(protoSensor.getSerializedSize() + 5);
+			protoSensor.writeDelimitedTo(bos);
+			fileOffset = getAppendOffset();
+			channelCache.writeFully(sensorID, currentPage, FileChannelCache.KIND_PAGE, ByteBuffer.wrap(bos.toByteArray()), fileOffset);
 			sst.addEntry(currentEntry, protoSensor.getRecordTime(), fileOffset);
 		} catch (IOException ex) {
 			fileOffset = -1;
-		} finally {
-			// Cleanup
-			if (fos != null) {
-				try {
-					fos.close();
-				} catch (IOException ex) {
-				}
+		}
+		return fileOffset;
+	}
+
+	/**
+	 * Appends all records with a single write and adds their index entries with a single positioned write.
+	 * 
+	 * @param protoSensors
+	 * @param firstEntry
+	 *            entry number of the first record in the page
+	 * @return offset of the first record in the page file
+	 */
+	public long storeAll(List<SensorData> protoSensors, long firstEntry) {
+		long fileOffset = -1;
+		try {
+			int count = protoSensors.size();
+			long[] timestamps = new long[count];
+			long[] offsets = new long[count];
+			fileOffset = getAppendOffset();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(count * 32);
+			for (int i = 0; i < count; i++) {
+				SensorData protoSensor = protoSensors.get(i);
+				timestamps[i] = protoSensor.getRecordTime();
+				offsets[i] = fileOffset + bos.size();
+				protoSensor.writeDelimitedTo(bos);
 			}
+			channelCache.writeFully(sensorID, currentPage, FileChannelCache.KIND_PAGE, ByteBuffer.wrap(bos.toByteArray()), fileOffset);
+			sst.addEntries(firstEntry, timestamps, offsets, count);
+		} catch (IOException ex) {
+			fileOffset = -1;
 		}
 		return fileOffset;
 	}
 
+	private long getAppendOffset() throws IOException {
+		long size = channelCache.size(sensorID, currentPage, FileChannelCache.KIND_PAGE);
+		return size < 0 ? 0 : size;
+	}
+
 	private List<SensorData> read(long startOffset, long endOffset) {
 
 		List<SensorData> sensorDataList = null;
 		FileInputStream fis = null;
 		CountInputStream cis = null;
 		try {
-			File file = new File(dir, "NervousVM/" + Long.toHexString(sensorID) + "P" + Long.toHexString(currentPage));
+			File file = FileChannelCache.getFile(dir, sensorID, currentPage, FileChannelCache.KIND_PAGE);
 			if (!file.exists()) {
 				return null;
 			}
@@ -107,24 +131,541 @@ public class SensorStorePage {
 	}
 
 	public List<SensorData> retrieveAll() {
+		SensorStoreBlock block = SensorStoreBlock.load(dir, sensorID, currentPage);
+		if (block != null) {
+			return block.retrieveAll();
+		}
 		return read(-1, -1);
 	}
 
 	public List<SensorData> retrieve(long fromTimestamp, long toTimestamp) {
-		// Find x >= z
-		long startOffset = sst.findEntry(fromTimestamp, false);
-		// Find x > z and subtract one
-		long endOffset = sst.findEntry(toTimestamp, true);
-		if (startOffset < 0 || endOffset < 0) {
+		SensorStoreBlock block = SensorStoreBlock.load(dir, sensorID, currentPage);
+		if (block != null) {
+			return block.retrieve(fromTimestamp, toTimestamp);
+		}
+		// Find x >= from and x <= to
+		long[] range = sst.findRange(fromTimestamp, toTimestamp);
+		if (range == null) {
 			return null;
 		} else {
-			return read(startOffset, endOffset);
+			return read(range[0], range[1]);
+		}
+	}
+
+	/**
+	 * Counts the samples in [fromTimestamp, toTimestamp] from the index. Sealed pages have no index, they are counted
+	 * from their summary if the range covers or misses them completely and from their timestamp column otherwise.
+	 *
+	 * @return number of samples or -1 if the page could not be read
+	 */
+	public long count(long fromTimestamp, long toTimestamp) {
+		if (sst.getSize() > 0) {
+			return sst.countRange(fromTimestamp, toTimestamp);
+		}
+		SensorAggregate summary = SensorAggregate.load(dir, sensorID, currentPage);
+		if (summary != null) {
+			if (fromTimestamp <= summary.getFirstTimestamp() && summary.getLastTimestamp() <= toTimestamp) {
+				return summary.getCount();
+			} else if (toTimestamp < summary.getFirstTimestamp() || summary.getLastTimestamp() < fromTimestamp) {
+				return 0;
+			}
+		}
+		SensorStoreBlock block = SensorStoreBlock.load(dir, sensorID, currentPage);
+		if (block != null) {
+			int[] range = block.findRange(fromTimestamp, toTimestamp);
+			return range == null ? 0 : range[1] - range[0] + 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return {first entry with a timestamp >= @param fromTimestamp, number of entries in [fromTimestamp,
+	 *         toTimestamp]} from the index, respectively from the timestamp column of a sealed page, or null if the
+	 *         page could not be read
+	 */
+	public long[] findEntryRange(long fromTimestamp, long toTimestamp) {
+		if (sst.getSize() > 0) {
+			return sst.findEntryRange(fromTimestamp, toTimestamp);
+		}
+		SensorStoreBlock block = SensorStoreBlock.load(dir, sensorID, currentPage);
+		if (block != null) {
+			int[] range = block.findRange(fromTimestamp, toTimestamp);
+			return range == null ? new long[] { 0, 0 } : new long[] { range[0], range[1] - range[0] + 1 };
+		}
+		return new long[] { 0, 0 };
+	}
+
+	/**
+	 * Reads the records of the given entries only, seeking to each of them through the index. Sealed pages
+	 * materialize the rows from their columns.
+	 *
+	 * @param entries
+	 *            ascending entry numbers within the page
+	 * @return the samples or null if the page could not be read
+	 */
+	public List<SensorData> retrieveEntries(long[] entries, int offset, int length) {
+		List<SensorData> sensorDataList = new ArrayList<SensorData>(length);
+		SensorStoreBlock block = null;
+		if (sst.getSize() <= 0) {
+			block = SensorStoreBlock.load(dir, sensorID, currentPage);
+			if (block == null) {
+				return null;
+			}
+		}
+		try {
+			long size = channelCache.size(sensorID, currentPage, FileChannelCache.KIND_PAGE);
+			byte[] buffer = new byte[RECORD_READ_SIZE];
+			for (int i = offset; i < offset + length; i++) {
+				if (block != null) {
+					if (entries[i] < block.getCount()) {
+						sensorDataList.add(block.getSample((int) entries[i]));
+					}
+					continue;
+				}
+				long fileOffset = sst.getOffset(entries[i]);
+				if (fileOffset < 0 || fileOffset >= size) {
+					continue;
+				}
+				int read = (int) Math.min(buffer.length, size - fileOffset);
+				if (!channelCache.readFully(sensorID, currentPage, FileChannelCache.KIND_PAGE, ByteBuffer.wrap(buffer, 0, read), fileOffset)) {
+					return null;
+				}
+				int[] position = { 0 };
+				int recordLength = (int) readVarint(buffer, position, read);
+				if (fileOffset + position[0] + recordLength > size) {
+					// Torn record
+					continue;
+				}
+				if (position[0] + recordLength > read) {
+					byte[] record = new byte[recordLength];
+					if (!channelCache.readFully(sensorID, currentPage, FileChannelCache.KIND_PAGE, ByteBuffer.wrap(record), fileOffset + position[0])) {
+						return null;
+					}
+					sensorDataList.add(SensorData.PARSER.parseFrom(record));
+				} else {
+					sensorDataList.add(SensorData.PARSER.parseFrom(buffer, position[0], recordLength));
+				}
+			}
+			return sensorDataList;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Appends the samples in [fromTimestamp, toTimestamp] to @param sensorColumns, decoding sealed pages from their
+	 * columns and the records of open pages straight from the page bytes, without building SensorData messages
+	 *
+	 * @return number of samples appended or -1 if the page could not be read
+	 */
+	public int retrieveColumns(long fromTimestamp, long toTimestamp, SensorColumns sensorColumns) {
+		SensorStoreBlock block = SensorStoreBlock.load(dir, sensorID, currentPage);
+		if (block != null) {
+			return block.retrieveColumns(fromTimestamp, toTimestamp, sensorColumns);
+		}
+		long[] range = sst.findRange(fromTimestamp, toTimestamp);
+		if (range == null) {
+			return 0;
+		}
+		try {
+			int length = readRecords(range, sensorColumns);
+			if (length < 0) {
+				return -1;
+			}
+			return decodeRecords(sensorColumns.getBuffer(length), length, fromTimestamp, toTimestamp, sensorColumns);
+		} catch (IOException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Appends the records from @param fromOffset on with a record time >= @param fromTimestamp to @param sensorExport
+	 * as they are stored, at most @param maxRecords. Sealed pages are encoded from their columns.
+	 *
+	 * @return number of records appended or -1 if the page could not be read
+	 */
+	public int export(long fromTimestamp, long fromOffset, int maxRecords, SensorExport sensorExport) {
+		try {
+			SensorStoreBlock block = SensorStoreBlock.load(dir, sensorID, currentPage);
+			if (block != null) {
+				int[] rows = block.findRange(fromTimestamp, Long.MAX_VALUE);
+				int appended = 0;
+				for (int row = rows == null ? 0 : rows[0]; rows != null && row <= rows[1] && appended < maxRecords; row++) {
+					SensorData sensorData = block.getSample(row);
+					sensorExport.addSample(sensorData);
+					sensorExport.setPosition(currentPage, row + 1, sensorData.getRecordTime());
+					appended++;
+				}
+				return appended;
+			}
+			long[] range = sst.findRange(fromTimestamp, Long.MAX_VALUE);
+			if (range == null || Math.max(range[0], fromOffset) > range[1]) {
+				return 0;
+			}
+			long size = channelCache.size(sensorID, currentPage, FileChannelCache.KIND_PAGE);
+			if (size < 0) {
+				return -1;
+			}
+			// Length prefix of the last record
+			byte[] buffer = sensorExport.getBuffer(EXPORT_READ_SIZE);
+			int prefixSize = (int) Math.min(MAX_VARINT_SIZE, size - range[1]);
+			if (prefixSize <= 0 || !channelCache.readFully(sensorID, currentPage, FileChannelCache.KIND_PAGE, ByteBuffer.wrap(buffer, 0, prefixSize), range[1])) {
+				return -1;
+			}
+			int[] position = { 0 };
+			long lastLength = readVarint(buffer, position, prefixSize);
+			long endOffset = Math.min(size, range[1] + position[0] + lastLength);
+			// Copy the records chunk by chunk, a record that does not fit into a chunk is read again with the next one
+			long offset = Math.max(range[0], fromOffset);
+			int appended = 0;
+			int chunkSize = EXPORT_READ_SIZE;
+			while (offset < endOffset && appended < maxRecords) {
+				int length = (int) Math.min(chunkSize, endOffset - offset);
+				buffer = sensorExport.getBuffer(length);
+				if (!channelCache.readFully(sensorID, currentPage, FileChannelCache.KIND_PAGE, ByteBuffer.wrap(buffer, 0, length), offset)) {
+					return appended > 0 ? appended : -1;
+				}
+				position[0] = 0;
+				int start = 0;
+				long recordTime = 0;
+				while (start < length && appended < maxRecords) {
+					int end;
+					try {
+						end = (int) readVarint(buffer, position, length) + position[0];
+						if (end > length) {
+							break;
+						}
+						recordTime = readRecordTime(buffer, position[0], end);
+					} catch (IOException ex) {
+						break;
+					}
+					sensorExport.addRecord(buffer, start, end - start);
+					appended++;
+					position[0] = end;
+					start = end;
+				}
+				if (start == 0) {
+					if (length == endOffset - offset) {
+						// Torn record
+						break;
+					}
+					chunkSize = 2 * chunkSize;
+					continue;
+				}
+				offset += start;
+				sensorExport.setPosition(currentPage, offset, recordTime);
+			}
+			return appended;
+		} catch (IOException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the samples in [fromTimestamp, toTimestamp] that match @param predicate. The values of every record are
+	 * decoded into @param sensorColumns first, only matching records are parsed into SensorData. Sealed pages evaluate
+	 * the predicate on their columns.
+	 *
+	 * @return the matching samples or null if the page could not be read
+	 */
+	public List<SensorData> scan(long fromTimestamp, long toTimestamp, SensorPredicate predicate, SensorColumns sensorColumns) {
+		SensorStoreBlock block = SensorStoreBlock.load(dir, sensorID, currentPage);
+		if (block != null) {
+			return block.scan(fromTimestamp, toTimestamp, predicate, sensorColumns);
+		}
+		List<SensorData> sensorDataList = new ArrayList<SensorData>();
+		long[] range = sst.findRange(fromTimestamp, toTimestamp);
+		if (range == null) {
+			return sensorDataList;
+		}
+		try {
+			int length = readRecords(range, sensorColumns);
+			if (length < 0) {
+				return null;
+			}
+			byte[] data = sensorColumns.getBuffer(length);
+			int[] position = { 0 };
+			while (position[0] < length) {
+				int recordLength = (int) readVarint(data, position, length);
+				int offset = position[0];
+				int end = offset + recordLength;
+				if (end > length) {
+					// Torn record
+					break;
+				}
+				long recordTime = readRecordTime(data, offset, end);
+				if (recordTime > toTimestamp) {
+					break;
+				}
+				if (recordTime >= fromTimestamp) {
+					sensorColumns.clear();
+					decodeRow(data, offset, end, recordTime, sensorColumns);
+					if (predicate.matches(sensorColumns, 0)) {
+						sensorDataList.add(SensorData.PARSER.parseFrom(data, offset, recordLength));
+					}
+				}
+				position[0] = end;
+			}
+			return sensorDataList;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the records from the start offset of @param range up to the end of the record at its end offset into the
+	 * buffer of @param sensorColumns
+	 *
+	 * @return number of bytes read or -1 if the page could not be read
+	 */
+	private int readRecords(long[] range, SensorColumns sensorColumns) throws IOException {
+		long size = channelCache.size(sensorID, currentPage, FileChannelCache.KIND_PAGE);
+		if (size < 0) {
+			return -1;
+		}
+		// Length prefix of the last record
+		byte[] buffer = sensorColumns.getBuffer(MAX_VARINT_SIZE);
+		int prefixSize = (int) Math.min(MAX_VARINT_SIZE, size - range[1]);
+		if (prefixSize <= 0 || !channelCache.readFully(sensorID, currentPage, FileChannelCache.KIND_PAGE, ByteBuffer.wrap(buffer, 0, prefixSize), range[1])) {
+			return -1;
+		}
+		int[] position = { 0 };
+		long lastLength = readVarint(buffer, position, prefixSize);
+		long endOffset = Math.min(size, range[1] + position[0] + lastLength);
+		int length = (int) (endOffset - range[0]);
+		buffer = sensorColumns.getBuffer(length);
+		if (!channelCache.readFully(sensorID, currentPage, FileChannelCache.KIND_PAGE, ByteBuffer.wrap(buffer, 0, length), range[0])) {
+			return -1;
 		}
+		return length;
+	}
+
+	private final static int MAX_VARINT_SIZE = 10;
+	// Reads most records together with their length prefix at once
+	private final static int RECORD_READ_SIZE = 128;
+	private final static int EXPORT_READ_SIZE = 64 * 1024;
+
+	private final static int WIRE_VARINT = 0;
+	private final static int WIRE_FIXED64 = 1;
+	private final static int WIRE_DELIMITED = 2;
+	private final static int WIRE_FIXED32 = 5;
+
+	private final static int FIELD_RECORD_TIME = 1;
+	private final static int FIELD_VALUE_BOOL = 2;
+	private final static int FIELD_VALUE_INT32 = 3;
+	private final static int FIELD_VALUE_INT64 = 4;
+	private final static int FIELD_VALUE_FLOAT = 5;
+	private final static int FIELD_VALUE_DOUBLE = 6;
+
+	/**
+	 * Decodes length delimited SensorData records with the protobuf wire format, skipping strings and unknown fields
+	 *
+	 * @return number of records in [fromTimestamp, toTimestamp] that were appended
+	 */
+	private static int decodeRecords(byte[] data, int length, long fromTimestamp, long toTimestamp, SensorColumns sensorColumns) throws IOException {
+		int[] position = { 0 };
+		int appended = 0;
+		while (position[0] < length) {
+			int recordLength = (int) readVarint(data, position, length);
+			int end = position[0] + recordLength;
+			if (end > length) {
+				// Torn record
+				break;
+			}
+			long recordTime = readRecordTime(data, position[0], end);
+			if (recordTime > toTimestamp) {
+				break;
+			}
+			if (recordTime >= fromTimestamp) {
+				decodeRow(data, position[0], end, recordTime, sensorColumns);
+				appended++;
+			}
+			position[0] = end;
+		}
+		return appended;
+	}
+
+	static long readRecordTime(byte[] data, int offset, int end) throws IOException {
+		int[] position = { offset };
+		while (position[0] < end) {
+			int tag = (int) readVarint(data, position, end);
+			if (tag >>> 3 == FIELD_RECORD_TIME && (tag & 7) == WIRE_VARINT) {
+				return readVarint(data, position, end);
+			}
+			skipField(data, position, end, tag & 7);
+		}
+		throw new IOException("Record without record time");
+	}
+
+	/**
+	 * Appends the record in [offset, end) as a sample, a record that cannot be decoded leaves no sample behind
+	 */
+	private static void decodeRow(byte[] data, int offset, int end, long recordTime, SensorColumns sensorColumns) throws IOException {
+		int row = sensorColumns.addRow(recordTime);
+		try {
+			decodeValues(data, offset, end, row, sensorColumns);
+		} catch (IOException ex) {
+			sensorColumns.removeLastRow();
+			throw ex;
+		}
+	}
+
+	private static void decodeValues(byte[] data, int offset, int end, int row, SensorColumns sensorColumns) throws IOException {
+		int[] position = { offset };
+		int[] indexes = new int[FIELD_VALUE_DOUBLE + 1];
+		while (position[0] < end) {
+			int tag = (int) readVarint(data, position, end);
+			int field = tag >>> 3;
+			int wireType = tag & 7;
+			if (field < FIELD_VALUE_BOOL || field > FIELD_VALUE_DOUBLE) {
+				skipField(data, position, end, wireType);
+			} else if (wireType == WIRE_DELIMITED) {
+				// Packed values, possibly none
+				int valuesLength = (int) readVarint(data, position, end);
+				int valuesEnd = position[0] + valuesLength;
+				if (valuesLength < 0 || valuesEnd > end) {
+					throw new IOException("Truncated packed field");
+				}
+				while (position[0] < valuesEnd) {
+					decodeValue(data, position, valuesEnd, field, indexes[field]++, row, sensorColumns);
+				}
+			} else if (wireType == getWireType(field)) {
+				// A single value as written by older encoders
+				decodeValue(data, position, end, field, indexes[field]++, row, sensorColumns);
+			} else {
+				skipField(data, position, end, wireType);
+			}
+		}
+	}
+
+	/**
+	 * @return wire type of a single value of a value field
+	 */
+	private static int getWireType(int field) {
+		switch (field) {
+		case FIELD_VALUE_FLOAT:
+			return WIRE_FIXED32;
+		case FIELD_VALUE_DOUBLE:
+			return WIRE_FIXED64;
+		default:
+			return WIRE_VARINT;
+		}
+	}
+
+	private static void decodeValue(byte[] data, int[] position, int end, int field, int index, int row, SensorColumns sensorColumns) throws IOException {
+		switch (field) {
+		case FIELD_VALUE_BOOL:
+			sensorColumns.setBool(row, index, readVarint(data, position, end) != 0);
+			break;
+		case FIELD_VALUE_INT32:
+			sensorColumns.setInt32(row, index, (int) readVarint(data, position, end));
+			break;
+		case FIELD_VALUE_INT64:
+			sensorColumns.setInt64(row, index, readVarint(data, position, end));
+			break;
+		case FIELD_VALUE_FLOAT:
+			sensorColumns.setFloat(row, index, Float.intBitsToFloat((int) readFixed(data, position, end, 4)));
+			break;
+		case FIELD_VALUE_DOUBLE:
+			sensorColumns.setDouble(row, index, Double.longBitsToDouble(readFixed(data, position, end, 8)));
+			break;
+		}
+	}
+
+	static long readVarint(byte[] data, int[] position, int end) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position[0] >= end) {
+				throw new IOException("Truncated varint");
+			}
+			byte b = data[position[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Reads a little endian value of @param bytes bytes
+	 */
+	private static long readFixed(byte[] data, int[] position, int end, int bytes) throws IOException {
+		if (position[0] + bytes > end) {
+			throw new IOException("Truncated fixed value");
+		}
+		long value = 0;
+		for (int i = 0; i < bytes; i++) {
+			value |= (data[position[0]++] & 0xFFL) << (8 * i);
+		}
+		return value;
+	}
+
+	private static void skipField(byte[] data, int[] position, int end, int wireType) throws IOException {
+		switch (wireType) {
+		case WIRE_VARINT:
+			readVarint(data, position, end);
+			break;
+		case WIRE_FIXED64:
+			position[0] += 8;
+			break;
+		case WIRE_DELIMITED:
+			int length = (int) readVarint(data, position, end);
+			if (length < 0) {
+				throw new IOException("Malformed field length");
+			}
+			position[0] += length;
+			break;
+		case WIRE_FIXED32:
+			position[0] += 4;
+			break;
+		default:
+			throw new IOException("Unsupported wire type " + wireType);
+		}
+		if (position[0] > end) {
+			throw new IOException("Truncated field");
+		}
+	}
+
+	/**
+	 * Re-encodes the full page as a columnar block and drops the page and index files afterwards. Pages whose samples
+	 * do not share one numeric shape are left as they are.
+	 * 
+	 * @return true if the page is sealed
+	 */
+	public boolean seal() {
+		if (SensorStoreBlock.getFile(dir, sensorID, currentPage).exists()) {
+			return true;
+		}
+		List<SensorData> sensorDataList = read(-1, -1);
+		if (sensorDataList == null || sensorDataList.size() != sst.getEntryCount()) {
+			return false;
+		}
+		if (!SensorStoreBlock.write(dir, sensorID, currentPage, sensorDataList)) {
+			return false;
+		}
+		evictRecords();
+		return true;
 	}
 
 	public boolean evict() {
+		boolean successEvict0 = evictRecords();
+		boolean successEvict1 = true;
+		File file = SensorStoreBlock.getFile(dir, sensorID, currentPage);
+		if (file.exists()) {
+			successEvict1 = file.delete();
+		}
+		File summaryFile = SensorAggregate.getFile(dir, sensorID, currentPage);
+		if (summaryFile.exists()) {
+			successEvict1 = summaryFile.delete() && successEvict1;
+		}
+		return successEvict0 && successEvict1;
+	}
+
+	private boolean evictRecords() {
+		channelCache.evict(sensorID, currentPage);
 		boolean successEvict0 = true;
-		File file = new File(dir, "NervousVM/" + Long.toHexString(sensorID) + "P" + Long.toHexString(currentPage));
+		File file = FileChannelCache.getFile(dir, sensorID, currentPage, FileChannelCache.KIND_PAGE);
 		if (file.exists()) {
 			successEvict0 = file.delete();
 		}
@@ -132,17 +673,57 @@ public class SensorStorePage {
 		return successEvict0 && successEvict1;
 	}
 
+	/**
+	 * Replaces the dense index of a full page that is not sealed by a sparse index keeping every @param interval-th
+	 * entry, see SensorStoreSparseIndex
+	 * 
+	 * @return true if the page has no dense index anymore
+	 */
+	public boolean sparsify(int interval) {
+		if (SensorStoreBlock.getFile(dir, sensorID, currentPage).exists()) {
+			return true;
+		}
+		return sst.sparsify(interval);
+	}
+
 	public long getStoreSize() {
-		File file = new File(dir, "NervousVM/" + Long.toHexString(sensorID) + "P" + Long.toHexString(currentPage));
+		long size = 0;
+		File file = FileChannelCache.getFile(dir, sensorID, currentPage, FileChannelCache.KIND_PAGE);
 		if (file.exists()) {
-			return file.length();
-		} else {
-			return 0;
+			size += file.length();
+		}
+		File blockFile = SensorStoreBlock.getFile(dir, sensorID, currentPage);
+		if (blockFile.exists()) {
+			size += blockFile.length();
 		}
+		return size;
 	}
 
 	public long getIndexSize() {
 		return sst.getSize();
 	}
 
+	/**
+	 * @return size of all files of the page
+	 */
+	public long getSize() {
+		File summaryFile = SensorAggregate.getFile(dir, sensorID, currentPage);
+		return getStoreSize() + getIndexSize() + (summaryFile.exists() ? summaryFile.length() : 0);
+	}
+
+	/**
+	 * @return number of samples of a full page
+	 */
+	public long getEntryCount() {
+		SensorAggregate summary = SensorAggregate.load(dir, sensorID, currentPage);
+		if (summary != null) {
+			return summary.getCount();
+		}
+		SensorStoreBlock block = SensorStoreBlock.load(dir, sensorID, currentPage);
+		if (block != null) {
+			return block.getCount();
+		}
+		return sst.getEntryCount();
+	}
+
 }
@@ -0,0 +1,198 @@
+package ch.ethz.soms.nervous.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class SensorStoreSparseIndex {
+
+	// Sparse index of a full page (<id>I<page>) that replaces the dense index
+	// (T) with its 16 bytes per record. Only every interval-th entry is kept,
+	// timestamps and offsets as varint deltas to the previous kept entry,
+	// together with the number of entries and the last entry of the page. The
+	// index is small enough to be held in memory, a lookup binary searches the
+	// kept entries and ends with a forward scan over at most interval records
+	// of the page, see SensorStoreTree.
+
+	public final static int DEFAULT_INTERVAL = 16;
+
+	private long entryCount;
+	private int interval;
+	private long[] timestamps;
+	private long[] offsets;
+	private long lastTimestamp;
+	private long lastOffset;
+	private long size;
+
+	private SensorStoreSparseIndex(byte[] data) throws IOException {
+		int[] position = { 0 };
+		entryCount = SensorStorePage.readVarint(data, position, data.length);
+		interval = (int) SensorStorePage.readVarint(data, position, data.length);
+		lastTimestamp = SensorStorePage.readVarint(data, position, data.length);
+		lastOffset = SensorStorePage.readVarint(data, position, data.length);
+		if (entryCount < 0 || interval <= 0) {
+			throw new IOException("Not a sparse index");
+		}
+		int samples = (int) ((entryCount + interval - 1) / interval);
+		timestamps = new long[samples];
+		offsets = new long[samples];
+		long timestamp = 0;
+		long offset = 0;
+		for (int i = 0; i < samples; i++) {
+			timestamp += SensorStorePage.readVarint(data, position, data.length);
+			offset += SensorStorePage.readVarint(data, position, data.length);
+			timestamps[i] = timestamp;
+			offsets[i] = offset;
+		}
+		size = data.length;
+	}
+
+	public static File getFile(File dir, long sensorID, long page) {
+		return FileChannelCache.getFile(dir, sensorID, page, FileChannelCache.KIND_SPARSE_INDEX);
+	}
+
+	/**
+	 * @return the sparse index of a page or null if the page has none
+	 */
+	public static SensorStoreSparseIndex load(File dir, long sensorID, long page) {
+		File file = getFile(dir, sensorID, page);
+		if (!file.exists()) {
+			return null;
+		}
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(file);
+			byte[] content = new byte[(int) file.length()];
+			int read = 0;
+			while (read < content.length) {
+				int bytes = fis.read(content, read, content.length - read);
+				if (bytes < 0) {
+					return null;
+				}
+				read += bytes;
+			}
+			return new SensorStoreSparseIndex(content);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			// Cleanup
+			if (fis != null) {
+				try {
+					fis.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keeps every @param interval-th of the given dense entries and writes them to a temporary file that is synced and
+	 * renamed into place
+	 *
+	 * @return false if the index could not be written
+	 */
+	public static boolean write(File dir, long sensorID, long page, long[] timestamps, long[] offsets, int count, int interval) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(16 + count / interval * 6);
+		writeVarint(bos, count);
+		writeVarint(bos, interval);
+		writeVarint(bos, count > 0 ? timestamps[count - 1] : 0);
+		writeVarint(bos, count > 0 ? offsets[count - 1] : 0);
+		long timestamp = 0;
+		long offset = 0;
+		for (int i = 0; i < count; i += interval) {
+			writeVarint(bos, timestamps[i] - timestamp);
+			writeVarint(bos, offsets[i] - offset);
+			timestamp = timestamps[i];
+			offset = offsets[i];
+		}
+		File file = getFile(dir, sensorID, page);
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(tmpFile);
+			bos.writeTo(fos);
+			fos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			return tmpFile.renameTo(file);
+		} catch (IOException ex) {
+			tmpFile.delete();
+			return false;
+		} finally {
+			// Cleanup
+			if (fos != null) {
+				try {
+					fos.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	private static void writeVarint(ByteArrayOutputStream bos, long value) {
+		while ((value & ~0x7FL) != 0) {
+			bos.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		bos.write((int) value);
+	}
+
+	/**
+	 * @return last kept entry with a timestamp < @param timestamp, respectively <= @param timestamp if @param after is
+	 *         set, -1 if there is none
+	 */
+	public int findSample(long timestamp, boolean after) {
+		int from = 0;
+		int to = timestamps.length;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (timestamps[middle] < timestamp || (after && timestamps[middle] == timestamp)) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		return from - 1;
+	}
+
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return number of kept entries
+	 */
+	public int getSampleCount() {
+		return timestamps.length;
+	}
+
+	public long getSampleTimestamp(int sample) {
+		return timestamps[sample];
+	}
+
+	public long getSampleOffset(int sample) {
+		return offsets[sample];
+	}
+
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	public long getLastOffset() {
+		return lastOffset;
+	}
+
+	/**
+	 * @return size of the index file
+	 */
+	public long getSize() {
+		return size;
+	}
+}
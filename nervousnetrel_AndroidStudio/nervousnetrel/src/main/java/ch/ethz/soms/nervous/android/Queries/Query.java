@@ -24,7 +24,12 @@ public abstract class Query<G extends SensorDesc> {
 
 		public Query(long timestamp_from, long timestamp_to, File file) {
 			NervousVM nervousVm = NervousVM.getInstance(file);
-			list = nervousVm.retrieve(getSensorId(), timestamp_from, timestamp_to);
+			// Counting on the index is cheap, only load ranges that have readings
+			if (nervousVm.exists(getSensorId(), timestamp_from, timestamp_to)) {
+				list = nervousVm.retrieve(getSensorId(), timestamp_from, timestamp_to);
+			} else {
+				list = new ArrayList<SensorData>();
+			}
 			if (containsReadings()) {
 				Log.d(MainActivity.LOG_TAG, "Retrieved List Size: " + list.size());
 			}
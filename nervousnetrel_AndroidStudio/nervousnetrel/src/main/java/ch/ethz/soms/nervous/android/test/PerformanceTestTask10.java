@@ -0,0 +1,89 @@
+package ch.ethz.soms.nervous.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.ethz.soms.nervous.android.sensors.SensorDesc;
+import ch.ethz.soms.nervous.android.sensors.SensorDescDummy;
+import ch.ethz.soms.nervous.android.sensors.SensorDescTemperature;
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+import ch.ethz.soms.nervous.vm.DecodedPageCache;
+import ch.ethz.soms.nervous.vm.NervousVM;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Page cache benchmark: reads the newest samples of a columnar sensor repeatedly, once with the decoded page cache and
+ * once without it, then compares the time of both.
+ */
+public class PerformanceTestTask10 extends AsyncTask<Void, Void, Void> {
+
+	private static final String LOG_TAG = "PerformanceTestTask10";
+	private static final int TEST_COUNT = (int) (NervousVM.MAX_ENTRIES * NervousVM.MAX_PAGES);
+	private static final int READ_COUNT = 10000;
+	private static final int BATCH_SIZE = 100;
+	private static final int RETRIEVE_REPETITIONS = 200;
+	private static final long SENSOR_ID = SensorDescDummy.SENSOR_ID;
+	private Context context;
+
+	public PerformanceTestTask10(Context context) {
+		this.context = context;
+	}
+
+	@Override
+	protected Void doInBackground(Void... params) {
+		NervousVM vm = NervousVM.getInstance(context.getFilesDir());
+		vm.deleteSensor(SENSOR_ID);
+		vm.setPageEncoding(SENSOR_ID, NervousVM.PAGE_ENCODING_COLUMNAR);
+
+		Random random = new Random(42);
+		long timestamp = System.currentTimeMillis();
+		long fromTimestamp = timestamp;
+		List<SensorData> batch = new ArrayList<SensorData>(BATCH_SIZE);
+		for (int i = 0; i < TEST_COUNT; i++) {
+			timestamp += 1 + random.nextInt(1000);
+			if (i == TEST_COUNT - READ_COUNT) {
+				fromTimestamp = timestamp;
+			}
+			SensorDesc sensorDesc = new SensorDescTemperature(timestamp, 20 + random.nextFloat());
+			batch.add(sensorDesc.toProtoSensor());
+			if (batch.size() == BATCH_SIZE) {
+				vm.storeSensors(SENSOR_ID, batch);
+				batch.clear();
+			}
+		}
+		vm.storeSensors(SENSOR_ID, batch);
+
+		// Measure the pages and the page cache, not the tail in front of them
+		int tailCapacity = vm.getTailCapacity();
+		vm.setTailCapacity(0);
+		DecodedPageCache pageCache = vm.getPageCache();
+		long budget = pageCache.getBudget();
+		vm.setPageCacheBudget(budget > 0 ? budget : DecodedPageCache.DEFAULT_BUDGET);
+
+		long samples = vm.retrieve(SENSOR_ID, fromTimestamp, Long.MAX_VALUE).size();
+		long hits = pageCache.getHits();
+		long misses = pageCache.getMisses();
+		long tick = System.nanoTime();
+		for (int r = 0; r < RETRIEVE_REPETITIONS; r++) {
+			vm.retrieve(SENSOR_ID, fromTimestamp, Long.MAX_VALUE);
+		}
+		long cachedTime = System.nanoTime() - tick;
+		Log.d(LOG_TAG, "(CACHED) RETRIEVE: " + String.valueOf(cachedTime / 1000000.0) + " ms, " + String.valueOf(RETRIEVE_REPETITIONS) + " x " + String.valueOf(samples) + " samples, " + String.valueOf(pageCache.getHits() - hits) + " hits, " + String.valueOf(pageCache.getMisses() - misses) + " misses");
+
+		vm.setPageCacheBudget(0);
+		tick = System.nanoTime();
+		for (int r = 0; r < RETRIEVE_REPETITIONS; r++) {
+			vm.retrieve(SENSOR_ID, fromTimestamp, Long.MAX_VALUE);
+		}
+		long uncachedTime = System.nanoTime() - tick;
+		Log.d(LOG_TAG, "(UNCACHED) RETRIEVE: " + String.valueOf(uncachedTime / 1000000.0) + " ms, " + String.valueOf(RETRIEVE_REPETITIONS) + " x " + String.valueOf(samples) + " samples");
+
+		vm.setPageCacheBudget(budget);
+		vm.setTailCapacity(tailCapacity);
+		vm.deleteSensor(SENSOR_ID);
+		return null;
+	}
+}
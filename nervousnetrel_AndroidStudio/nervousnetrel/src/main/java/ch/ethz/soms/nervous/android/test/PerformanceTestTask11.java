@@ -0,0 +1,100 @@
+package ch.ethz.soms.nervous.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.ethz.soms.nervous.android.sensors.SensorDesc;
+import ch.ethz.soms.nervous.android.sensors.SensorDescDummy;
+import ch.ethz.soms.nervous.android.sensors.SensorDescTemperature;
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+import ch.ethz.soms.nervous.vm.NervousVM;
+import ch.ethz.soms.nervous.vm.SensorColumns;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Bulk read benchmark: averages the value of a sensor over its whole history, once through retrieve and SensorData
+ * and once through retrieveColumns, for record and columnar pages, then compares the time of both.
+ */
+public class PerformanceTestTask11 extends AsyncTask<Void, Void, Void> {
+
+	private static final String LOG_TAG = "PerformanceTestTask11";
+	private static final int TEST_COUNT = (int) (NervousVM.MAX_ENTRIES * NervousVM.MAX_PAGES);
+	private static final int BATCH_SIZE = 100;
+	private static final int RETRIEVE_REPETITIONS = 50;
+	private static final long RECORD_SENSOR_ID = SensorDescDummy.SENSOR_ID;
+	private static final long COLUMNAR_SENSOR_ID = SensorDescDummy.SENSOR_ID - 1;
+	private Context context;
+
+	public PerformanceTestTask11(Context context) {
+		this.context = context;
+	}
+
+	@Override
+	protected Void doInBackground(Void... params) {
+		NervousVM vm = NervousVM.getInstance(context.getFilesDir());
+		vm.deleteSensor(RECORD_SENSOR_ID);
+		vm.deleteSensor(COLUMNAR_SENSOR_ID);
+		vm.setPageEncoding(COLUMNAR_SENSOR_ID, NervousVM.PAGE_ENCODING_COLUMNAR);
+
+		Random random = new Random(42);
+		long timestamp = System.currentTimeMillis();
+		List<SensorData> batch = new ArrayList<SensorData>(BATCH_SIZE);
+		for (int i = 0; i < TEST_COUNT; i++) {
+			timestamp += 1 + random.nextInt(1000);
+			SensorDesc sensorDesc = new SensorDescTemperature(timestamp, 20 + random.nextFloat());
+			batch.add(sensorDesc.toProtoSensor());
+			if (batch.size() == BATCH_SIZE) {
+				vm.storeSensors(RECORD_SENSOR_ID, batch);
+				vm.storeSensors(COLUMNAR_SENSOR_ID, batch);
+				batch.clear();
+			}
+		}
+		vm.storeSensors(RECORD_SENSOR_ID, batch);
+		vm.storeSensors(COLUMNAR_SENSOR_ID, batch);
+
+		// Measure the pages, not the caches in front of them
+		long budget = vm.getPageCache().getBudget();
+		int tailCapacity = vm.getTailCapacity();
+		vm.setPageCacheBudget(0);
+		vm.setTailCapacity(0);
+		SensorColumns sensorColumns = new SensorColumns();
+		long[] sensorIDs = { RECORD_SENSOR_ID, COLUMNAR_SENSOR_ID };
+		String[] names = { "RECORD", "COLUMNAR" };
+		for (int s = 0; s < sensorIDs.length; s++) {
+			double sum = 0;
+			long samples = 0;
+			long tick = System.nanoTime();
+			for (int r = 0; r < RETRIEVE_REPETITIONS; r++) {
+				for (SensorData sensorData : vm.retrieve(sensorIDs[s], 0, Long.MAX_VALUE)) {
+					sum += sensorData.getValueFloat(0);
+					samples++;
+				}
+			}
+			long objectTime = System.nanoTime() - tick;
+			Log.d(LOG_TAG, "(" + names[s] + " PAGES, SENSORDATA) AVERAGE: " + String.valueOf(objectTime / 1000000.0 / RETRIEVE_REPETITIONS) + " ms, " + String.valueOf(sum / samples));
+
+			sum = 0;
+			samples = 0;
+			tick = System.nanoTime();
+			for (int r = 0; r < RETRIEVE_REPETITIONS; r++) {
+				vm.retrieveColumns(sensorIDs[s], 0, Long.MAX_VALUE, sensorColumns);
+				float[] temperatures = sensorColumns.getFloatColumn(0);
+				for (int i = 0; i < sensorColumns.getCount(); i++) {
+					sum += temperatures[i];
+				}
+				samples += sensorColumns.getCount();
+			}
+			long columnTime = System.nanoTime() - tick;
+			Log.d(LOG_TAG, "(" + names[s] + " PAGES, COLUMNS) AVERAGE: " + String.valueOf(columnTime / 1000000.0 / RETRIEVE_REPETITIONS) + " ms, " + String.valueOf(sum / samples));
+		}
+
+		vm.setPageCacheBudget(budget);
+		vm.setTailCapacity(tailCapacity);
+		vm.deleteSensor(RECORD_SENSOR_ID);
+		vm.deleteSensor(COLUMNAR_SENSOR_ID);
+		return null;
+	}
+}
@@ -4,6 +4,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import android.app.Service;
@@ -28,6 +29,7 @@ public class PerformanceTestTask2 extends AsyncTask<Void, Void, Void> {
 	private static final int TEST_COUNT = 24 * 60 * 60 / 5;
 	private static final int TEST_SENSOR_COUNT = 20;
 	private static final int REPETITIONS = 10;
+	private static final int BATCH_SIZE = 100;
 
 	//private static final int TEST_COUNT = 1000;
 	//private static final int TEST_SENSOR_COUNT = 3;
@@ -97,6 +99,27 @@ public class PerformanceTestTask2 extends AsyncTask<Void, Void, Void> {
 			plog.log("RUN: " + String.valueOf(test) + " STORAGE USAGE: " + String.valueOf(storageSizeSum) + " B");
 			plog.log("RUN: " + String.valueOf(test) + " BATTERY AFTER RUN: " + String.valueOf(getBatteryLevel()));
 
+			// Reset
+			for (int sid = 0; sid < TEST_SENSOR_COUNT; sid++) {
+				vm.deleteSensor(SensorDescDummy.SENSOR_ID - sid);
+			}
+
+			// Test run (batch insert)
+			tick = System.currentTimeMillis();
+			for (int i = 0; i < TEST_COUNT; i += BATCH_SIZE) {
+				for (int sid = 0; sid < TEST_SENSOR_COUNT; sid++) {
+					List<SensorData> batch = new ArrayList<SensorData>(BATCH_SIZE);
+					for (int j = i; j < Math.min(i + BATCH_SIZE, TEST_COUNT); j++) {
+						SensorDesc sensorDesc = new SensorDescDummy(j + 1, true, 12345, 13.5f, 12345L, 13.5d, "TEST");
+						batch.add(sensorDesc.toProtoSensor());
+					}
+					vm.storeSensors(SensorDescDummy.SENSOR_ID - sid, batch);
+				}
+			}
+			tock = System.currentTimeMillis();
+			time = tock - tick;
+			plog.log("RUN: " + String.valueOf(test) + " BATCH INSERT TIME: " + String.valueOf(time) + " ms");
+
 			// Reset
 			for (int sid = 0; sid < TEST_SENSOR_COUNT; sid++) {
 				vm.deleteSensor(SensorDescDummy.SENSOR_ID - sid);
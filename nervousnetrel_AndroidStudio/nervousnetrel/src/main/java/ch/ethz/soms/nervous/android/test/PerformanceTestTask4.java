@@ -0,0 +1,85 @@
+package ch.ethz.soms.nervous.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.ethz.soms.nervous.android.sensors.SensorDesc;
+import ch.ethz.soms.nervous.android.sensors.SensorDescAccelerometer;
+import ch.ethz.soms.nervous.android.sensors.SensorDescDummy;
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+import ch.ethz.soms.nervous.vm.NervousVM;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Page encoding benchmark: stores the same simulated accelerometer trace (three floats every 20 ms) into one sensor
+ * with protobuf pages and one with columnar pages, then compares bytes per sample and full scan speed.
+ */
+public class PerformanceTestTask4 extends AsyncTask<Void, Void, Void> {
+
+	private static final String LOG_TAG = "PerformanceTestTask4";
+	// All pages but the current one are sealed
+	private static final int TEST_COUNT = (int) (NervousVM.MAX_ENTRIES * (NervousVM.MAX_PAGES - 1)) + 1;
+	private static final int BATCH_SIZE = 100;
+	private static final int SCAN_REPETITIONS = 20;
+	private static final long PROTOBUF_SENSOR_ID = SensorDescDummy.SENSOR_ID;
+	private static final long COLUMNAR_SENSOR_ID = SensorDescDummy.SENSOR_ID - 1;
+	private Context context;
+
+	public PerformanceTestTask4(Context context) {
+		this.context = context;
+	}
+
+	@Override
+	protected Void doInBackground(Void... params) {
+		NervousVM vm = NervousVM.getInstance(context.getFilesDir());
+
+		List<SensorData> trace = new ArrayList<SensorData>(TEST_COUNT);
+		Random random = new Random(42);
+		long timestamp = System.currentTimeMillis();
+		for (int i = 0; i < TEST_COUNT; i++) {
+			timestamp += 20 + random.nextInt(3);
+			float x = (float) Math.sin(i / 25.0) + random.nextFloat() * 0.05f;
+			float y = (float) Math.cos(i / 40.0) + random.nextFloat() * 0.05f;
+			float z = 9.81f + random.nextFloat() * 0.05f;
+			SensorDesc sensorDesc = new SensorDescAccelerometer(timestamp, x, y, z);
+			trace.add(sensorDesc.toProtoSensor());
+		}
+
+		runBenchmark(vm, trace, PROTOBUF_SENSOR_ID, NervousVM.PAGE_ENCODING_PROTOBUF, "(PROTOBUF)");
+		runBenchmark(vm, trace, COLUMNAR_SENSOR_ID, NervousVM.PAGE_ENCODING_COLUMNAR, "(COLUMNAR)");
+		return null;
+	}
+
+	private void runBenchmark(NervousVM vm, List<SensorData> trace, long sensorId, int pageEncoding, String mode) {
+		vm.deleteSensor(sensorId);
+		vm.setPageEncoding(sensorId, pageEncoding);
+
+		long tick = System.currentTimeMillis();
+		for (int i = 0; i < trace.size(); i += BATCH_SIZE) {
+			vm.storeSensors(sensorId, trace.subList(i, Math.min(i + BATCH_SIZE, trace.size())));
+		}
+		long tock = System.currentTimeMillis();
+		Log.d(LOG_TAG, mode + " INSERT TIME: " + String.valueOf(tock - tick) + " ms");
+
+		long[] storageSize = vm.getSensorStorageSize(sensorId);
+		double bytesPerSample = (storageSize[0] + storageSize[1]) / (double) trace.size();
+		Log.d(LOG_TAG, mode + " STORAGE USAGE: " + String.valueOf(storageSize[0] + storageSize[1]) + " B");
+		Log.d(LOG_TAG, mode + " BYTES PER SAMPLE: " + String.valueOf(bytesPerSample));
+
+		long scanned = 0;
+		tick = System.currentTimeMillis();
+		for (int r = 0; r < SCAN_REPETITIONS; r++) {
+			List<SensorData> peek = vm.retrieve(sensorId, 0, Long.MAX_VALUE);
+			scanned += peek.size();
+		}
+		tock = System.currentTimeMillis();
+		double time = tock - tick;
+		Log.d(LOG_TAG, mode + " SCAN TIME: " + String.valueOf(time / SCAN_REPETITIONS) + " ms");
+		Log.d(LOG_TAG, mode + " SAMPLES SCANNED PER SECOND: " + String.valueOf(scanned * 1000 / Math.max(1, time)));
+
+		vm.deleteSensor(sensorId);
+	}
+}
@@ -0,0 +1,90 @@
+package ch.ethz.soms.nervous.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.ethz.soms.nervous.android.sensors.SensorDesc;
+import ch.ethz.soms.nervous.android.sensors.SensorDescDummy;
+import ch.ethz.soms.nervous.android.sensors.SensorDescTemperature;
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+import ch.ethz.soms.nervous.vm.NervousVM;
+import ch.ethz.soms.nervous.vm.RetentionPolicy;
+import ch.ethz.soms.nervous.vm.SensorColumns;
+import ch.ethz.soms.nervous.vm.SensorPredicate;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Threshold query benchmark: stores a full history of a slowly drifting temperature with rare spikes, then finds the
+ * readings above a threshold once by retrieving the whole range and filtering it and once with a predicate scan.
+ */
+public class PerformanceTestTask5 extends AsyncTask<Void, Void, Void> {
+
+	private static final String LOG_TAG = "PerformanceTestTask5";
+	private static final int PAGE_COUNT = 30;
+	private static final int TEST_COUNT = (int) (NervousVM.MAX_ENTRIES * PAGE_COUNT);
+	private static final int BATCH_SIZE = 100;
+	private static final int SCAN_REPETITIONS = 10;
+	private static final float THRESHOLD = 50;
+	private static final long SENSOR_ID = SensorDescDummy.SENSOR_ID;
+	private Context context;
+
+	public PerformanceTestTask5(Context context) {
+		this.context = context;
+	}
+
+	@Override
+	protected Void doInBackground(Void... params) {
+		NervousVM vm = NervousVM.getInstance(context.getFilesDir());
+		vm.deleteSensor(SENSOR_ID);
+		vm.setRetentionPolicy(SENSOR_ID, new RetentionPolicy(NervousVM.MAX_ENTRIES, PAGE_COUNT, 0, 0, 0));
+
+		Random random = new Random(42);
+		long timestamp = System.currentTimeMillis();
+		List<SensorData> batch = new ArrayList<SensorData>(BATCH_SIZE);
+		for (int i = 0; i < TEST_COUNT; i++) {
+			timestamp += 1000;
+			float temperature = 20 + 5 * (float) Math.sin(i / 2000.0) + random.nextFloat();
+			if (random.nextInt(5000) == 0) {
+				temperature = 80;
+			}
+			SensorDesc sensorDesc = new SensorDescTemperature(timestamp, temperature);
+			batch.add(sensorDesc.toProtoSensor());
+			if (batch.size() == BATCH_SIZE) {
+				vm.storeSensors(SENSOR_ID, batch);
+				batch.clear();
+			}
+		}
+		vm.storeSensors(SENSOR_ID, batch);
+
+		long matches = 0;
+		long tick = System.currentTimeMillis();
+		for (int r = 0; r < SCAN_REPETITIONS; r++) {
+			for (SensorData sensorData : vm.retrieve(SENSOR_ID, 0, Long.MAX_VALUE)) {
+				if (sensorData.getValueFloat(0) > THRESHOLD) {
+					matches++;
+				}
+			}
+		}
+		long tock = System.currentTimeMillis();
+		Log.d(LOG_TAG, "(RETRIEVE AND FILTER) MATCHES: " + String.valueOf(matches / SCAN_REPETITIONS));
+		Log.d(LOG_TAG, "(RETRIEVE AND FILTER) QUERY TIME: " + String.valueOf((tock - tick) / (double) SCAN_REPETITIONS) + " ms");
+
+		SensorPredicate predicate = new SensorPredicate(SensorColumns.VALUE_FLOAT, 0, SensorPredicate.GREATER, THRESHOLD);
+		long skippedBefore = vm.getScanPagesSkipped();
+		matches = 0;
+		tick = System.currentTimeMillis();
+		for (int r = 0; r < SCAN_REPETITIONS; r++) {
+			matches += vm.scan(SENSOR_ID, 0, Long.MAX_VALUE, predicate).size();
+		}
+		tock = System.currentTimeMillis();
+		Log.d(LOG_TAG, "(SCAN) MATCHES: " + String.valueOf(matches / SCAN_REPETITIONS));
+		Log.d(LOG_TAG, "(SCAN) QUERY TIME: " + String.valueOf((tock - tick) / (double) SCAN_REPETITIONS) + " ms");
+		Log.d(LOG_TAG, "(SCAN) PAGES SKIPPED: " + String.valueOf((vm.getScanPagesSkipped() - skippedBefore) / SCAN_REPETITIONS) + " of " + String.valueOf(PAGE_COUNT));
+
+		vm.deleteSensor(SENSOR_ID);
+		return null;
+	}
+}
@@ -0,0 +1,97 @@
+package ch.ethz.soms.nervous.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.ethz.soms.nervous.android.sensors.SensorDesc;
+import ch.ethz.soms.nervous.android.sensors.SensorDescDummy;
+import ch.ethz.soms.nervous.android.sensors.SensorDescTemperature;
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+import ch.ethz.soms.nervous.vm.DecodedPageCache;
+import ch.ethz.soms.nervous.vm.NervousVM;
+import ch.ethz.soms.nervous.vm.RetentionPolicy;
+import ch.ethz.soms.nervous.vm.SensorTail;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Page layout benchmark: stores the same bursty history, one reading per second with idle hours in between, once in
+ * pages of a fixed size and once in hourly time slots, then compares the latency of range retrieves of one minute,
+ * one hour and one day.
+ */
+public class PerformanceTestTask6 extends AsyncTask<Void, Void, Void> {
+
+	private static final String LOG_TAG = "PerformanceTestTask6";
+	private static final int TEST_COUNT = (int) (NervousVM.MAX_ENTRIES * NervousVM.MAX_PAGES * 10);
+	private static final int BATCH_SIZE = 100;
+	private static final int RETRIEVE_REPETITIONS = 100;
+	private static final long SLOT_MILLIS = 60 * 60 * 1000;
+	private static final long[] RANGE_MILLIS = { 60 * 1000, SLOT_MILLIS, 24 * SLOT_MILLIS };
+	private static final long COUNT_SENSOR_ID = SensorDescDummy.SENSOR_ID;
+	private static final long SLOT_SENSOR_ID = SensorDescDummy.SENSOR_ID - 1;
+	private Context context;
+
+	public PerformanceTestTask6(Context context) {
+		this.context = context;
+	}
+
+	@Override
+	protected Void doInBackground(Void... params) {
+		NervousVM vm = NervousVM.getInstance(context.getFilesDir());
+		vm.deleteSensor(COUNT_SENSOR_ID);
+		vm.deleteSensor(SLOT_SENSOR_ID);
+		RetentionPolicy retentionPolicy = new RetentionPolicy(NervousVM.MAX_ENTRIES, 0, 0, 0, 0);
+		vm.setRetentionPolicy(COUNT_SENSOR_ID, retentionPolicy);
+		vm.setRetentionPolicy(SLOT_SENSOR_ID, retentionPolicy);
+		vm.setPageSlot(SLOT_SENSOR_ID, SLOT_MILLIS);
+
+		Random random = new Random(42);
+		long firstTimestamp = System.currentTimeMillis();
+		long timestamp = firstTimestamp;
+		List<SensorData> batch = new ArrayList<SensorData>(BATCH_SIZE);
+		for (int i = 0; i < TEST_COUNT; i++) {
+			timestamp += random.nextInt(1000) == 0 ? random.nextInt((int) (6 * SLOT_MILLIS)) : 1000;
+			SensorDesc sensorDesc = new SensorDescTemperature(timestamp, 20 + random.nextFloat());
+			batch.add(sensorDesc.toProtoSensor());
+			if (batch.size() == BATCH_SIZE) {
+				vm.storeSensors(COUNT_SENSOR_ID, batch);
+				vm.storeSensors(SLOT_SENSOR_ID, batch);
+				batch.clear();
+			}
+		}
+		vm.storeSensors(COUNT_SENSOR_ID, batch);
+		vm.storeSensors(SLOT_SENSOR_ID, batch);
+
+		// Measure the pages, not the caches in front of them
+		vm.setPageCacheBudget(0);
+		vm.setTailCapacity(0);
+		for (long range : RANGE_MILLIS) {
+			long[] time = new long[2];
+			long[] samples = new long[2];
+			Random ranges = new Random(7);
+			for (int r = 0; r < RETRIEVE_REPETITIONS; r++) {
+				long from = firstTimestamp + (long) (ranges.nextDouble() * Math.max(1, timestamp - firstTimestamp - range));
+				long[] sensorIDs = { COUNT_SENSOR_ID, SLOT_SENSOR_ID };
+				for (int s = 0; s < sensorIDs.length; s++) {
+					long tick = System.nanoTime();
+					samples[s] += vm.retrieve(sensorIDs[s], from, from + range).size();
+					time[s] += System.nanoTime() - tick;
+				}
+			}
+			Log.d(LOG_TAG, "(COUNT LAYOUT) RANGE " + String.valueOf(range / 1000) + " s: " + String.valueOf(time[0] / 1000000.0 / RETRIEVE_REPETITIONS) + " ms, " + String.valueOf(samples[0] / RETRIEVE_REPETITIONS) + " samples");
+			Log.d(LOG_TAG, "(TIME LAYOUT) RANGE " + String.valueOf(range / 1000) + " s: " + String.valueOf(time[1] / 1000000.0 / RETRIEVE_REPETITIONS) + " ms, " + String.valueOf(samples[1] / RETRIEVE_REPETITIONS) + " samples");
+		}
+		long[] countSize = vm.getSensorStorageSize(COUNT_SENSOR_ID);
+		long[] slotSize = vm.getSensorStorageSize(SLOT_SENSOR_ID);
+		Log.d(LOG_TAG, "(COUNT LAYOUT) STORAGE: " + String.valueOf(countSize[0] + countSize[1]) + " bytes");
+		Log.d(LOG_TAG, "(TIME LAYOUT) STORAGE: " + String.valueOf(slotSize[0] + slotSize[1]) + " bytes");
+
+		vm.setPageCacheBudget(DecodedPageCache.DEFAULT_BUDGET);
+		vm.setTailCapacity(SensorTail.DEFAULT_CAPACITY);
+		vm.deleteSensor(COUNT_SENSOR_ID);
+		vm.deleteSensor(SLOT_SENSOR_ID);
+		return null;
+	}
+}
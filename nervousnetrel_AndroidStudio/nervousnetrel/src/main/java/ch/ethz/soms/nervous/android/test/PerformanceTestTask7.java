@@ -0,0 +1,90 @@
+package ch.ethz.soms.nervous.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.ethz.soms.nervous.android.sensors.SensorDesc;
+import ch.ethz.soms.nervous.android.sensors.SensorDescDummy;
+import ch.ethz.soms.nervous.android.sensors.SensorDescTemperature;
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+import ch.ethz.soms.nervous.vm.DecodedPageCache;
+import ch.ethz.soms.nervous.vm.NervousVM;
+import ch.ethz.soms.nervous.vm.SensorStoreSparseIndex;
+import ch.ethz.soms.nervous.vm.SensorTail;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Index benchmark: stores the same history once with a dense and once with a sparse index on full pages, then
+ * compares the index size and the latency of short range retrieves.
+ */
+public class PerformanceTestTask7 extends AsyncTask<Void, Void, Void> {
+
+	private static final String LOG_TAG = "PerformanceTestTask7";
+	private static final int TEST_COUNT = (int) (NervousVM.MAX_ENTRIES * NervousVM.MAX_PAGES * 10);
+	private static final int BATCH_SIZE = 100;
+	private static final int RETRIEVE_REPETITIONS = 1000;
+	private static final long RANGE_MILLIS = 10 * 1000;
+	private static final long DENSE_SENSOR_ID = SensorDescDummy.SENSOR_ID;
+	private static final long SPARSE_SENSOR_ID = SensorDescDummy.SENSOR_ID - 1;
+	private Context context;
+
+	public PerformanceTestTask7(Context context) {
+		this.context = context;
+	}
+
+	@Override
+	protected Void doInBackground(Void... params) {
+		NervousVM vm = NervousVM.getInstance(context.getFilesDir());
+		vm.deleteSensor(DENSE_SENSOR_ID);
+		vm.deleteSensor(SPARSE_SENSOR_ID);
+		vm.setIndexInterval(SPARSE_SENSOR_ID, SensorStoreSparseIndex.DEFAULT_INTERVAL);
+
+		Random random = new Random(42);
+		long firstTimestamp = System.currentTimeMillis();
+		long timestamp = firstTimestamp;
+		List<SensorData> batch = new ArrayList<SensorData>(BATCH_SIZE);
+		for (int i = 0; i < TEST_COUNT; i++) {
+			timestamp += 1 + random.nextInt(1000);
+			SensorDesc sensorDesc = new SensorDescTemperature(timestamp, 20 + random.nextFloat());
+			batch.add(sensorDesc.toProtoSensor());
+			if (batch.size() == BATCH_SIZE) {
+				vm.storeSensors(DENSE_SENSOR_ID, batch);
+				vm.storeSensors(SPARSE_SENSOR_ID, batch);
+				batch.clear();
+			}
+		}
+		vm.storeSensors(DENSE_SENSOR_ID, batch);
+		vm.storeSensors(SPARSE_SENSOR_ID, batch);
+
+		// Measure the pages, not the caches in front of them
+		vm.setPageCacheBudget(0);
+		vm.setTailCapacity(0);
+		long[] sensorIDs = { DENSE_SENSOR_ID, SPARSE_SENSOR_ID };
+		long[] time = new long[2];
+		long[] samples = new long[2];
+		Random ranges = new Random(7);
+		for (int r = 0; r < RETRIEVE_REPETITIONS; r++) {
+			long from = firstTimestamp + (long) (ranges.nextDouble() * (timestamp - firstTimestamp - RANGE_MILLIS));
+			for (int s = 0; s < sensorIDs.length; s++) {
+				long tick = System.nanoTime();
+				samples[s] += vm.retrieve(sensorIDs[s], from, from + RANGE_MILLIS).size();
+				time[s] += System.nanoTime() - tick;
+			}
+		}
+		long[] denseSize = vm.getSensorStorageSize(DENSE_SENSOR_ID);
+		long[] sparseSize = vm.getSensorStorageSize(SPARSE_SENSOR_ID);
+		Log.d(LOG_TAG, "(DENSE INDEX) RANGE: " + String.valueOf(time[0] / 1000000.0 / RETRIEVE_REPETITIONS) + " ms, " + String.valueOf(samples[0] / RETRIEVE_REPETITIONS) + " samples");
+		Log.d(LOG_TAG, "(SPARSE INDEX) RANGE: " + String.valueOf(time[1] / 1000000.0 / RETRIEVE_REPETITIONS) + " ms, " + String.valueOf(samples[1] / RETRIEVE_REPETITIONS) + " samples");
+		Log.d(LOG_TAG, "(DENSE INDEX) INDEX: " + String.valueOf(denseSize[1]) + " bytes");
+		Log.d(LOG_TAG, "(SPARSE INDEX) INDEX: " + String.valueOf(sparseSize[1]) + " bytes");
+
+		vm.setPageCacheBudget(DecodedPageCache.DEFAULT_BUDGET);
+		vm.setTailCapacity(SensorTail.DEFAULT_CAPACITY);
+		vm.deleteSensor(DENSE_SENSOR_ID);
+		vm.deleteSensor(SPARSE_SENSOR_ID);
+		return null;
+	}
+}
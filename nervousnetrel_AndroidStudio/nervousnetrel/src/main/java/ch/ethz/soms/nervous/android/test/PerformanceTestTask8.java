@@ -0,0 +1,112 @@
+package ch.ethz.soms.nervous.android.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.ethz.soms.nervous.android.sensors.SensorDesc;
+import ch.ethz.soms.nervous.android.sensors.SensorDescDummy;
+import ch.ethz.soms.nervous.android.sensors.SensorDescTemperature;
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload;
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.Builder;
+import ch.ethz.soms.nervous.nervousproto.SensorUploadProtos.SensorUpload.SensorData;
+import ch.ethz.soms.nervous.vm.NervousVM;
+import ch.ethz.soms.nervous.vm.SensorCursor;
+import ch.ethz.soms.nervous.vm.SensorExport;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Upload benchmark: writes the history of a sensor to two discarding streams in chunks, once by parsing the samples
+ * and serializing a SensorUpload per chunk and once as frames exported from the page files, then compares the time
+ * of both.
+ */
+public class PerformanceTestTask8 extends AsyncTask<Void, Void, Void> {
+
+	private static final String LOG_TAG = "PerformanceTestTask8";
+	private static final int TEST_COUNT = (int) (NervousVM.MAX_ENTRIES * NervousVM.MAX_PAGES * 2);
+	private static final int BATCH_SIZE = 100;
+	private static final int UPLOAD_CHUNK_SIZE = 4096;
+	private static final int UPLOAD_REPETITIONS = 10;
+	private static final long SENSOR_ID = SensorDescDummy.SENSOR_ID;
+	private Context context;
+
+	public PerformanceTestTask8(Context context) {
+		this.context = context;
+	}
+
+	@Override
+	protected Void doInBackground(Void... params) {
+		NervousVM vm = NervousVM.getInstance(context.getFilesDir());
+		vm.deleteSensor(SENSOR_ID);
+
+		Random random = new Random(42);
+		long timestamp = System.currentTimeMillis();
+		List<SensorData> batch = new ArrayList<SensorData>(BATCH_SIZE);
+		for (int i = 0; i < TEST_COUNT; i++) {
+			timestamp += 1 + random.nextInt(1000);
+			SensorDesc sensorDesc = new SensorDescTemperature(timestamp, 20 + random.nextFloat());
+			batch.add(sensorDesc.toProtoSensor());
+			if (batch.size() == BATCH_SIZE) {
+				vm.storeSensors(SENSOR_ID, batch);
+				batch.clear();
+			}
+		}
+		vm.storeSensors(SENSOR_ID, batch);
+
+		OutputStream[] servers = { new DiscardOutputStream(), new DiscardOutputStream() };
+		SensorExport export = new SensorExport();
+		long[] time = new long[2];
+		try {
+			for (int r = 0; r < UPLOAD_REPETITIONS; r++) {
+				long tick = System.nanoTime();
+				SensorCursor cursor = vm.openCursor(SENSOR_ID, 0, Long.MAX_VALUE);
+				while (cursor.hasNext()) {
+					Builder sub = SensorUpload.newBuilder();
+					sub.setHuuid(vm.getUUID().getMostSignificantBits());
+					sub.setLuuid(vm.getUUID().getLeastSignificantBits());
+					sub.setSensorId(SENSOR_ID);
+					for (int count = 0; count < UPLOAD_CHUNK_SIZE && cursor.hasNext(); count++) {
+						sub.addSensorValues(cursor.next());
+					}
+					sub.setUploadTime(System.currentTimeMillis());
+					for (OutputStream os : servers) {
+						sub.build().writeDelimitedTo(os);
+					}
+				}
+				cursor.close();
+				time[0] += System.nanoTime() - tick;
+
+				tick = System.nanoTime();
+				SensorCursor.Position position = new SensorCursor.Position(0, 0, 0);
+				while (vm.exportFrom(SENSOR_ID, position, UPLOAD_CHUNK_SIZE, export) > 0) {
+					for (OutputStream os : servers) {
+						export.writeTo(os, System.currentTimeMillis());
+					}
+					position = export.getPosition();
+				}
+				time[1] += System.nanoTime() - tick;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		Log.d(LOG_TAG, "(PARSE AND SERIALIZE) UPLOAD: " + String.valueOf(time[0] / 1000000.0 / UPLOAD_REPETITIONS) + " ms, " + String.valueOf(TEST_COUNT) + " samples");
+		Log.d(LOG_TAG, "(EXPORT) UPLOAD: " + String.valueOf(time[1] / 1000000.0 / UPLOAD_REPETITIONS) + " ms, " + String.valueOf(TEST_COUNT) + " samples");
+
+		vm.deleteSensor(SENSOR_ID);
+		return null;
+	}
+
+	private static class DiscardOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package ch.ethz.soms.nervous.android.test;
+
+import ch.ethz.soms.nervous.android.sensors.SensorDesc;
+import ch.ethz.soms.nervous.android.sensors.SensorDescDummy;
+import ch.ethz.soms.nervous.android.sensors.SensorDescTemperature;
+import ch.ethz.soms.nervous.vm.NervousVM;
+import ch.ethz.soms.nervous.vm.SensorIngest;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Ingest benchmark: several producer threads store samples of their own sensor at the same time, once through the
+ * single writer SensorIngest and once by storing every sample directly, then compares the time of both.
+ */
+public class PerformanceTestTask9 extends AsyncTask<Void, Void, Void> {
+
+	private static final String LOG_TAG = "PerformanceTestTask9";
+	private static final int PRODUCER_COUNT = 8;
+	private static final int TEST_COUNT = 20000;
+	private static final long SENSOR_ID = SensorDescDummy.SENSOR_ID;
+	private Context context;
+
+	public PerformanceTestTask9(Context context) {
+		this.context = context;
+	}
+
+	@Override
+	protected Void doInBackground(Void... params) {
+		NervousVM vm = NervousVM.getInstance(context.getFilesDir());
+
+		deleteSensors(vm);
+		SensorIngest ingest = new SensorIngest(vm, SensorIngest.DEFAULT_CAPACITY, SensorIngest.BACKPRESSURE_BLOCK);
+		long ingestTime = produce(vm, ingest);
+		Log.d(LOG_TAG, "(INGEST) STORE: " + String.valueOf(ingestTime / 1000000.0) + " ms, " + String.valueOf(PRODUCER_COUNT * TEST_COUNT) + " samples, " + String.valueOf(ingest.getBatches()) + " batches, " + String.valueOf(ingest.getDropped()) + " dropped");
+		ingest.close();
+
+		deleteSensors(vm);
+		long directTime = produce(vm, null);
+		Log.d(LOG_TAG, "(DIRECT) STORE: " + String.valueOf(directTime / 1000000.0) + " ms, " + String.valueOf(PRODUCER_COUNT * TEST_COUNT) + " samples");
+
+		deleteSensors(vm);
+		return null;
+	}
+
+	private void deleteSensors(NervousVM vm) {
+		for (int p = 0; p < PRODUCER_COUNT; p++) {
+			vm.deleteSensor(SENSOR_ID - p);
+		}
+	}
+
+	/**
+	 * Stores TEST_COUNT samples per producer thread, through @param ingest or directly if it is null
+	 *
+	 * @return time until all samples are stored in nanoseconds
+	 */
+	private long produce(final NervousVM vm, final SensorIngest ingest) {
+		Thread[] producers = new Thread[PRODUCER_COUNT];
+		long tick = System.nanoTime();
+		for (int p = 0; p < PRODUCER_COUNT; p++) {
+			final long sensorID = SENSOR_ID - p;
+			producers[p] = new Thread() {
+				@Override
+				public void run() {
+					long timestamp = System.currentTimeMillis();
+					for (int i = 0; i < TEST_COUNT; i++) {
+						SensorDesc sensorDesc = new SensorDescTemperature(timestamp + i, 20 + i % 10);
+						if (ingest != null) {
+							ingest.enqueue(sensorID, sensorDesc.toProtoSensor());
+						} else {
+							vm.storeSensor(sensorID, sensorDesc.toProtoSensor());
+						}
+					}
+				}
+			};
+			producers[p].start();
+		}
+		for (Thread producer : producers) {
+			try {
+				producer.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		if (ingest != null) {
+			ingest.flush();
+		}
+		return System.nanoTime() - tick;
+	}
+}